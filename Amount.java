@@ -0,0 +1,74 @@
+package indicium_blockChain;
+
+import java.math.BigDecimal;
+
+public final class Amount {
+	// Amounts of Indiciums as fixed-point longs of base units, so that sums and comparisons are exact.
+	// One Indicium is 10^8 base units. Every valid amount lies between 0 and MAX_MONEY, which leaves enough headroom that thousands of them can be summed without overflowing a long.
+
+	public static final long COIN = 100000000L; //base units in one Indicium
+	public static final long MAX_MONEY = 21000000L * COIN; //no single amount, nor any sum of amounts, can be larger
+	public static final int DECIMALS = 8;
+
+	private static final int SAFE_CHUNK = (int) Math.min(4096, Long.MAX_VALUE / MAX_MONEY); //valid amounts which can be added up before an overflow is possible
+
+	private Amount() {
+	}
+
+	/** @param coins - A whole number of Indiciums.
+	 * @return The amount in base units.
+	 * */
+	public static long ofCoins(long coins) {
+		return Math.multiplyExact(coins, COIN);
+	}
+
+	/** Parses a decimal amount of Indiciums exactly, e.g. "0.1" or "1729".
+	 * @param coins - The amount in Indiciums, with at most 8 decimals.
+	 * @return The amount in base units.
+	 * */
+	public static long parse(String coins) {
+		BigDecimal value = new BigDecimal(coins).movePointRight(DECIMALS);
+		long units = value.longValueExact(); //throws if there are more than 8 decimals
+		if(!(isValid(units))) {
+			throw new ArithmeticException("Amount out of range: " + coins);
+		}
+		return units;
+	}
+
+	/** @param units - An amount in base units.
+	 * @return The amount in Indiciums, without trailing zeros, e.g. "40" or "0.1".
+	 * */
+	public static String toString(long units) {
+		return BigDecimal.valueOf(units, DECIMALS).stripTrailingZeros().toPlainString();
+	}
+
+	/** @return True if the amount is between 0 and {@link #MAX_MONEY}.
+	 * */
+	public static boolean isValid(long units) {
+		return units >= 0 && units <= MAX_MONEY;
+	}
+
+	/** Sums a compact array of amounts. The loop over each chunk is branch-free, so the JIT can vectorize it.
+	 * @param values - The amounts in base units.
+	 * @param count - How many of the values are summed, starting at index 0.
+	 * @return The total, or -1 if any amount is out of range or the total exceeds {@link #MAX_MONEY}.
+	 * */
+	public static long sum(long[] values, int count) {
+		long total = 0;
+		for(int start = 0; start < count; start += SAFE_CHUNK) {
+			int end = Math.min(count, start + SAFE_CHUNK);
+			long chunk = 0;
+			long outOfRange = 0; //the sign bit is set by any negative amount or any amount above MAX_MONEY
+			for(int i = start; i < end; i++) {
+				long value = values[i];
+				chunk += value;
+				outOfRange |= value | (MAX_MONEY - value);
+			}
+			total += chunk;
+			if(outOfRange < 0 || total > MAX_MONEY) {
+				return -1;
+			}
+		}
+		return total;
+	}
+}
@@ -1,51 +1,219 @@
 package indicium_blockChain;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 
 
 public class Block {
 
-	public String hash; //contains blocks current hash
-	public String prevHash; //reference to previous block's hash
-	public String merkleRoot;
+	public static final int HEADER_SIZE = 80; //prev hash (32) + Merkle root (32) + time stamp (8) + target bits (4) + nonce (4)
+	public static final int NONCE_OFFSET = 76; //the nonce is the last field, so it sits in the last SHA-256 block of the header
+
+	public byte[] hash; //contains blocks current hash
+	public byte[] prevHash; //reference to previous block's hash
+	public byte[] merkleRoot = new byte[32];
 	public ArrayList<Transactions> transactions = new ArrayList<Transactions>(); 
 	private String data; //data contained within block
 	private long timeStamp; //time of block's creation
+	private int bits; //the target the block was mined with, in compact form (see Difficulty)
 	private int nonce; //nonce value (generated by miners)
+	private transient String hashHex; //hexadecimal form of the hash, only built for display
+	private transient MerkleTree merkleTree = new MerkleTree(); //grows with the transactions, so the root never has to be recomputed from scratch
+	private volatile boolean pruned; //the transactions have been dropped, and only the header is left
+	private boolean stored; //only the header is held in memory, and the transactions are read back from the BlockStore (see toHeader)
 
 
-	public Block(String previousHash) {
+	public Block(byte[] previousHash) {
 		prevHash = previousHash;
 		timeStamp = new Date().getTime();
+		BlockTree.Node parent = Indicium_beta.blockTree.getNode(previousHash);
+		if(parent != null) {
+			timeStamp = Math.max(timeStamp, Difficulty.medianTimePast(parent) + 1); //blocks mined within the same millisecond still have to be later than the median before them
+		}
 		hash = calculateHash();
 	}
 
-	/**Applies the applySHA256 method to calculate the current block's hash based on the previous block's hash, the current block's data and the time stamp
-	 * @return A String representation of the block's hash.
+	private Block() {
+	}
+
+	/** Rebuilds a mined block from its binary header, e.g. when it is read back from the {@link BlockStore}. The buffer's position is advanced past the header.
+	 * @param header - A buffer positioned at the start of a {@link #HEADER_SIZE}-byte header.
+	 * @return The block, without its transactions.
+	 * */
+	public static Block fromHeader(ByteBuffer header) {
+		Block block = new Block();
+		block.prevHash = new byte[32];
+		header.get(block.prevHash);
+		header.get(block.merkleRoot);
+		block.timeStamp = header.getLong();
+		block.bits = header.getInt();
+		block.nonce = header.getInt();
+		block.hash = block.calculateHash();
+		return block;
+	}
+
+	/** Creates a block from the hexadecimal hash of the previous block. "0" denotes the genesis block.
+	 * @param previousHash - The previous block's hash in hexadecimal representation.
+	 * */
+	public Block(String previousHash) {
+		this(StringUtil.hashFromHex(previousHash));
+	}
+
+	/**Applies the SHA-256 hash function to the block's binary header, which commits to the previous block's hash, the Merkle root, the time stamp, the target and the nonce.
+	 * @return The raw 32-byte hash of the block.
+	 * */
+	public byte[] calculateHash() {
+		return StringUtil.applySHA256Raw(getHeaderBytes());
+	}
+
+	/** Serializes the block's header into its fixed-width binary format. The nonce is always the last 4 bytes, so miners can patch it in place without rebuilding the header.
+	 * @return The {@link #HEADER_SIZE} bytes of the header, with every number in big-endian order.
+	 * */
+	public byte[] getHeaderBytes() {
+		return ByteBuffer.allocate(HEADER_SIZE)
+				.put(prevHash)
+				.put(merkleRoot)
+				.putLong(timeStamp)
+				.putInt(bits)
+				.putInt(nonce)
+				.array();
+	}
+
+	/** Gets the hexadecimal form of the block's hash, which is built the first time it is needed.
+	 * @return The block's hash as a hexadecimal String.
+	 * */
+	public String getHash() {
+		if(hashHex == null) {
+			hashHex = StringUtil.toHexString(hash);
+		}
+		return hashHex;
+	}
+
+	public long getTimeStamp() {
+		return timeStamp;
+	}
+
+	/** @return The target the block was mined with, in compact form.
 	 * */
-	public String calculateHash() {
-		String calculatedHash = StringUtil.applySHA256(
-				prevHash + 
-				data + 
-				Long.toString(timeStamp) + 
-				Integer.toString(nonce) +
-				merkleRoot);
-		return calculatedHash;
+	public int getBits() {
+		return bits;
+	}
+
+	public int getNonce() {
+		return nonce;
+	}
+
+	/** Produces a proof that one of the block's transactions is included in its Merkle root, for light clients which only hold headers.
+	 * @param index - The position of the transaction in the block.
+	 * @return The transaction's inclusion proof.
+	 * */
+	public MerkleTree.Proof getMerkleProof(int index) {
+		if(pruned) {
+			throw new IllegalStateException("The transactions of block " + getHash() + " have been pruned");
+		}
+		if(merkleTree.size() != transactions.size()) {
+			merkleTree = MerkleTree.of(transactions); //the block was read back from storage, so its tree is rebuilt once
+		}
+		return merkleTree.getProof(index);
+	}
+
+	/** Drops the block's transactions, e.g. on a pruned node once the block is deep enough that it will never be reverted. The header is kept, so the block's hash and Merkle root still commit to them.
+	 * <br>The transactions are replaced by a new empty list rather than cleared, so a reader still iterating the old list isn't disturbed.
+	 * */
+	public void prune() {
+		transactions = new ArrayList<Transactions>(0);
+		merkleTree = new MerkleTree();
+		pruned = true;
+	}
+
+	/** @return True if the block's transactions have been pruned.
+	 * */
+	public boolean isPruned() {
+		return pruned;
+	}
+
+	/** Copies the block's header without its transactions, to stand in for the block in memory once the {@link BlockStore} holds it.
+	 * <br>A new object is returned rather than dropping the transactions in place, so a reader still holding the whole block isn't disturbed.
+	 * @return The header, whose transactions are read back from the store when needed (see {@link Indicium_beta#getBlock(int)}).
+	 * */
+	public Block toHeader() {
+		Block header = new Block();
+		header.hash = hash;
+		header.prevHash = prevHash;
+		header.merkleRoot = merkleRoot;
+		header.timeStamp = timeStamp;
+		header.bits = bits;
+		header.nonce = nonce;
+		header.transactions = new ArrayList<Transactions>(0);
+		header.pruned = pruned;
+		header.stored = true;
+		return header;
+	}
+
+	/** @return True if only the block's header is held in memory, and its transactions are in the BlockStore.
+	 * */
+	public boolean isStored() {
+		return stored;
 	}
 
 	/** Mines a block, which ensures that Proof-of-Work was performed and that every block is valid and untampered.
-	 * @param difficulty - The difficulty of the network i.e. how many 0s each block needs to start with. 
-	 * @return Adds the block to the blockchain and prints out its hash.
+	 * <br>The nonce space is searched on every core by the default {@link Miner}, in rounds sized from its measured hash rate. After each round the time stamp is rolled forward to the current time, so the block's time stamp, which retargeting relies on, is never far behind when it was found.
+	 * @param bits - The target of the network in compact form, see {@link Difficulty#nextBits(ChainParams, List)}.
+	 * @return True once the block has been mined, False if mining was cancelled (e.g. because a competing block arrived).
+	 * */
+	public boolean mineBlock(int bits) {
+		return mineBlock(bits, Miner.getDefault().newSearch());
+	}
+
+	/** Mines a block as a search which was started when it was built, so a competing block which arrived since has already cancelled it.
+	 * @param bits - The target of the network in compact form, see {@link Difficulty#nextBits(ChainParams, List)}.
+	 * @param search - The search's generation, from {@link Miner#newSearch()} of the default Miner.
+	 * @return True once the block has been mined, False if mining was cancelled.
 	 * */
-	public void mineBlock(int difficulty) {
-		merkleRoot = StringUtil.getMerkleRoot(transactions);
-		String target = new String(new char[difficulty]).replace('\0', '0');
+	public boolean mineBlock(int bits, long search) {
+		long start = System.nanoTime();
+		merkleRoot = merkleTree.getRoot();
+		this.bits = bits;
+		byte[] target = Difficulty.toTarget(bits);
+		Miner miner = Miner.getDefault();
+		long firstNonce = 0;
 
-		while(!(hash.substring(0, difficulty).equals(target))) {
-			nonce++;
-			hash = calculateHash();
+		while(true) {
+			long count = Math.min(miner.getBatchSize(), 0x100000000L - firstNonce);
+			long found = miner.search(getHeaderBytes(), target, firstNonce, count, search);
+
+			if(found != -1) {
+				nonce = (int) found;
+				hash = calculateHash();
+				hashHex = null;
+				break;
+			}
+			if(miner.isCancelled(search)) {
+				Log.info("Mining has been cancelled. ");
+				return false;
+			}
+			firstNonce += count;
+			long now = new Date().getTime();
+			//once the clock has moved on, or every nonce failed, the search restarts on a header with a new time stamp
+			if(now > timeStamp || firstNonce > 0xFFFFFFFFL) {
+				timeStamp = Math.max(timeStamp + 1, now);
+				firstNonce = 0;
+			}
 		}
-		System.out.println("Block has been mined: " + hash);
+		Metrics.blockMining.recordSince(start);
+		Log.info("Block has been mined: " + getHash());
+		return true;
+	}
+
+	/** @return True if this is the genesis block, i.e. its previous hash is all 0s.
+	 * */
+	public boolean isGenesis() {
+		for(byte b : prevHash) {
+			if(b != 0) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/** Adds a transaction to an unverified block.
@@ -56,14 +224,30 @@ public class Block {
 		if(transaction == null) {
 			return false;
 		}
-		if(prevHash != "0") {
+		if(!isGenesis()) {
 			if(transaction.processTransaction() != true) {
-				System.out.println("Transaction failed to process. Voided. ");
+				Log.warn("Transaction failed to process. Voided. ");
 				return false;
 			}
 		}
 		transactions.add(transaction);
-		System.out.println("Transaction has been added to a block. ");
+		merkleTree.append(transaction);
+		Log.debug("Transaction has been added to a block. ");
 		return true;
 	}
+
+	/** Adds a batch of transactions (e.g. a slice of the Mempool) to an unverified block.
+	 * <br>Their signatures are verified in parallel by the {@link ValidationPipeline}, then they are processed in order.
+	 * @param batch - The transactions which are being added to the block.
+	 * @return The number of transactions which have been successfully added to the block.
+	 * */
+	public int addTransactions(List<Transactions> batch) {
+		ArrayList<Transactions> accepted = ValidationPipeline.getDefault().validate(batch);
+		for(Transactions transaction : accepted) {
+			transactions.add(transaction);
+			merkleTree.append(transaction);
+		}
+		Log.info(accepted.size() + " of " + batch.size() + " transactions have been added to a block. ");
+		return accepted.size();
+	}
 }
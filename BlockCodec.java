@@ -0,0 +1,331 @@
+package indicium_blockChain;
+
+import java.lang.reflect.Type;
+import java.nio.*;
+import java.security.*;
+import java.security.spec.X509EncodedKeySpec;
+import java.time.LocalTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.spec.ECNamedCurveParameterSpec;
+import org.bouncycastle.jce.spec.ECPublicKeySpec;
+
+import com.google.gson.*;
+
+public class BlockCodec {
+	// Versioned binary encoding of blocks and transactions, used by the BlockStore and on the wire.
+	// A block is a version byte, its fixed-width header and its transactions. Lengths and counts are varints, hashes are raw 32 bytes, keys are compressed EC points, outputs hold the raw hash of their owner's key but not their id, which is recomputed from their fields, and times are nanoseconds of the day, so nothing is encoded as a String.
+	// Encoding writes into a per-thread pooled ByteBuffer which grows as needed, so steady-state encoding allocates nothing but the result.
+
+	public static final byte VERSION = 4; //2: outputs hold their owner's key hash instead of the key; 3: output ids are recomputed instead of read; 4: transaction ids are hashes of the signed transaction
+
+	private static final ECNamedCurveParameterSpec curve = ECNamedCurveTable.getParameterSpec(Wallet_beta.CURVE);
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_CACHED_KEYS = 4096;
+
+	//decompressing a point costs a square root on the curve, and the same few wallets' keys appear in block after block
+	private static final ConcurrentHashMap<ByteBuffer, PublicKey> decodedKeys = new ConcurrentHashMap<ByteBuffer, PublicKey>();
+	private static final ThreadLocal<ByteBuffer> pooledBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(INITIAL_BUFFER_SIZE));
+	//KeyFactory instances are not thread-safe, so every thread reuses its own
+	private static final ThreadLocal<KeyFactory> keyFactories = ThreadLocal.withInitial(() -> {
+		try {
+			return KeyFactory.getInstance("ECDSA", "BC");
+		} catch(Exception ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
+		}
+	});
+
+	/** Encodes a block into its binary form.
+	 * @param block - The block which is being encoded.
+	 * @return A copy of the encoding, which the caller owns.
+	 * */
+	public static byte[] encode(Block block) {
+		ByteBuffer encoded = encodePooled(block);
+		byte[] bytes = new byte[encoded.remaining()];
+		encoded.get(bytes);
+		return bytes;
+	}
+
+	/** Encodes a block into the calling thread's pooled buffer, e.g. to write it straight to a channel.
+	 * @param block - The block which is being encoded.
+	 * @return The pooled buffer, flipped so it holds exactly the encoding. It is only valid until the thread's next call.
+	 * */
+	public static ByteBuffer encodePooled(Block block) {
+		ByteBuffer buffer = pooledBuffers.get();
+		while(true) {
+			buffer.clear();
+			try {
+				encode(block, buffer);
+				buffer.flip();
+				return buffer;
+			} catch(BufferOverflowException ex) {
+				buffer = ByteBuffer.allocate(buffer.capacity() * 2); //the block didn't fit, so the pooled buffer is replaced by a larger one
+				pooledBuffers.set(buffer);
+			}
+		}
+	}
+
+	/** Encodes a block at the buffer's position.
+	 * @param block - The block which is being encoded.
+	 * @param buffer - The buffer which is written to.
+	 * @throws BufferOverflowException if the buffer is too small.
+	 * */
+	public static void encode(Block block, ByteBuffer buffer) {
+		buffer.put(VERSION);
+		buffer.put(block.getHeaderBytes());
+		putVarint(buffer, block.transactions.size());
+		for(Transactions transaction : block.transactions) {
+			encodeTransaction(transaction, buffer);
+		}
+	}
+
+	/** Decodes a block from its binary form. The buffer's position is advanced past the block.
+	 * @param buffer - A buffer positioned at the start of an encoded block, e.g. a slice of a memory-mapped segment.
+	 * @return The decoded block.
+	 * */
+	public static Block decode(ByteBuffer buffer) {
+		byte version = buffer.get();
+		if(version != VERSION) {
+			throw new IllegalArgumentException("Unsupported block encoding version: " + version);
+		}
+		Block block = Block.fromHeader(buffer);
+		int count = getCount(buffer);
+		block.transactions.ensureCapacity(count);
+		for(int i = 0; i < count; i++) {
+			block.transactions.add(decodeTransaction(buffer));
+		}
+		return block;
+	}
+
+	/** Encodes a transaction on its own, e.g. to relay it to other nodes.
+	 * @param transaction - The signed transaction.
+	 * @return A copy of the encoding, which the caller owns.
+	 * */
+	public static byte[] encodeTransaction(Transactions transaction) {
+		ByteBuffer buffer = pooledBuffers.get();
+		while(true) {
+			buffer.clear();
+			try {
+				encodeTransaction(transaction, buffer);
+				buffer.flip();
+				byte[] bytes = new byte[buffer.remaining()];
+				buffer.get(bytes);
+				return bytes;
+			} catch(BufferOverflowException ex) {
+				buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+				pooledBuffers.set(buffer);
+			}
+		}
+	}
+
+	/** Encodes a transaction at the buffer's position, together with its inputs and outputs.
+	 * @param transaction - The signed transaction.
+	 * @param buffer - The buffer which is written to.
+	 * @throws BufferOverflowException if the buffer is too small.
+	 * */
+	public static void encodeTransaction(Transactions transaction, ByteBuffer buffer) {
+		putOptionalId(buffer, transaction.transactionID); //a transaction gets its id once it is signed
+		putKey(buffer, transaction.sender);
+		putKey(buffer, transaction.receiver);
+		putVarint(buffer, transaction.value);
+		putVarint(buffer, transaction.timeOfCreation.toNanoOfDay());
+		putBytes(buffer, transaction.signature);
+
+		List<TransactionInput> inputs = (transaction.inputs == null) ? Collections.<TransactionInput>emptyList() : transaction.inputs;
+		putVarint(buffer, inputs.size());
+		for(TransactionInput input : inputs) {
+			putId(buffer, input.transactionOutID);
+		}
+		putVarint(buffer, transaction.outputs.size());
+		for(TransactionOutput output : transaction.outputs) {
+			buffer.put(output.ownerHash);
+			putVarint(buffer, output.value);
+			putOptionalId(buffer, output.parentTransactionID);
+		}
+	}
+
+	/** Decodes a transaction. The buffer's position is advanced past it.
+	 * @param buffer - A buffer positioned at the start of an encoded transaction.
+	 * @return The transaction. Its inputs only reference their outputs by id; the UTXOs are resolved again when it is replayed.
+	 * @throws IllegalArgumentException if the encoded id isn't the hash of the transaction's contents.
+	 * */
+	public static Transactions decodeTransaction(ByteBuffer buffer) {
+		String id = getOptionalId(buffer);
+		PublicKey sender = getKey(buffer);
+		PublicKey receiver = getKey(buffer);
+		long value = getVarint(buffer);
+		LocalTime time = LocalTime.ofNanoOfDay(getVarint(buffer));
+		byte[] signature = getBytes(buffer);
+
+		int inputCount = getCount(buffer);
+		ArrayList<TransactionInput> inputs = new ArrayList<TransactionInput>(inputCount);
+		for(int i = 0; i < inputCount; i++) {
+			inputs.add(new TransactionInput(getId(buffer)));
+		}
+
+		Transactions transaction = new Transactions(sender, receiver, value, inputs);
+		transaction.timeOfCreation = time;
+		transaction.signature = signature;
+		transaction.transactionID = transaction.calcHash(); //the id is recomputed, so a relaying node can't change what a transaction spends without changing its id
+		if(id != null && !(id.equals(transaction.transactionID))) {
+			throw new IllegalArgumentException("Transaction id " + id + " doesn't match its contents");
+		}
+
+		int outputCount = getCount(buffer);
+		for(int i = 0; i < outputCount; i++) {
+			byte[] ownerHash = new byte[32];
+			buffer.get(ownerHash);
+			long outputValue = getVarint(buffer);
+			String parentID = getOptionalId(buffer);
+			transaction.outputs.add(new TransactionOutput(ownerHash, outputValue, parentID)); //the id is derived from the fields, so an encoding can't claim another output's id
+		}
+		return transaction;
+	}
+
+	/** Encodes a public key as a compressed point on the wallets' curve, which is 25 bytes instead of the 75 of its X.509 encoding.
+	 * @param key - The public key.
+	 * @return The compressed point.
+	 * */
+	public static byte[] encodePublicKey(PublicKey key) {
+		if(!(key instanceof org.bouncycastle.jce.interfaces.ECPublicKey)) {
+			key = decodeX509(key.getEncoded()); //a key from another provider is converted once
+		}
+		return ((org.bouncycastle.jce.interfaces.ECPublicKey) key).getQ().getEncoded(true);
+	}
+
+	/** Decodes a public key from its compressed point.
+	 * @param encoded - The compressed point, as returned by {@link #encodePublicKey(PublicKey)}.
+	 * @return The public key.
+	 * */
+	public static PublicKey decodePublicKey(byte[] encoded) {
+		ByteBuffer point = ByteBuffer.wrap(encoded);
+		PublicKey key = decodedKeys.get(point);
+		if(key != null) {
+			return key;
+		}
+		try {
+			key = keyFactories.get().generatePublic(new ECPublicKeySpec(curve.getCurve().decodePoint(encoded), curve));
+			if(decodedKeys.size() >= MAX_CACHED_KEYS) {
+				decodedKeys.clear(); //keys are immutable, so the cache can simply start over
+			}
+			decodedKeys.put(point, key);
+			return key;
+		} catch(Exception ex) {
+			//a peer can send any bytes, so a malformed key is a rejected message rather than a failure of the node, and is only logged once through the rate-limited Log
+			Log.warn("#Not a valid compressed public key: " + ex.getMessage());
+			throw new IllegalArgumentException("Not a compressed public key", ex);
+		}
+	}
+
+	/** Renders blocks, transactions or any other part of the chain as pretty-printed JSON, for debugging only.
+	 * <br>Hashes and signatures are shown in hexadecimal, keys as their compressed points and times as ISO-8601.
+	 * @param value - What is being rendered, e.g. the whole blockchain.
+	 * @return The JSON view, which can't be decoded again.
+	 * */
+	public static String toDebugJson(Object value) {
+		return new GsonBuilder().setPrettyPrinting()
+				.registerTypeAdapter(byte[].class, (JsonSerializer<byte[]>) (bytes, type, context) -> new JsonPrimitive(StringUtil.toHexString(bytes)))
+				.registerTypeHierarchyAdapter(PublicKey.class, (JsonSerializer<PublicKey>) (key, type, context) -> new JsonPrimitive(StringUtil.toHexString(encodePublicKey(key))))
+				.registerTypeAdapter(LocalTime.class, (JsonSerializer<LocalTime>) (LocalTime time, Type type, JsonSerializationContext context) -> new JsonPrimitive(time.toString()))
+				.create().toJson(value);
+	}
+
+	private static PublicKey decodeX509(byte[] encoded) {
+		try {
+			return keyFactories.get().generatePublic(new X509EncodedKeySpec(encoded));
+		} catch(Exception ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/** Writes an unsigned LEB128 varint: 7 bits per byte, with the high bit set on every byte but the last.
+	 * */
+	static void putVarint(ByteBuffer buffer, long value) {
+		while((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	static long getVarint(ByteBuffer buffer) {
+		long value = 0;
+		for(int shift = 0; shift < 64; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			if(b >= 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	/** Reads a count or length, which can't be larger than what is left in the buffer, so a corrupt count can't cause a huge allocation.
+	 * */
+	static int getCount(ByteBuffer buffer) {
+		long count = getVarint(buffer);
+		if(count > buffer.remaining()) {
+			throw new IllegalArgumentException("Malformed count: " + count);
+		}
+		return (int) count;
+	}
+
+	/** Writes a hexadecimal id as its raw 32 bytes. The genesis transaction's id "0" becomes 32 zero bytes.
+	 * */
+	private static void putId(ByteBuffer buffer, String id) {
+		buffer.put(StringUtil.hashFromHex(id));
+	}
+
+	/** Writes an id which may be null as a presence byte, followed by the id if there is one.
+	 * */
+	private static void putOptionalId(ByteBuffer buffer, String id) {
+		if(id == null) {
+			buffer.put((byte) 0);
+		} else {
+			buffer.put((byte) 1);
+			putId(buffer, id);
+		}
+	}
+
+	private static String getOptionalId(ByteBuffer buffer) {
+		return (buffer.get() == 0) ? null : getId(buffer);
+	}
+
+	private static String getId(ByteBuffer buffer) {
+		byte[] id = new byte[32];
+		buffer.get(id);
+		return isZero(id) ? "0" : StringUtil.toHexString(id);
+	}
+
+	private static boolean isZero(byte[] bytes) {
+		for(byte b : bytes) {
+			if(b != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void putKey(ByteBuffer buffer, PublicKey key) {
+		putBytes(buffer, encodePublicKey(key));
+	}
+
+	private static PublicKey getKey(ByteBuffer buffer) {
+		return decodePublicKey(getBytes(buffer));
+	}
+
+	private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+		putVarint(buffer, bytes.length);
+		buffer.put(bytes);
+	}
+
+	private static byte[] getBytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[getCount(buffer)];
+		buffer.get(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,376 @@
+package indicium_blockChain;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+public class BlockStore implements Closeable {
+	// Persistent, append-only storage of the blockchain.
+	// Blocks are appended to segment files in their binary encoding, and an index file records where each block is. Reads go through memory-mapped segments, so the chain's size isn't bounded by the heap.
+	// A pruned node deletes its oldest segments once the store outgrows a target size. What is kept of their blocks, i.e. the headers (and the whole genesis block), is moved to a file of pruned blocks first, so the chain can still be followed from the genesis block.
+
+	private static final long SEGMENT_SIZE = 128L * 1024 * 1024; //a new segment is started once the current one reaches 128 MB
+	private static final int INDEX_ENTRY_SIZE = 4 + 8 + 4 + 32; //segment + offset + length + block hash
+	private static final int PRUNED = -1; //the segment of a block which has been moved to the file of pruned blocks
+
+	private final Path directory;
+	private final FileChannel index;
+	private final ArrayList<FileChannel> segments = new ArrayList<FileChannel>(); //null for a segment which has been pruned
+	private final FileChannel prunedBlocks; //the headers of pruned blocks, in the encoding of BlockCodec without their transactions
+	private MappedByteBuffer prunedMapping;
+	private final ArrayList<MappedByteBuffer> mappings = new ArrayList<MappedByteBuffer>(); //read-only mapping of each segment, remapped when it grows
+
+	//height -> location of the block, as primitive arrays so each block costs 16 bytes of heap
+	private int[] segmentOf = new int[1024];
+	private long[] offsetOf = new long[1024];
+	private int[] lengthOf = new int[1024];
+	private int height; //number of blocks in the store
+	private int prunedHeight; //number of blocks which have been moved to the file of pruned blocks, always the oldest ones
+	private final HashMap<ByteBuffer, Integer> heightOfHash = new HashMap<ByteBuffer, Integer>(); //block hash -> height
+
+	/** Opens the store in a directory, creating it if needed. The existing index is read so the chain is available without re-mining or re-parsing it.
+	 * @param directory - The directory holding the segment files and the index.
+	 * */
+	public BlockStore(Path directory) throws IOException {
+		this.directory = directory;
+		Files.createDirectories(directory);
+		index = FileChannel.open(directory.resolve("index.dat"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		prunedBlocks = FileChannel.open(directory.resolve("pruned.dat"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		//the oldest segments may have been pruned, so the segments are found by listing the directory
+		int last = 0;
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, "blk*.dat")) {
+			for(Path file : files) {
+				String name = file.getFileName().toString();
+				last = Math.max(last, Integer.parseInt(name.substring(3, name.length() - 4)));
+			}
+		}
+		for(int s = 0; s <= last; s++) {
+			if(Files.exists(segmentPath(s)) || s == last) {
+				openSegment(s);
+			} else {
+				segments.add(null);
+				mappings.add(null);
+			}
+		}
+		loadIndex();
+	}
+
+	/** Appends a mined block to the end of the store.
+	 * @param block - The block which is being stored. It has to extend the current tip.
+	 * @return The height of the block in the store.
+	 * */
+	public synchronized int append(Block block) throws IOException {
+		ByteBuffer encoded = BlockCodec.encodePooled(block); //written straight from the pooled buffer, without copying it
+		int length = encoded.remaining();
+		int s = segments.size() - 1;
+		FileChannel segment = segments.get(s);
+
+		if(segment.size() > 0 && segment.size() + length > SEGMENT_SIZE) {
+			s++;
+			segment = openSegment(s);
+		}
+
+		long offset = segment.size();
+		writeFully(segment, encoded, offset);
+		mappings.set(s, null); //the segment has grown, so it is remapped on the next read
+
+		//the index entry is written after the block, so a crash never leaves an entry pointing at a partial block
+		ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+		entry.putInt(s).putLong(offset).putInt(length).put(block.hash);
+		entry.flip();
+		writeFully(index, entry, (long) height * INDEX_ENTRY_SIZE);
+
+		addToIndex(s, offset, length, block.hash);
+		return height - 1;
+	}
+
+	/** Removes every block from a height onwards, e.g. when the chain is reorganized onto another branch. Later segments are deleted and the last one is cut back.
+	 * @param newHeight - The number of blocks which are kept.
+	 * */
+	public synchronized void truncate(int newHeight) throws IOException {
+		if(newHeight >= height) {
+			return;
+		}
+		if(newHeight < prunedHeight) {
+			throw new IllegalStateException("Can't truncate the store below its pruned blocks at height " + prunedHeight);
+		}
+		int s = segmentOf[newHeight];
+		long offset = offsetOf[newHeight];
+		ByteBuffer hash = ByteBuffer.allocate(32);
+		for(int h = newHeight; h < height; h++) {
+			hash.clear();
+			readFully(index, hash, (long) h * INDEX_ENTRY_SIZE + 4 + 8 + 4); //the hash is the last field of the entry
+			hash.flip();
+			heightOfHash.remove(hash);
+		}
+		height = newHeight;
+		index.truncate((long) height * INDEX_ENTRY_SIZE);
+
+		while(segments.size() - 1 > s) {
+			int last = segments.size() - 1;
+			segments.remove(last).close();
+			mappings.remove(last);
+			Files.delete(segmentPath(last));
+		}
+		segments.get(s).truncate(offset);
+		mappings.set(s, null);
+	}
+
+	/** Deletes the oldest segments while the store is larger than a target size, moving the headers of their blocks to the file of pruned blocks first. The last segment, which blocks are appended to, is never deleted.
+	 * <br>The genesis block is kept whole, as a node starts from its transaction.
+	 * @param belowHeight - Only segments whose blocks are all below this height are pruned, so recent blocks keep their transactions whatever the target.
+	 * @param targetSize - The size the store is reduced to, in bytes.
+	 * @return The number of pruned blocks, i.e. the height below which the store only holds headers.
+	 * */
+	public synchronized int prune(int belowHeight, long targetSize) throws IOException {
+		while(sizeOnDisk() > targetSize && prunedHeight < height) {
+			int s = segmentOf[prunedHeight];
+			int end = prunedHeight;
+			while(end < height && segmentOf[end] == s) {
+				end++;
+			}
+			if(s == segments.size() - 1 || end > belowHeight) {
+				break;
+			}
+			pruneSegment(s, end);
+		}
+		return prunedHeight;
+	}
+
+	/** Moves the blocks from prunedHeight up to a height, which make up a whole segment, to the file of pruned blocks without their transactions, then deletes the segment.
+	 * <br>The pruned blocks are written and synced before their index entries are rewritten, and the segment is only deleted after that, so a crash never leaves an entry pointing at a missing block.
+	 * */
+	private void pruneSegment(int s, int end) throws IOException {
+		long offset = prunedBlocks.size();
+		long[] offsets = new long[end - prunedHeight];
+		int[] lengths = new int[end - prunedHeight];
+		byte[][] hashes = new byte[end - prunedHeight][];
+		for(int h = prunedHeight; h < end; h++) {
+			Block block = getBlock(h);
+			if(h > 0) {
+				block.prune();
+			}
+			ByteBuffer encoded = BlockCodec.encodePooled(block);
+			offsets[h - prunedHeight] = offset;
+			lengths[h - prunedHeight] = encoded.remaining();
+			hashes[h - prunedHeight] = block.hash;
+			offset += encoded.remaining();
+			writeFully(prunedBlocks, encoded, offsets[h - prunedHeight]);
+		}
+		prunedBlocks.force(false);
+		prunedMapping = null;
+
+		ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+		for(int h = prunedHeight; h < end; h++) {
+			entry.clear();
+			entry.putInt(PRUNED).putLong(offsets[h - prunedHeight]).putInt(lengths[h - prunedHeight]).put(hashes[h - prunedHeight]);
+			entry.flip();
+			writeFully(index, entry, (long) h * INDEX_ENTRY_SIZE);
+			segmentOf[h] = PRUNED;
+			offsetOf[h] = offsets[h - prunedHeight];
+			lengthOf[h] = lengths[h - prunedHeight];
+		}
+		index.force(false);
+		prunedHeight = end;
+
+		segments.set(s, null).close();
+		mappings.set(s, null);
+		Files.delete(segmentPath(s));
+	}
+
+	/** Reads a block from the store.
+	 * @param blockHeight - The height of the block, where the genesis block is 0.
+	 * @return The decoded block, which only holds its header if it has been pruned (see {@link Block#isPruned()}).
+	 * */
+	public Block getBlock(int blockHeight) throws IOException {
+		Block block = BlockCodec.decode(getEncodedBlock(blockHeight));
+		if(blockHeight > 0 && isPruned(blockHeight)) {
+			block.prune();
+		}
+		return block;
+	}
+
+	/** Reads a block from the store by its hash.
+	 * @param hash - The raw hash of the block.
+	 * @return The decoded block, or null if the store doesn't contain it.
+	 * */
+	public Block getBlock(byte[] hash) throws IOException {
+		int blockHeight = getHeight(hash);
+		return (blockHeight < 0) ? null : getBlock(blockHeight);
+	}
+
+	/** Gets a read-only view of an encoded block directly from the memory-mapped segment, without copying it.
+	 * @param blockHeight - The height of the block, where the genesis block is 0.
+	 * @return A buffer holding the block in the encoding of {@link BlockCodec}. A pruned block is encoded without its transactions.
+	 * */
+	public synchronized ByteBuffer getEncodedBlock(int blockHeight) throws IOException {
+		if(blockHeight < 0 || blockHeight >= height) {
+			throw new IndexOutOfBoundsException("No block at height " + blockHeight);
+		}
+		ByteBuffer view = ((segmentOf[blockHeight] == PRUNED) ? prunedMapping() : mapping(segmentOf[blockHeight])).duplicate();
+		view.position((int) offsetOf[blockHeight]);
+		view.limit((int) offsetOf[blockHeight] + lengthOf[blockHeight]);
+		return view.slice();
+	}
+
+	/** @return The height of the block with the given hash, or -1 if the store doesn't contain it.
+	 * */
+	public synchronized int getHeight(byte[] hash) {
+		Integer blockHeight = heightOfHash.get(ByteBuffer.wrap(hash));
+		return (blockHeight == null) ? -1 : blockHeight;
+	}
+
+	/** @return The number of blocks in the store.
+	 * */
+	public synchronized int size() {
+		return height;
+	}
+
+	/** @return True if the block at a height has been pruned, i.e. only its header is left.
+	 * */
+	public synchronized boolean isPruned(int blockHeight) {
+		return blockHeight < prunedHeight;
+	}
+
+	/** @return The number of pruned blocks, which are always the oldest ones.
+	 * */
+	public synchronized int getPrunedHeight() {
+		return prunedHeight;
+	}
+
+	/** @return The size of the segments, the file of pruned blocks and the index, in bytes.
+	 * */
+	public synchronized long sizeOnDisk() throws IOException {
+		long total = index.size() + prunedBlocks.size();
+		for(FileChannel segment : segments) {
+			if(segment != null) {
+				total += segment.size();
+			}
+		}
+		return total;
+	}
+
+	/** Writes everything appended so far to the disk.
+	 * */
+	public synchronized void sync() throws IOException {
+		for(FileChannel segment : segments) {
+			if(segment != null) {
+				segment.force(false);
+			}
+		}
+		prunedBlocks.force(false);
+		index.force(false);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		sync();
+		for(FileChannel segment : segments) {
+			if(segment != null) {
+				segment.close();
+			}
+		}
+		prunedBlocks.close();
+		index.close();
+		mappings.clear();
+	}
+
+	/** Reads the index file, dropping any trailing entry whose block didn't make it to its segment.
+	 * */
+	private void loadIndex() throws IOException {
+		long entries = index.size() / INDEX_ENTRY_SIZE;
+		if(entries == 0) {
+			return;
+		}
+		MappedByteBuffer entryView = index.map(FileChannel.MapMode.READ_ONLY, 0, entries * INDEX_ENTRY_SIZE);
+
+		for(long e = 0; e < entries; e++) {
+			int s = entryView.getInt();
+			long offset = entryView.getLong();
+			int length = entryView.getInt();
+			byte[] hash = new byte[32];
+			entryView.get(hash);
+
+			if(s == PRUNED) {
+				if(height != prunedHeight || offset + length > prunedBlocks.size()) {
+					break;
+				}
+				prunedHeight++;
+			} else if(s < 0 || s >= segments.size() || segments.get(s) == null || offset + length > segments.get(s).size()) {
+				break;
+			}
+			addToIndex(s, offset, length, hash);
+		}
+		index.truncate((long) height * INDEX_ENTRY_SIZE);
+
+		//a crash while pruning can leave blocks which no entry points at, or a segment whose blocks have all been moved
+		prunedBlocks.truncate((prunedHeight == 0) ? 0 : offsetOf[prunedHeight - 1] + lengthOf[prunedHeight - 1]);
+		int firstSegment = (prunedHeight < height) ? segmentOf[prunedHeight] : segments.size() - 1;
+		for(int s = 0; s < firstSegment; s++) {
+			if(segments.get(s) != null) {
+				segments.set(s, null).close();
+				Files.delete(segmentPath(s));
+			}
+		}
+	}
+
+	private void addToIndex(int s, long offset, int length, byte[] hash) {
+		if(height == segmentOf.length) {
+			segmentOf = Arrays.copyOf(segmentOf, height * 2);
+			offsetOf = Arrays.copyOf(offsetOf, height * 2);
+			lengthOf = Arrays.copyOf(lengthOf, height * 2);
+		}
+		segmentOf[height] = s;
+		offsetOf[height] = offset;
+		lengthOf[height] = length;
+		heightOfHash.put(ByteBuffer.wrap(hash.clone()), height);
+		height++;
+	}
+
+	private MappedByteBuffer mapping(int s) throws IOException {
+		MappedByteBuffer mapped = mappings.get(s);
+		if(mapped == null) {
+			FileChannel segment = segments.get(s);
+			mapped = segment.map(FileChannel.MapMode.READ_ONLY, 0, segment.size());
+			mappings.set(s, mapped);
+		}
+		return mapped;
+	}
+
+	private MappedByteBuffer prunedMapping() throws IOException {
+		if(prunedMapping == null) {
+			prunedMapping = prunedBlocks.map(FileChannel.MapMode.READ_ONLY, 0, prunedBlocks.size());
+		}
+		return prunedMapping;
+	}
+
+	private FileChannel openSegment(int s) throws IOException {
+		FileChannel segment = FileChannel.open(segmentPath(s), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		segments.add(segment);
+		mappings.add(null);
+		return segment;
+	}
+
+	private Path segmentPath(int s) {
+		return directory.resolve(String.format("blk%05d.dat", s));
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if(read < 0) {
+				throw new EOFException();
+			}
+			position += read;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package indicium_blockChain;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class BlockTree {
+	// Every known block, linked to its parent, so competing branches can be kept side by side.
+	// The best chain is the one with the most cumulative work. Each block on it has an undo record, so switching to another branch only touches the blocks between the tips and their fork point.
+	// Only the last blocks can be reorganized away: deeper blocks drop their undo records, and side branches forking below them are removed, so neither grows with the chain.
+	// Only the writer adds blocks, but other threads (e.g. RPC queries for a block on a side branch) look them up, so the nodes are kept in a concurrent map.
+
+	/** A block in the tree.
+	 * */
+	public static class Node {
+		public volatile Block block; //replaced by its header once the BlockStore holds the block deep below the tip, see Block#toHeader()
+		public final Node parent; //null for the genesis block
+		public final int height;
+		public final BigInteger chainWork; //the work of this block and all of its ancestors
+		Undo undo; //set while the block is connected to the UTXOs, and recent enough to be disconnected again
+		boolean invalid; //the block failed to connect, so neither it nor its descendants can become the tip
+		final ArrayList<Node> children = new ArrayList<Node>(); //the blocks which build on it, on every branch; only the writer reads and changes them
+
+		Node(Block block, Node parent) {
+			this.block = block;
+			this.parent = parent;
+			this.height = (parent == null) ? 0 : parent.height + 1;
+			this.chainWork = (parent == null) ? work(block) : parent.chainWork.add(work(block));
+		}
+
+		/** @param ancestorHeight - A height no greater than the node's.
+		 * @return The block's ancestor at that height, or the node itself.
+		 * */
+		public Node getAncestor(int ancestorHeight) {
+			Node node = this;
+			while(node.height > ancestorHeight) {
+				node = node.parent;
+			}
+			return node;
+		}
+	}
+
+	/** What connecting a block changed in the UTXOs, so it can be disconnected again without replaying the chain.
+	 * */
+	public static class Undo {
+		final ArrayList<TransactionOutput> spent = new ArrayList<TransactionOutput>(); //outputs the block spent, which are restored
+		final ArrayList<String> created = new ArrayList<String>(); //ids of the outputs the block created, which are removed
+
+		/** Records the changes of a block which has just been connected, i.e. whose inputs have been resolved to the outputs they spent.
+		 * @param block - The connected block.
+		 * @return The block's undo record.
+		 * */
+		public static Undo of(Block block) {
+			Undo undo = new Undo();
+			HashSet<String> created = new HashSet<String>();
+			for(Transactions transaction : block.transactions) {
+				if(transaction.inputs != null) {
+					for(TransactionInput input : transaction.inputs) {
+						//an output created earlier in the same block didn't exist before it, so it isn't restored
+						if(input.UTXO != null && !(created.contains(input.UTXO.id))) {
+							undo.spent.add(input.UTXO);
+						}
+					}
+				}
+				for(TransactionOutput output : transaction.outputs) {
+					created.add(output.id);
+					undo.created.add(output.id);
+				}
+			}
+			return undo;
+		}
+
+		/** Rebuilds a block's undo record from what its commit replaced in the UTXOs, see {@link UTXODatabase#getUndoJournal()}.
+		 * @param replaced - Output id -> the output before the block, or null if the block created it.
+		 * @return The block's undo record.
+		 * */
+		public static Undo ofReplaced(Map<String, TransactionOutput> replaced) {
+			Undo undo = new Undo();
+			for(Map.Entry<String, TransactionOutput> entry : replaced.entrySet()) {
+				if(entry.getValue() == null) {
+					undo.created.add(entry.getKey());
+				} else {
+					undo.spent.add(entry.getValue());
+				}
+			}
+			return undo;
+		}
+
+		/** Reverts the block's changes in the UTXOs' pending batch.
+		 * @param UTXOs - The UTXOs, whose state is right after the block.
+		 * */
+		public void revert(UTXODatabase UTXOs) {
+			for(String id : created) {
+				UTXOs.remove(id);
+			}
+			for(TransactionOutput output : spent) {
+				UTXOs.put(output.id, output);
+			}
+		}
+	}
+
+	private final ConcurrentHashMap<ByteBuffer, Node> nodes = new ConcurrentHashMap<ByteBuffer, Node>();
+	private volatile Node tip;
+
+	/** The work a block proves, i.e. how many hashes it takes on average to meet its target, see {@link Difficulty#work(int)}.
+	 * @param block - The mined block.
+	 * @return The block's work.
+	 * */
+	public static BigInteger work(Block block) {
+		return Difficulty.work(block.getBits());
+	}
+
+	/** Adds a block whose parent is already in the tree, or the genesis block.
+	 * @param block - The block.
+	 * @return Its node, the existing node if the block was already known, or null if its parent is unknown.
+	 * */
+	public Node add(Block block) {
+		Node known = nodes.get(ByteBuffer.wrap(block.hash));
+		if(known != null) {
+			return known;
+		}
+		Node parent = nodes.get(ByteBuffer.wrap(block.prevHash));
+		if(parent == null && !(nodes.isEmpty() && block.isGenesis())) {
+			return null;
+		}
+		Node node = new Node(block, parent);
+		node.invalid = (parent != null && parent.invalid);
+		nodes.put(ByteBuffer.wrap(block.hash), node);
+		if(parent != null) {
+			parent.children.add(node);
+		}
+		return node;
+	}
+
+	public Node getNode(byte[] hash) {
+		return nodes.get(ByteBuffer.wrap(hash));
+	}
+
+	/** @return The block with the given hash, on any branch, or null if it is unknown.
+	 * */
+	public Block getBlock(byte[] hash) {
+		Node node = getNode(hash);
+		return (node == null) ? null : node.block;
+	}
+
+	/** @return The tip of the best chain, or null if the tree is empty.
+	 * */
+	public Node getTip() {
+		return tip;
+	}
+
+	void setTip(Node node) {
+		tip = node;
+	}
+
+	/** Marks a block which failed to connect, and every block which builds on it, as invalid. Only its own descendants are visited.
+	 * */
+	void markInvalid(Node node) {
+		ArrayDeque<Node> descendants = new ArrayDeque<Node>();
+		descendants.add(node);
+		while(!(descendants.isEmpty())) {
+			Node next = descendants.poll();
+			next.invalid = true;
+			descendants.addAll(next.children);
+		}
+	}
+
+	/** Removes a block and every block which builds on it from the tree, e.g. a side branch which forks too far below the tip to ever be reorganized onto.
+	 * @param node - The first block of the branch, which isn't on the best chain.
+	 * @return The number of blocks removed.
+	 * */
+	int removeBranch(Node node) {
+		if(node.parent != null) {
+			node.parent.children.remove(node);
+		}
+		int removed = 0;
+		ArrayDeque<Node> descendants = new ArrayDeque<Node>();
+		descendants.add(node);
+		while(!(descendants.isEmpty())) {
+			Node next = descendants.poll();
+			nodes.remove(ByteBuffer.wrap(next.block.hash));
+			descendants.addAll(next.children);
+			removed++;
+		}
+		return removed;
+	}
+
+	/** Finds the last block two branches have in common.
+	 * */
+	public static Node findFork(Node a, Node b) {
+		while(a.height > b.height) {
+			a = a.parent;
+		}
+		while(b.height > a.height) {
+			b = b.parent;
+		}
+		while(a != b) {
+			a = a.parent;
+			b = b.parent;
+		}
+		return a;
+	}
+
+	/** @return The blocks after the fork point up to and including the node, oldest first.
+	 * */
+	public static ArrayList<Node> branch(Node fork, Node node) {
+		ArrayList<Node> branch = new ArrayList<Node>();
+		for(Node n = node; n != fork; n = n.parent) {
+			branch.add(n);
+		}
+		Collections.reverse(branch);
+		return branch;
+	}
+
+	/** @return The number of blocks in the tree, on every branch.
+	 * */
+	public int size() {
+		return nodes.size();
+	}
+}
@@ -0,0 +1,109 @@
+package indicium_blockChain;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ChainIndex {
+	// Content-addressed lookup of the chain, keyed by raw hash bytes: block hash -> height, transaction id -> location, and output id -> the transaction which spends it.
+	// A location packs a block's height and a transaction's position in that block into one long. The indexes are kept up to date block by block, and rebuilt while Indicium_beta.openBlockStore restores a node's chain at startup. They can be read from any thread.
+
+	private final ConcurrentHashMap<ByteBuffer, Integer> heightOfBlock = new ConcurrentHashMap<ByteBuffer, Integer>();
+	private final ConcurrentHashMap<ByteBuffer, Long> locationOfTransaction = new ConcurrentHashMap<ByteBuffer, Long>();
+	private final ConcurrentHashMap<ByteBuffer, Long> spenderOfOutput = new ConcurrentHashMap<ByteBuffer, Long>(); //output id -> location of the transaction which spent it
+
+	/** Indexes a block which has been added to the chain, together with its transactions and the outputs they spend.
+	 * @param block - The block.
+	 * @param height - The block's height, where the genesis block is 0.
+	 * */
+	public void addBlock(Block block, int height) {
+		heightOfBlock.put(ByteBuffer.wrap(block.hash), height);
+		for(int position = 0; position < block.transactions.size(); position++) {
+			Transactions transaction = block.transactions.get(position);
+			long location = location(height, position);
+			locationOfTransaction.put(key(transaction.transactionID), location);
+
+			if(transaction.inputs == null) {
+				continue; //the genesis transaction doesn't spend anything
+			}
+			for(TransactionInput input : transaction.inputs) {
+				spenderOfOutput.put(key(input.transactionOutID), location);
+			}
+		}
+	}
+
+	/** Removes a block which has been disconnected from the chain by a reorganization.
+	 * @param block - The block.
+	 * @param height - The height it had in the chain.
+	 * */
+	public void removeBlock(Block block, int height) {
+		heightOfBlock.remove(ByteBuffer.wrap(block.hash), height);
+		pruneBlock(block, height);
+	}
+
+	/** Forgets the transactions of a block whose bodies are being pruned, and the outputs they spent. The block itself can still be found by its hash.
+	 * @param block - The block, before its transactions are dropped.
+	 * @param height - The block's height.
+	 * */
+	public void pruneBlock(Block block, int height) {
+		for(int position = 0; position < block.transactions.size(); position++) {
+			Transactions transaction = block.transactions.get(position);
+			Long location = location(height, position);
+			locationOfTransaction.remove(key(transaction.transactionID), location);
+
+			if(transaction.inputs == null) {
+				continue;
+			}
+			for(TransactionInput input : transaction.inputs) {
+				spenderOfOutput.remove(key(input.transactionOutID), location);
+			}
+		}
+	}
+
+	/** @param blockHash - The raw hash of the block.
+	 * @return The height of the block, or -1 if it isn't in the chain.
+	 * */
+	public int getHeight(byte[] blockHash) {
+		Integer height = heightOfBlock.get(ByteBuffer.wrap(blockHash));
+		return (height == null) ? -1 : height;
+	}
+
+	/** @param transactionID - The id of the transaction.
+	 * @return Where the transaction is in the chain, or -1 if it hasn't been mined. See {@link #heightOf(long)} and {@link #positionOf(long)}.
+	 * */
+	public long getLocation(String transactionID) {
+		Long location = locationOfTransaction.get(key(transactionID));
+		return (location == null) ? -1 : location;
+	}
+
+	/** @param outputID - The id of the output.
+	 * @return Where the transaction which spent the output is in the chain, or -1 if the output is unspent or unknown.
+	 * */
+	public long getSpender(String outputID) {
+		Long location = spenderOfOutput.get(key(outputID));
+		return (location == null) ? -1 : location;
+	}
+
+	public int blockCount() {
+		return heightOfBlock.size();
+	}
+
+	public int transactionCount() {
+		return locationOfTransaction.size();
+	}
+
+	public static long location(int height, int position) {
+		return ((long) height << 32) | (position & 0xFFFFFFFFL);
+	}
+
+	public static int heightOf(long location) {
+		return (int) (location >>> 32);
+	}
+
+	public static int positionOf(long location) {
+		return (int) location;
+	}
+
+	private static ByteBuffer key(String id) {
+		return ByteBuffer.wrap(StringUtil.hashFromHex(id));
+	}
+}
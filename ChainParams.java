@@ -0,0 +1,57 @@
+package indicium_blockChain;
+
+import java.util.Arrays;
+
+public final class ChainParams {
+	// The consensus rules a chain is created with: how its difficulty is retargeted, how far ahead of the local clock its time stamps may run, and optionally which genesis block it starts from.
+	// They are immutable and handed to the chain's validator and miner, so a chain's rules can't change under it. A chain with other rules (e.g. a synthetic one which is mined far faster than the target block time) is created with other parameters rather than by changing them for the whole process.
+
+	public static final ChainParams DEFAULT = new ChainParams(10, 10000, 60000, null);
+
+	public final int retargetInterval; //blocks between two adjustments, 0 keeps the genesis block's target
+	public final long targetBlockTime; //in milliseconds
+	public final long maxFutureDrift; //how far a block's time stamp may be ahead of the local clock, in milliseconds
+	private final byte[] genesisHash; //the hash the chain's genesis block has to have, or null if any mined genesis block can start it
+
+	/** @param retargetInterval - Blocks between two adjustments of the target, 0 to keep the genesis block's target.
+	 * @param targetBlockTime - The time a block should take on average, in milliseconds.
+	 * @param maxFutureDrift - How far a block's time stamp may be ahead of the local clock, in milliseconds.
+	 * @param genesisHash - The hash of the chain's genesis block, or null to take the first genesis block which is mined.
+	 * */
+	public ChainParams(int retargetInterval, long targetBlockTime, long maxFutureDrift, byte[] genesisHash) {
+		if(retargetInterval < 0 || targetBlockTime <= 0 || maxFutureDrift < 0) {
+			throw new IllegalArgumentException("Invalid chain parameters: retarget interval " + retargetInterval + ", target block time " + targetBlockTime + ", future drift " + maxFutureDrift);
+		}
+		this.retargetInterval = retargetInterval;
+		this.targetBlockTime = targetBlockTime;
+		this.maxFutureDrift = maxFutureDrift;
+		this.genesisHash = (genesisHash == null) ? null : genesisHash.clone();
+	}
+
+	/** @param interval - Blocks between two adjustments of the target, 0 to keep the genesis block's target.
+	 * @return The same rules with another retarget interval.
+	 * */
+	public ChainParams withRetargetInterval(int interval) {
+		return new ChainParams(interval, targetBlockTime, maxFutureDrift, genesisHash);
+	}
+
+	/** @param hash - The hash of the chain's genesis block.
+	 * @return The same rules, which only accept that genesis block.
+	 * */
+	public ChainParams withGenesisHash(byte[] hash) {
+		return new ChainParams(retargetInterval, targetBlockTime, maxFutureDrift, hash);
+	}
+
+	/** @return The hash the chain's genesis block has to have, or null if it isn't fixed.
+	 * */
+	public byte[] getGenesisHash() {
+		return (genesisHash == null) ? null : genesisHash.clone();
+	}
+
+	/** @param hash - The hash of a genesis block.
+	 * @return True if the chain can start from a genesis block with that hash.
+	 * */
+	public boolean isGenesisHash(byte[] hash) {
+		return genesisHash == null || Arrays.equals(genesisHash, hash);
+	}
+}
@@ -0,0 +1,194 @@
+package indicium_blockChain;
+
+import java.util.*;
+
+public final class ChainState {
+	// An immutable, versioned view of the chain: its blocks and its UTXOs after the tip.
+	// A single writer (the thread adding blocks to Indicium_beta) derives a new ChainState from the last one for every committed block and publishes it in Indicium_beta.state. Readers (balance queries, Mempool admission, block templates, explorers) take that reference once and query it without taking the writer's lock, and every query on it sees the same tip, however many blocks are added in the meantime.
+	// The UTXOs aren't copied onto the heap: a version reads the committed outputs of the UTXODatabase, and corrects them with what every later batch replaced. Before the writer commits a batch it links the values the batch replaces to the version before it, so an older version finds its own values there; once no reader holds that version, the values are collected with it.
+	// Those reads go to the table directly, without the database's monitor or its cache, so a reader neither waits for a commit being forced to disk nor changes anything it reads.
+	// The blocks are kept in a copy-on-write array: a version only reads up to its own height, so appending to the array is invisible to older versions, and it is only copied on a reorganization. Blocks deep below the tip are released from the array once the BlockStore holds them, so it doesn't hold every transaction of the chain.
+
+	public static final ChainState EMPTY = new ChainState(0, -1, new Block[0], null, 0);
+
+	public final long version; //increases with every committed change
+	public final int height; //height of the tip, -1 before the genesis block
+	public final long utxoCount; //number of unspent outputs
+	private final Block[] blocks; //shared between versions; only [0, height] belongs to this one
+	private final UTXODatabase UTXOs; //the committed UTXOs of the latest version, or null if there are none
+	private volatile Changes next; //what the batch committed after this version replaced, linked before the batch is committed
+
+	/** The values a batch of UTXO changes replaced, which every version before the batch still reads.
+	 * */
+	public static final class Changes {
+		private final HashMap<String, TransactionOutput> replaced; //output id -> the output before the batch, or null if the batch created it
+		private final long utxoCount; //number of unspent outputs after the batch
+		private volatile ChainState next; //the version after the batch, once it is published
+
+		private Changes(HashMap<String, TransactionOutput> replaced, long utxoCount) {
+			this.replaced = replaced;
+			this.utxoCount = utxoCount;
+		}
+	}
+
+	private ChainState(long version, int height, Block[] blocks, UTXODatabase UTXOs, long utxoCount) {
+		this.version = version;
+		this.height = height;
+		this.blocks = blocks;
+		this.UTXOs = UTXOs;
+		this.utxoCount = utxoCount;
+	}
+
+	/** Builds a state from scratch, e.g. after the UTXOs have been loaded from a {@link UTXOSnapshot}.
+	 * @param chain - The blockchain, starting with the genesis block.
+	 * @param UTXOs - The UTXOs after its tip, without a pending batch.
+	 * @return The state.
+	 * */
+	public static ChainState of(List<Block> chain, UTXODatabase UTXOs) {
+		return new ChainState(EMPTY.version + 1, -1, EMPTY.blocks, UTXOs, UTXOs.size()).withBlocks(chain);
+	}
+
+	/** Records what the UTXOs' pending batch replaces. Only the writer calls it, right before it commits the batch, so this version and the ones before it still read their own UTXOs afterwards.
+	 * @param UTXOs - The node's UTXOs, with the batch still pending.
+	 * @return The changes, which the next version is derived with once the batch has been committed.
+	 * */
+	public Changes prepare(UTXODatabase UTXOs) {
+		HashMap<String, TransactionOutput> replaced = new HashMap<String, TransactionOutput>();
+		long count = UTXOs.size();
+		for(Map.Entry<String, TransactionOutput> change : UTXOs.getPendingChanges().entrySet()) {
+			TransactionOutput previous = UTXOs.getCommitted(change.getKey());
+			replaced.put(change.getKey(), previous);
+			count += ((change.getValue() != null) ? 1 : 0) - ((previous != null) ? 1 : 0);
+		}
+		Changes changes = new Changes(replaced, count);
+		if(UTXOs == this.UTXOs) {
+			next = changes; //a version over other UTXOs (e.g. EMPTY) doesn't read these, so nothing is kept for it
+		}
+		return changes;
+	}
+
+	/** Derives the next version. Only the writer calls it, once the changes from {@link #prepare(UTXODatabase)} have been committed.
+	 * @param chain - The blockchain after the change.
+	 * @param UTXOs - The node's UTXOs, which now hold the committed changes.
+	 * @param changes - The changes which have been committed.
+	 * @return The new state. This one still reads the blocks and UTXOs it did before.
+	 * */
+	public ChainState apply(List<Block> chain, UTXODatabase UTXOs, Changes changes) {
+		ChainState state = new ChainState(version + 1, height, blocks, UTXOs, changes.utxoCount).withBlocks(chain);
+		changes.next = state;
+		return state;
+	}
+
+	/** @return A state with the same version and UTXOs, which holds the blocks of the chain.
+	 * */
+	private ChainState withBlocks(List<Block> chain) {
+		//the blocks up to the fork point are shared; a version further along may have written past this one's height, so a shorter fork copies the array
+		int newHeight = chain.size() - 1;
+		int fork = Math.min(height, newHeight);
+		while(fork >= 0 && blocks[fork] != chain.get(fork)) {
+			fork--;
+		}
+		Block[] newBlocks = blocks;
+		if(fork < height || newHeight >= blocks.length) {
+			newBlocks = Arrays.copyOf(blocks, Math.max(blocks.length, Integer.highestOneBit(newHeight + 1) * 2));
+			Arrays.fill(newBlocks, fork + 1, newBlocks.length, null);
+		}
+		for(int h = fork + 1; h <= newHeight; h++) {
+			newBlocks[h] = chain.get(h);
+		}
+		return new ChainState(version, newHeight, newBlocks, UTXOs, utxoCount);
+	}
+
+	/** Stops holding a block which is only read from the BlockStore from now on. Only the writer calls it, for a block so far below the tip that no version will see it replaced.
+	 * <br>Every version then finds null at that height, which is safe to read without a lock, and reads the block from the store instead (see {@link Indicium_beta#getBlock(int)}).
+	 * @param blockHeight - The height of the block.
+	 * */
+	void releaseBlock(int blockHeight) {
+		if(blockHeight <= height) {
+			blocks[blockHeight] = null;
+		}
+	}
+
+	/** @return The number of blocks, i.e. the height of the tip plus 1.
+	 * */
+	public int size() {
+		return height + 1;
+	}
+
+	/** @return The tip of the chain, or null before the genesis block.
+	 * */
+	public Block getTip() {
+		return (height < 0) ? null : blocks[height];
+	}
+
+	/** @param blockHeight - The height of a block, where the genesis block is 0.
+	 * @return The block at that height in this version, which may only be its header (see {@link Block#isStored()}), or null if the chain is shorter or the block is only read from the BlockStore.
+	 * */
+	public Block getBlock(int blockHeight) {
+		return (blockHeight < 0 || blockHeight > height) ? null : blocks[blockHeight];
+	}
+
+	/** @param id - The id of an output.
+	 * @return The output, or null if it is spent or unknown in this version.
+	 * */
+	public TransactionOutput getUTXO(String id) {
+		if(UTXOs == null) {
+			return null;
+		}
+		//the database is read first: any batch it already holds was linked before it was committed, so it is found below
+		TransactionOutput output = UTXOs.getCommitted(id);
+		for(Changes changes = next; changes != null; changes = nextChanges(changes)) {
+			if(changes.replaced.containsKey(id)) {
+				return changes.replaced.get(id); //the first batch after this version to change the output replaced this version's value
+			}
+		}
+		return output;
+	}
+
+	/** @param ownerHash - The SHA-256 hash of the owner's encoded public key.
+	 * @return The owner's unspent outputs in this version.
+	 * */
+	public ArrayList<TransactionOutput> getByOwner(byte[] ownerHash) {
+		ArrayList<TransactionOutput> owned = new ArrayList<TransactionOutput>();
+		if(UTXOs == null) {
+			return owned;
+		}
+		ArrayList<TransactionOutput> committed = UTXOs.getCommittedByOwner(ownerHash);
+		Changes first = next;
+		if(first == null) {
+			return committed; //the usual case: nothing has been committed since this version
+		}
+
+		//outputs which a later batch changed are taken from the first batch to change them instead of from the database
+		HashSet<String> changed = new HashSet<String>();
+		for(Changes changes = first; changes != null; changes = nextChanges(changes)) {
+			for(Map.Entry<String, TransactionOutput> entry : changes.replaced.entrySet()) {
+				if(changed.add(entry.getKey()) && entry.getValue() != null && Arrays.equals(entry.getValue().ownerHash, ownerHash)) {
+					owned.add(entry.getValue());
+				}
+			}
+		}
+		for(TransactionOutput output : committed) {
+			if(!(changed.contains(output.id))) {
+				owned.add(output);
+			}
+		}
+		return owned;
+	}
+
+	/** @param ownerHash - The SHA-256 hash of the owner's encoded public key.
+	 * @return The sum of the owner's unspent outputs in this version, in base units.
+	 * */
+	public long getBalance(byte[] ownerHash) {
+		long total = 0;
+		for(TransactionOutput output : getByOwner(ownerHash)) {
+			total += output.value;
+		}
+		return total;
+	}
+
+	private static Changes nextChanges(Changes changes) {
+		ChainState state = changes.next;
+		return (state == null) ? null : state.next;
+	}
+}
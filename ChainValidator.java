@@ -0,0 +1,509 @@
+package indicium_blockChain;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.IntStream;
+
+public class ChainValidator implements Closeable {
+	// Validates the blockchain incrementally.
+	// Block headers don't depend on each other's results, so linkage and Proof-of-Work are checked in parallel. The validator keeps its own UTXOs, in a temporary UTXODatabase, at the last block it validated, so a validation only replays the blocks added since: it costs O(new blocks) rather than O(chain), and the UTXOs stay off the heap.
+	// The values the last few blocks replaced are kept, so the validator can step back below a block which a reorganization has replaced instead of replaying from genesis.
+	// A node's validator keeps its UTXOs in the node's data directory, committed after the last block it validated, so a restarted node continues validating from that block instead of copying the node's UTXOs or replaying the chain.
+
+	private static final int MAX_CHECKPOINTS = 8; //older checkpoints are dropped
+	private static final int MAX_UNDO_BLOCKS = 64; //how many blocks the validator's UTXOs can be rewound by; a deeper reorganization is replayed from genesis
+
+	/** A point up to which the chain has already been validated.
+	 * */
+	public static class Checkpoint {
+		public final int height; //index of the last validated block
+		public final byte[] tipHash; //hash of the last validated block
+		public final byte[] utxoDigest; //digest of the UTXOs after the last validated block
+
+		private Checkpoint(int height, byte[] tipHash, byte[] utxoDigest) {
+			this.height = height;
+			this.tipHash = tipHash;
+			this.utxoDigest = utxoDigest;
+		}
+	}
+
+	private final ArrayList<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+	private final ChainParams params; //the rules of the chain which is validated
+	private final Path directory; //where the validator's UTXOs are kept across restarts, or null if they are temporary
+	private UTXODatabase UTXOs; //the UTXOs after the last validated block, opened by the first validation
+	private final ArrayList<byte[]> validated = new ArrayList<byte[]>(); //hash of each validated block by height, ending with the block the UTXOs are at
+	private final ArrayDeque<HashMap<String, TransactionOutput>> undo = new ArrayDeque<HashMap<String, TransactionOutput>>(); //what the last blocks replaced in the UTXOs, newest first; a null value marks an output the block created
+
+	/** Creates a validator whose UTXOs are deleted when it is closed.
+	 * @param params - The rules of the chain which is validated.
+	 * */
+	public ChainValidator(ChainParams params) {
+		this(params, null);
+	}
+
+	/** Creates a validator which keeps its UTXOs in a directory, e.g. in the node's data directory, so {@link #assumeValid(List, UTXODatabase)} can continue from them after a restart.
+	 * @param params - The rules of the chain which is validated.
+	 * @param directory - The directory of the validator's UTXODatabase, or null for a temporary one.
+	 * */
+	public ChainValidator(ChainParams params, Path directory) {
+		this.params = params;
+		this.directory = directory;
+	}
+
+	/** @return The rules of the chain which is validated.
+	 * */
+	public ChainParams getParams() {
+		return params;
+	}
+
+	/** Determines if the blockchain is valid and its integrity has not been compromised, replaying only the blocks after the last one it shares with the blocks validated before.
+	 * <br>When the chain is valid, a new checkpoint is recorded at its tip.
+	 * @param chain - The blockchain, starting with the genesis block.
+	 * @param genesisOutput - The output created by the genesis transaction, which is the first UTXO.
+	 * @return True if the chain is valid, False if it is not.
+	 * */
+	public synchronized boolean validate(List<Block> chain, TransactionOutput genesisOutput) {
+		if(chain.isEmpty()) {
+			return true;
+		}
+		int common = findCommonHeight(chain);
+		if(common == chain.size() - 1) {
+			return true; //the chain, or a part of it (e.g. the blocks a pruned node drops), has been validated already
+		}
+		if(common < 0 || validated.size() - 1 - common > undo.size()) {
+			String invalid = checkGenesis(chain.get(0));
+			if(invalid != null) {
+				Log.warn(invalid);
+				return false;
+			}
+			reset(chain.get(0), genesisOutput);
+		} else {
+			rewind(common);
+		}
+		int from = validated.size();
+
+		if(!(checkHeaders(chain, from, chain.size()))) {
+			return false;
+		}
+		for(int i = from; i < chain.size(); i++) {
+			Block block = chain.get(i);
+			if(block.isStored()) {
+				block = Indicium_beta.getBlock(block.hash); //only its header is held in memory
+			}
+			if(block == null || block.isPruned()) {
+				Log.warn("#Block " + chain.get(i).getHash() + " has been pruned, so the chain can only be validated from a block after it. ");
+				return false;
+			}
+			HashMap<String, TransactionOutput> before = applyBlock(block, UTXOs);
+			if(before == null) {
+				UTXOs.rollback();
+				return false;
+			}
+			HashMap<String, TransactionOutput> replaced = new HashMap<String, TransactionOutput>();
+			for(String id : UTXOs.getPendingChanges().keySet()) {
+				replaced.put(id, before.get(id));
+			}
+			UTXOs.commit();
+			validated.add(block.hash);
+			undo.addFirst(replaced);
+			if(undo.size() > MAX_UNDO_BLOCKS) {
+				undo.removeLast();
+			}
+		}
+
+		UTXOs.commit(chain.get(chain.size() - 1).hash); //recorded once per validation, so a restart finds the block the UTXOs are after
+		addCheckpoint(new Checkpoint(chain.size() - 1, chain.get(chain.size() - 1).hash, digestUTXOs(UTXOs)));
+		return true;
+	}
+
+	/** Finds the last block the chain shares with the validated blocks. Blocks are linked by their hashes, so once a height differs every height above it does too, and the height is found by a binary search.
+	 * @return The height of the last shared block, or -1 if not even the genesis block is shared.
+	 * */
+	private int findCommonHeight(List<Block> chain) {
+		int low = 0;
+		int high = Math.min(chain.size(), validated.size()) - 1;
+		int common = -1;
+		while(low <= high) {
+			int middle = (low + high) >>> 1;
+			if(Arrays.equals(chain.get(middle).hash, validated.get(middle))) {
+				common = middle;
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return common;
+	}
+
+	/** Starts over from the genesis block with new UTXOs, which only hold the genesis output.
+	 * */
+	private void reset(Block genesis, TransactionOutput genesisOutput) {
+		close();
+		UTXOs = openUTXOs();
+		UTXOs.clear();
+		UTXOs.put(genesisOutput.id, genesisOutput);
+		UTXOs.commit(genesis.hash);
+		validated.add(genesis.hash);
+	}
+
+	private UTXODatabase openUTXOs() {
+		if(directory == null) {
+			return UTXODatabase.openTemporary();
+		}
+		try {
+			return new UTXODatabase(directory);
+		} catch(IOException ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/** Takes a chain as validated without replaying it, e.g. when a node restarts with the UTXOs it kept after the chain's tip, which it validated before the restart.
+	 * <br>A validator which keeps its UTXOs in a directory continues from the block they were committed after, if it is part of the chain: the blocks after it are replayed by the next validation. Otherwise, e.g. the first time the node runs with the directory, the node's UTXOs are copied once, and the validator continues from the chain's tip.
+	 * <br>Either way a checkpoint is recorded, with the digest the UTXOs keep, so neither set is scanned.
+	 * @param chain - The blockchain, starting with the genesis block.
+	 * @param UTXOs - The UTXOs after the chain's tip, without a pending batch.
+	 * */
+	public synchronized void assumeValid(List<Block> chain, UTXODatabase UTXOs) {
+		close();
+		this.UTXOs = openUTXOs();
+		byte[] kept = this.UTXOs.getTip();
+		int height = chain.size() - 1;
+		while(height >= 0 && !(Arrays.equals(chain.get(height).hash, kept))) {
+			height--;
+		}
+		if(height < 0) {
+			this.UTXOs.clear();
+			int[] count = new int[1];
+			UTXOs.forEach(output -> {
+				this.UTXOs.put(output.id, output);
+				if(++count[0] % 10000 == 0) {
+					this.UTXOs.commit(); //in chunks, so the pending batch stays small
+				}
+			});
+			height = chain.size() - 1;
+			this.UTXOs.commit(chain.get(height).hash);
+		}
+		for(int i = 0; i <= height; i++) {
+			validated.add(chain.get(i).hash);
+		}
+		addCheckpoint(new Checkpoint(height, chain.get(height).hash, digestUTXOs(this.UTXOs)));
+	}
+
+	/** Steps the UTXOs back to a block below the last validated one, using the values the blocks after it replaced.
+	 * @param height - The height of the block the UTXOs are rewound to.
+	 * */
+	private void rewind(int height) {
+		while(validated.size() - 1 > height) {
+			for(Map.Entry<String, TransactionOutput> entry : undo.removeFirst().entrySet()) {
+				if(entry.getValue() == null) {
+					UTXOs.remove(entry.getKey());
+				} else {
+					UTXOs.put(entry.getKey(), entry.getValue());
+				}
+			}
+			UTXOs.commit();
+			validated.remove(validated.size() - 1);
+		}
+		UTXOs.commit(validated.get(height));
+	}
+
+	/** Closes the validator's UTXOs and forgets every block it has validated. UTXOs kept in a directory stay there, committed after the last block validated.
+	 * */
+	@Override
+	public synchronized void close() {
+		if(UTXOs != null) {
+			try {
+				UTXOs.close();
+			} catch(IOException ex) {
+				ex.printStackTrace();
+				throw new RuntimeException(ex);
+			}
+			UTXOs = null;
+		}
+		validated.clear();
+		undo.clear();
+		checkpoints.clear();
+	}
+
+	/** Checks the block a chain starts from: its hash, its Proof-of-Work against the target it claims, its Merkle root if it has its transactions, and its hash against the one the chain's rules fix, if they do.
+	 * <br>No block before it sets its target, so the genesis block is checked against its own bits.
+	 * @param genesis - The genesis block, or its header.
+	 * @return A description of what is wrong with the block, or null if it is valid.
+	 * */
+	public String checkGenesis(Block genesis) {
+		if(!(genesis.isGenesis())) {
+			return "#Block " + genesis.getHash() + " is not a genesis block. ";
+		}
+		if(!(Arrays.equals(genesis.hash, genesis.calculateHash()))) {
+			return "#Genesis block hashes are not equal. ";
+		}
+		if(!(params.isGenesisHash(genesis.hash))) {
+			return "#Genesis block " + genesis.getHash() + " is not the genesis block of this chain. ";
+		}
+		if(!(Difficulty.meetsTarget(genesis.hash, genesis.getBits()))) {
+			return "#The genesis block has not been mined. ";
+		}
+		if(!(genesis.transactions.isEmpty()) && !(Arrays.equals(genesis.merkleRoot, MerkleTree.of(genesis.transactions).getRoot()))) {
+			return "#Merkle root does not match the genesis block's transactions. ";
+		}
+		return null;
+	}
+
+	/** Checks the hash, the link to the previous block and the Proof-of-Work of a range of blocks in parallel.
+	 * @param chain - The blockchain, starting with the genesis block.
+	 * @param from - The index of the first block which is checked (at least 1; the genesis block is checked by {@link #checkGenesis(Block)}).
+	 * @param to - The index after the last block which is checked.
+	 * @return True if every header in the range is valid.
+	 * */
+	public boolean checkHeaders(List<Block> chain, int from, int to) {
+		//findFirst keeps the order, so the error of the lowest invalid block is reported
+		OptionalInt invalid = IntStream.range(from, to).parallel()
+				.filter(i -> checkHeader(chain.get(i - 1), chain.get(i), Difficulty.nextBits(params, i, chain::get), Difficulty.medianTimePast(i, chain::get)) != null)
+				.findFirst();
+
+		if(invalid.isPresent()) {
+			int i = invalid.getAsInt();
+			Log.warn(checkHeader(chain.get(i - 1), chain.get(i), Difficulty.nextBits(params, i, chain::get), Difficulty.medianTimePast(i, chain::get)));
+			return false;
+		}
+		return true;
+	}
+
+	/** @param bits - The target the block has to meet, from {@link Difficulty#nextBits(ChainParams, int, java.util.function.IntFunction)}.
+	 * @param medianTime - The median time stamp of the blocks before it, from {@link Difficulty#medianTimePast(int, java.util.function.IntFunction)}.
+	 * @return A description of what is wrong with the block's header, or null if it is valid.
+	 * */
+	String checkHeader(Block prevBlock, Block currentBlock, int bits, long medianTime) {
+		//if the current hashes are not equal
+		if(!(Arrays.equals(currentBlock.hash, currentBlock.calculateHash()))) {
+			return "#Current hashes are not equal. ";
+		}
+		//if the previous hashes are not equal
+		if(!(Arrays.equals(prevBlock.hash, currentBlock.prevHash))) {
+			return "#Previous hashes are not equal. ";
+		}
+		//if the block claims a different target than its branch requires
+		if(currentBlock.getBits() != bits) {
+			return "#Block target does not match the chain's difficulty. ";
+		}
+		//if the block has not been mined
+		if(!(Difficulty.meetsTarget(currentBlock.hash, bits))) {
+			return "#This block has not been mined. ";
+		}
+		//if the time stamp could distort the next retarget: not after the blocks before it, or ahead of the local clock
+		if(currentBlock.getTimeStamp() <= medianTime) {
+			return "#Block time stamp is not later than the median of the blocks before it. ";
+		}
+		if(currentBlock.getTimeStamp() > System.currentTimeMillis() + params.maxFutureDrift) {
+			return "#Block time stamp is too far in the future. ";
+		}
+		//if the transactions don't match the Merkle root the block was mined with; a pruned block, or one only held as its header, has no transactions to check
+		if(!(currentBlock.isPruned()) && !(currentBlock.isStored()) && !(Arrays.equals(currentBlock.merkleRoot, MerkleTree.of(currentBlock.transactions).getRoot()))) {
+			return "#Merkle root does not match the block's transactions. ";
+		}
+		return null;
+	}
+
+	/** Validates a block received from another node against the tip of the chain and the live UTXOs, and applies its transactions to them.
+	 * <br>The changes are only added to the UTXOs' pending batch, which the caller commits, or rolls back if False is returned.
+	 * @param prevBlock - The tip of the chain, which the block has to extend.
+	 * @param block - The block which is being connected.
+	 * @param bits - The target the block has to meet, see {@link Difficulty#nextBits(ChainParams, BlockTree.Node)}.
+	 * @param medianTime - The median time stamp the block has to be later than, see {@link Difficulty#medianTimePast(BlockTree.Node)}.
+	 * @param UTXOs - The node's UTXOs.
+	 * @return True if the block is valid and has been applied.
+	 * */
+	public boolean connectBlock(Block prevBlock, Block block, int bits, long medianTime, UTXODatabase UTXOs) {
+		String invalid = checkHeader(prevBlock, block, bits, medianTime);
+		if(invalid != null) {
+			Log.warn(invalid);
+			return false;
+		}
+
+		return applyBlock(block, UTXOs) != null;
+	}
+
+	/** Replays a block's transactions against the outputs they touch, then adds their changes to the UTXOs' pending batch.
+	 * @return The outputs the block spends or creates again, as they were before it, or null if the block is invalid.
+	 * */
+	private HashMap<String, TransactionOutput> applyBlock(Block block, UTXODatabase UTXOs) {
+		//only the outputs the block spends, or whose ids it would create again, are copied out of the database, so it can be replayed like any other block
+		HashMap<String, TransactionOutput> spent = new HashMap<String, TransactionOutput>();
+		for(Transactions transaction : block.transactions) {
+			if(transaction.inputs == null) {
+				Log.warn("#Only the genesis block can mint coins. ");
+				return null;
+			}
+			for(TransactionInput input : transaction.inputs) {
+				TransactionOutput UTXO = UTXOs.get(input.transactionOutID);
+				if(UTXO != null) {
+					spent.put(input.transactionOutID, UTXO);
+				}
+			}
+			for(TransactionOutput output : transaction.outputs) {
+				TransactionOutput existing = UTXOs.get(output.id);
+				if(existing != null) {
+					spent.put(output.id, existing);
+				}
+			}
+		}
+		HashMap<String, TransactionOutput> before = new HashMap<String, TransactionOutput>(spent); //the replay updates spent in place
+		if(!(replayBlock(block, spent))) {
+			return null;
+		}
+
+		for(Transactions transaction : block.transactions) {
+			for(TransactionInput input : transaction.inputs) {
+				UTXOs.remove(input.transactionOutID);
+			}
+			for(TransactionOutput output : transaction.outputs) {
+				UTXOs.put(output.id, output);
+			}
+		}
+		return before;
+	}
+
+	/** Replays a block's transactions against the UTXOs, checking their signatures, values and outputs.
+	 * @param currentBlock - The block whose transactions are replayed.
+	 * @param tempUTXOs - The UTXOs before the block, which are updated in place.
+	 * @return True if every transaction of the block is valid.
+	 * */
+	boolean replayBlock(Block currentBlock, HashMap<String, TransactionOutput> tempUTXOs) {
+		long start = System.nanoTime();
+		try {
+			return replayTransactions(currentBlock, tempUTXOs);
+		} finally {
+			Metrics.blockValidation.recordSince(start);
+		}
+	}
+
+	private boolean replayTransactions(Block currentBlock, HashMap<String, TransactionOutput> tempUTXOs) {
+		TransactionOutput tempOutput;
+		boolean[] signatures = ValidationPipeline.getDefault().verifySignatures(currentBlock.transactions); //all of the block's signatures are verified in parallel up front
+		for(int t = 0; t < currentBlock.transactions.size(); t++) {
+			Transactions currentTransaction = currentBlock.transactions.get(t);
+
+			if(!(signatures[t])) {
+				Log.warn("#Transaction (" + t + ") + signature is invalid. ");
+				return false;
+			}
+			if(!(checkOutputs(currentTransaction, t, tempUTXOs))) {
+				return false;
+			}
+			//blocks read back from the BlockStore only reference their inputs by id
+			for(TransactionInput input: currentTransaction.inputs) {
+				if(input.UTXO == null) {
+					input.UTXO = tempUTXOs.get(input.transactionOutID);
+				}
+			}
+			long inputsValue = currentTransaction.getInputsValue(); //amounts are exact, so the sums have to match to the base unit
+			if(inputsValue < 0 || inputsValue != currentTransaction.getOutputsValue()) {
+				Log.warn("#Inputs are not equal to outputs in Transaction(" + t + ") ");
+				return false;
+			}
+
+			for(TransactionInput input: currentTransaction.inputs) {
+				tempOutput = tempUTXOs.get(input.transactionOutID);
+
+				if(tempOutput == null) {
+					Log.warn("#Referenced input in Transaction(" + t + ") is missing. ");
+					return false;
+				}
+
+				if(input.UTXO.value != tempOutput.value) {
+					Log.warn("#Referenced input in Transaction(" + t + ") value is invalid. ");
+					return false;
+				}
+
+				//the Sender's key is the one which spends the input, so it has to hash to the output's owner
+				if(!(tempOutput.isOwnedBy(CryptoContext.getKeyHash(currentTransaction.sender)))) {
+					Log.warn("#Referenced input in Transaction(" + t + ") isn't owned by its Sender. ");
+					return false;
+				}
+
+				tempUTXOs.remove(input.transactionOutID);
+			}
+
+			for(TransactionOutput output: currentTransaction.outputs) {
+				tempUTXOs.put(output.id, output);
+			}
+		}
+		return true;
+	}
+
+	/** Checks a transaction's outputs before any UTXO is touched: it has to pay exactly the signed value to the Recipient and the change back to the Sender, and create both outputs itself.
+	 * @return True if the outputs are valid.
+	 * */
+	private boolean checkOutputs(Transactions transaction, int t, HashMap<String, TransactionOutput> tempUTXOs) {
+		if(transaction.outputs.size() != 2) {
+			Log.warn("#Transaction(" + t + ") has " + transaction.outputs.size() + " outputs instead of a payment and its change. ");
+			return false;
+		}
+		TransactionOutput payment = transaction.outputs.get(0);
+		TransactionOutput change = transaction.outputs.get(1);
+		//the signature only covers the value, so the split between the two outputs is checked here
+		if(payment.value != transaction.value) {
+			Log.warn("#Transaction(" + t + ") pays a different value than its Sender signed. ");
+			return false;
+		}
+		//owners are compared as key hashes, byte by byte, so they match whichever process decoded the keys
+		if(!(payment.isOwnedBy(CryptoContext.getKeyHash(transaction.receiver)))) {
+			Log.warn("#Transaction(" + t + ") output recipient is not who it should be. ");
+			return false;
+		}
+		if(!(change.isOwnedBy(CryptoContext.getKeyHash(transaction.sender)))) {
+			Log.warn("#Transaction(" + t + ") output 'change' is not transfered back to Sender. ");
+			return false;
+		}
+		for(TransactionOutput output : transaction.outputs) {
+			if(transaction.transactionID == null || !(transaction.transactionID.equals(output.parentTransactionID))) {
+				Log.warn("#Transaction(" + t + ") has an output created by another transaction. ");
+				return false;
+			}
+			//an id which is already unspent would overwrite that output, handing it to a new owner
+			if(tempUTXOs.containsKey(output.id)) {
+				Log.warn("#Transaction(" + t + ") creates output " + output.id + ", which already exists. ");
+				return false;
+			}
+		}
+		if(payment.id.equals(change.id)) {
+			Log.warn("#Transaction(" + t + ") creates the same output twice. ");
+			return false;
+		}
+		return true;
+	}
+
+	/** Gets the most recent checkpoint which is still part of the chain. Checkpoints on blocks that have been replaced are discarded.
+	 * @param chain - The blockchain, starting with the genesis block.
+	 * @return The last valid checkpoint, or null if validation has to start from genesis.
+	 * */
+	public synchronized Checkpoint getLastCheckpoint(List<Block> chain) {
+		for(int i = checkpoints.size() - 1; i >= 0; i--) {
+			Checkpoint checkpoint = checkpoints.get(i);
+			if(checkpoint.height < chain.size() && Arrays.equals(chain.get(checkpoint.height).hash, checkpoint.tipHash)) {
+				return checkpoint;
+			}
+			checkpoints.remove(i);
+		}
+		return null;
+	}
+
+	private void addCheckpoint(Checkpoint checkpoint) {
+		checkpoints.add(checkpoint);
+		if(checkpoints.size() > MAX_CHECKPOINTS) {
+			checkpoints.remove(0);
+		}
+	}
+
+	/** Digests a UTXO set, so that two nodes with the same UTXOs get the same digest however their tables are laid out.
+	 * <br>The database folds every commit into the digest, so this doesn't scan the set, see {@link UTXODatabase#getDigest()}.
+	 * @param UTXOs - The unspent outputs, without a pending batch.
+	 * @return The digest of the committed UTXOs.
+	 * */
+	public static byte[] digestUTXOs(UTXODatabase UTXOs) {
+		return UTXOs.getDigest();
+	}
+}
@@ -0,0 +1,168 @@
+package indicium_blockChain;
+
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class CryptoContext {
+	// Caches the cryptographic work which is repeated for the same keys and signatures.
+	// A key's encodings are computed once, Signature objects are reused per thread instead of being looked up from the provider on every operation, and signatures which have been verified once (e.g. on admission to the Mempool) aren't verified again when the block holding them is accepted.
+
+	private static final int MAX_CACHED_KEYS = 100000;
+	private static final int VERIFIED_GENERATION_SIZE = 100000; //the verified cache holds between one and two generations of signatures
+
+	/** The encodings of a public key.
+	 * */
+	static final class KeyInfo {
+		final byte[] encoded; //X.509 encoding
+		final String encodedString; //Base64 of the X.509 encoding, as returned by StringUtil.getStringFromKey
+		final byte[] hash; //SHA-256 of the X.509 encoding, which identifies the owner of an output
+
+		KeyInfo(PublicKey key) {
+			encoded = key.getEncoded();
+			encodedString = Base64.getEncoder().encodeToString(encoded);
+			hash = StringUtil.applySHA256Raw(encoded);
+		}
+	}
+
+	/** Compares keys by identity, which is cheaper than comparing their curve points. The same key object is shared by a wallet and its transactions, and by every block decoded with BlockCodec.
+	 * */
+	private static final class IdentityKey {
+		private final PublicKey key;
+
+		IdentityKey(PublicKey key) {
+			this.key = key;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(key);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return (other instanceof IdentityKey) && ((IdentityKey) other).key == key;
+		}
+	}
+
+	private static final ConcurrentHashMap<IdentityKey, KeyInfo> keys = new ConcurrentHashMap<IdentityKey, KeyInfo>();
+
+	//once the current generation is full it becomes the previous one, and the signatures which haven't been seen since are dropped with the generation before
+	private static volatile Set<ByteBuffer> verified = ConcurrentHashMap.newKeySet();
+	private static volatile Set<ByteBuffer> previouslyVerified = ConcurrentHashMap.newKeySet();
+
+	private static final ThreadLocal<Signature> signers = ThreadLocal.withInitial(CryptoContext::newSignature);
+	private static final ThreadLocal<Signature> verifiers = ThreadLocal.withInitial(CryptoContext::newSignature);
+
+	private static Signature newSignature() {
+		try {
+			return Signature.getInstance("ECDSA", "BC");
+		} catch(Exception ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
+		}
+	}
+
+	static KeyInfo getKeyInfo(PublicKey key) {
+		IdentityKey identity = new IdentityKey(key);
+		KeyInfo info = keys.get(identity);
+		if(info == null) {
+			if(keys.size() >= MAX_CACHED_KEYS) {
+				keys.clear(); //keys are immutable, so the cache can simply start over
+			}
+			info = new KeyInfo(key);
+			keys.put(identity, info);
+		}
+		return info;
+	}
+
+	/** @param key - A public key.
+	 * @return Its X.509 encoding. The array is shared, so it must not be modified.
+	 * */
+	public static byte[] getEncoded(PublicKey key) {
+		return getKeyInfo(key).encoded;
+	}
+
+	/** @param key - A public key.
+	 * @return The Base64 String of its X.509 encoding.
+	 * */
+	public static String getEncodedString(PublicKey key) {
+		return getKeyInfo(key).encodedString;
+	}
+
+	/** @param key - A public key.
+	 * @return The SHA-256 hash of its X.509 encoding. The array is shared, so it must not be modified.
+	 * */
+	public static byte[] getKeyHash(PublicKey key) {
+		return getKeyInfo(key).hash;
+	}
+
+	/** @return This thread's ECDSA Signature object for signing. It is re-initialized with the signer's private key on every use.
+	 * */
+	public static Signature getSigner() {
+		return signers.get();
+	}
+
+	/** @return This thread's ECDSA Signature object for verification. It is re-initialized with the signer's public key on every use.
+	 * */
+	public static Signature getVerifier() {
+		return verifiers.get();
+	}
+
+	/** Verifies a signature, unless the same signature over the same data has already been verified.
+	 * <br>The cache is keyed by the hash of the data and the signature, so a transaction whose contents changed after it was verified is verified again.
+	 * @param key - The public key of the signer.
+	 * @param data - The signed bytes.
+	 * @param signature - The signature.
+	 * @param verifier - The Signature object which is used if the signature has to be verified.
+	 * @return True if the signature is valid.
+	 * */
+	public static boolean verify(PublicKey key, byte[] data, byte[] signature, Signature verifier) {
+		ByteBuffer digest = ByteBuffer.wrap(StringUtil.applySHA256Raw(data, signature));
+		if(verified.contains(digest) || previouslyVerified.contains(digest)) {
+			Metrics.signatureCacheHits.mark();
+			return true;
+		}
+
+		Metrics.signatureVerifications.mark();
+		try {
+			verifier.initVerify(key); //initializes public key for verification
+			verifier.update(data); //updates the data to be verified
+			if(!(verifier.verify(signature))) {
+				return false; //only valid signatures are cached
+			}
+		} catch(SignatureException ex) {
+			return false; //a malformed signature is simply invalid
+		} catch(Exception ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
+		}
+
+		remember(digest);
+		return true;
+	}
+
+	private static void remember(ByteBuffer digest) {
+		Set<ByteBuffer> current = verified;
+		current.add(digest);
+		if(current.size() >= VERIFIED_GENERATION_SIZE) {
+			synchronized(CryptoContext.class) {
+				if(verified == current) {
+					previouslyVerified = current;
+					verified = ConcurrentHashMap.newKeySet();
+				}
+			}
+		}
+	}
+
+	/** Forgets every verified signature, e.g. so a benchmark measures the verification itself.
+	 * */
+	public static void clearVerifiedSignatures() {
+		synchronized(CryptoContext.class) {
+			verified = ConcurrentHashMap.newKeySet();
+			previouslyVerified = ConcurrentHashMap.newKeySet();
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package indicium_blockChain;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
+
+public class Difficulty {
+	// Proof-of-Work as a 256-bit target: a block is mined when its hash, read as an unsigned big-endian number, is at most the target.
+	// Headers hold the target in the 4-byte compact form ("bits": 1 exponent byte and a 3-byte mantissa). Every retargetInterval blocks the target is scaled by how long the last interval actually took, so the block time stays close to targetBlockTime however much hash rate joins or leaves. Both belong to the chain's ChainParams, which every retarget is given.
+	// Retargeting trusts the blocks' time stamps, so a block has to be later than the median of the blocks before it and can't be far ahead of the local clock; a miner can't stretch or squeeze an interval by much more than that.
+
+	public static final int MAX_ADJUSTMENT = 4; //the most the target changes by in one retarget, either way
+	public static final int MEDIAN_TIME_SPAN = 11; //the blocks whose median time stamp a new block has to be later than
+
+	public static final BigInteger MAX_TARGET = BigInteger.ONE.shiftLeft(252); //the easiest target: 1 leading hexadecimal 0
+
+	/** Converts a difficulty in leading hexadecimal 0s, as blocks were mined before targets, into compact bits. The target is 2^(256 - 4 * difficulty), which a hash meets exactly when it starts with that many 0 nibbles.
+	 * @param difficulty - How many leading hexadecimal 0s a hash needs to have.
+	 * @return The target in compact form.
+	 * */
+	public static int ofLeadingZeros(int difficulty) {
+		return toCompact(BigInteger.ONE.shiftLeft(256 - 4 * difficulty));
+	}
+
+	/** @param bits - A target in compact form.
+	 * @return The target.
+	 * */
+	public static BigInteger fromCompact(int bits) {
+		int size = bits >>> 24;
+		BigInteger mantissa = BigInteger.valueOf(bits & 0x007FFFFF);
+		return (size <= 3) ? mantissa.shiftRight(8 * (3 - size)) : mantissa.shiftLeft(8 * (size - 3));
+	}
+
+	/** Encodes a target in compact form. Only the 3 most significant bytes are kept, so the target is rounded down.
+	 * @param target - The target.
+	 * @return The compact bits.
+	 * */
+	public static int toCompact(BigInteger target) {
+		int size = (target.bitLength() + 7) / 8;
+		long mantissa = (size <= 3) ? target.longValue() << (8 * (3 - size)) : target.shiftRight(8 * (size - 3)).longValue();
+		//the mantissa's top bit would be read as a sign, so a larger exponent is used instead
+		if((mantissa & 0x00800000) != 0) {
+			mantissa >>>= 8;
+			size++;
+		}
+		return (int) (mantissa | ((long) size << 24));
+	}
+
+	/** @param bits - A target in compact form.
+	 * @return The target as 32 big-endian bytes, which can be compared with raw hashes.
+	 * */
+	public static byte[] toTarget(int bits) {
+		BigInteger target = fromCompact(bits);
+		byte[] bytes = new byte[32];
+		if(target.bitLength() > 256) {
+			Arrays.fill(bytes, (byte) 0xFF);
+			return bytes;
+		}
+		byte[] magnitude = target.toByteArray(); //may have a leading 0 for the sign
+		int length = Math.min(magnitude.length, 32);
+		System.arraycopy(magnitude, magnitude.length - length, bytes, 32 - length, length);
+		return bytes;
+	}
+
+	/** Checks a hash against a target directly on the digest bytes.
+	 * @param hash - The raw SHA-256 digest.
+	 * @param target - The target as 32 big-endian bytes, see {@link #toTarget(int)}.
+	 * @return True if the hash is at most the target.
+	 * */
+	public static boolean meetsTarget(byte[] hash, byte[] target) {
+		return Arrays.compareUnsigned(hash, target) <= 0;
+	}
+
+	/** Checks a header's Proof-of-Work against the target it claims, e.g. before its block has been downloaded.
+	 * @param hash - The header's hash.
+	 * @param bits - The header's compact target.
+	 * @return True if the target is no easier than {@link #MAX_TARGET} and the hash meets it.
+	 * */
+	public static boolean meetsTarget(byte[] hash, int bits) {
+		BigInteger target = fromCompact(bits);
+		return target.signum() > 0 && target.compareTo(MAX_TARGET) <= 0 && meetsTarget(hash, toTarget(bits));
+	}
+
+	/** The work a block proves, i.e. how many hashes it takes on average to meet its target: 2^256 / (target + 1).
+	 * @param bits - The block's compact target.
+	 * @return The block's work.
+	 * */
+	public static BigInteger work(int bits) {
+		BigInteger target = fromCompact(bits);
+		return BigInteger.ONE.shiftLeft(256).divide(target.add(BigInteger.ONE));
+	}
+
+	/** Computes the target a block has to meet from the blocks before it on its branch.
+	 * <br>Within an interval every block keeps its parent's target. At the start of a new interval, the target is multiplied by the time the last interval took over the time it should have taken, bounded by {@link #MAX_ADJUSTMENT} and {@link #MAX_TARGET}.
+	 * @param params - The rules of the chain.
+	 * @param height - The height of the block, at least 1.
+	 * @param blockAt - Gets the block at a lower height on the same branch.
+	 * @return The block's compact target.
+	 * */
+	public static int nextBits(ChainParams params, int height, IntFunction<Block> blockAt) {
+		Block parent = blockAt.apply(height - 1);
+		if(params.retargetInterval <= 0 || height % params.retargetInterval != 0) {
+			return parent.getBits();
+		}
+		int firstHeight = Math.max(0, height - 1 - params.retargetInterval);
+		int intervals = (height - 1) - firstHeight;
+		if(intervals == 0) {
+			return parent.getBits();
+		}
+
+		long expected = intervals * params.targetBlockTime;
+		long actual = parent.getTimeStamp() - blockAt.apply(firstHeight).getTimeStamp();
+		actual = Math.max(expected / MAX_ADJUSTMENT, Math.min(expected * MAX_ADJUSTMENT, actual));
+
+		BigInteger target = fromCompact(parent.getBits()).multiply(BigInteger.valueOf(actual)).divide(BigInteger.valueOf(expected));
+		return toCompact(target.min(MAX_TARGET));
+	}
+
+	/** The median time stamp of the last {@link #MEDIAN_TIME_SPAN} blocks before a height, which the block at that height has to be later than.
+	 * @param height - The height of the block, at least 1.
+	 * @param blockAt - Gets the block at a lower height on the same branch.
+	 * @return The median time stamp, in milliseconds.
+	 * */
+	public static long medianTimePast(int height, IntFunction<Block> blockAt) {
+		long[] times = new long[Math.min(MEDIAN_TIME_SPAN, height)];
+		for(int i = 0; i < times.length; i++) {
+			times[i] = blockAt.apply(height - 1 - i).getTimeStamp();
+		}
+		Arrays.sort(times);
+		return times[times.length / 2];
+	}
+
+	/** @param parent - A block in the {@link BlockTree}.
+	 * @return The median time stamp a block which builds on it has to be later than.
+	 * */
+	public static long medianTimePast(BlockTree.Node parent) {
+		long[] times = new long[Math.min(MEDIAN_TIME_SPAN, parent.height + 1)];
+		BlockTree.Node node = parent;
+		for(int i = 0; i < times.length; i++, node = node.parent) {
+			times[i] = node.block.getTimeStamp();
+		}
+		Arrays.sort(times);
+		return times[times.length / 2];
+	}
+
+	/** @param params - The rules of the chain.
+	 * @param chain - A chain, starting with the genesis block.
+	 * @return The target of the block which extends the chain.
+	 * */
+	public static int nextBits(ChainParams params, List<Block> chain) {
+		return nextBits(params, chain.size(), chain::get);
+	}
+
+	/** @param params - The rules of the chain.
+	 * @param parent - A block in the {@link BlockTree}.
+	 * @return The target of a block which builds on it.
+	 * */
+	public static int nextBits(ChainParams params, BlockTree.Node parent) {
+		return nextBits(params, parent.height + 1, height -> parent.getAncestor(height).block);
+	}
+}
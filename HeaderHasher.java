@@ -0,0 +1,109 @@
+package indicium_blockChain;
+
+public class HeaderHasher {
+	// SHA-256 of the fixed-width 80-byte block header, with the midstate of the first 64 bytes cached.
+	// The previous hash and the Merkle root fill exactly the first 64-byte SHA-256 block, so for every nonce only the last block (time stamp, target bits, nonce and padding) is compressed.
+
+	private static final int[] K = {
+			0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+			0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+			0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+			0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+			0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+			0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+			0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+			0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2 }; //SHA-256 round constants
+
+	private static final int[] H0 = {
+			0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19 }; //SHA-256 initial hash value
+
+	private final int[] midstate = new int[8]; //state after the first 64 bytes of the header
+	private final int[] tail = new int[3]; //time stamp (2 words) and target bits, which precede the nonce in the last block
+	private final int[] state = new int[8]; //working state, reused for every nonce
+	private final int[] w = new int[64]; //message schedule, reused for every nonce
+
+	/** Caches the midstate of a header. The header's nonce is ignored, as it is supplied on every call to {@link #hash(int, byte[])}.
+	 * @param header - A serialized header of {@link Block#HEADER_SIZE} bytes.
+	 * */
+	public HeaderHasher(byte[] header) {
+		if(header.length != Block.HEADER_SIZE) {
+			throw new IllegalArgumentException("Header must be " + Block.HEADER_SIZE + " bytes. ");
+		}
+		System.arraycopy(H0, 0, midstate, 0, 8);
+		for(int i = 0; i < 16; i++) {
+			w[i] = readInt(header, i * 4);
+		}
+		compress(midstate);
+
+		for(int i = 0; i < 3; i++) {
+			tail[i] = readInt(header, 64 + i * 4);
+		}
+	}
+
+	/** Hashes the header with the given nonce, compressing only its last SHA-256 block. Nothing is allocated.
+	 * @param nonce - The nonce which is placed in the last 4 bytes of the header.
+	 * @param out - Receives the 32-byte digest.
+	 * */
+	public void hash(int nonce, byte[] out) {
+		w[0] = tail[0];
+		w[1] = tail[1];
+		w[2] = tail[2];
+		w[3] = nonce;
+		w[4] = 0x80000000; //padding starts right after the 80 bytes of the header
+		for(int i = 5; i < 15; i++) {
+			w[i] = 0;
+		}
+		w[15] = Block.HEADER_SIZE * 8; //message length in bits
+
+		System.arraycopy(midstate, 0, state, 0, 8);
+		compress(state);
+
+		for(int i = 0; i < 8; i++) {
+			out[i * 4] = (byte) (state[i] >>> 24);
+			out[i * 4 + 1] = (byte) (state[i] >>> 16);
+			out[i * 4 + 2] = (byte) (state[i] >>> 8);
+			out[i * 4 + 3] = (byte) state[i];
+		}
+	}
+
+	/** The SHA-256 compression function. Expands the first 16 words of <code>w</code> and folds them into <code>h</code>.
+	 * */
+	private void compress(int[] h) {
+		for(int i = 16; i < 64; i++) {
+			int s0 = Integer.rotateRight(w[i - 15], 7) ^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+			int s1 = Integer.rotateRight(w[i - 2], 17) ^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+			w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+		}
+
+		int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4], f = h[5], g = h[6], hh = h[7];
+		for(int i = 0; i < 64; i++) {
+			int S1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+			int ch = (e & f) ^ (~e & g);
+			int temp1 = hh + S1 + ch + K[i] + w[i];
+			int S0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+			int maj = (a & b) ^ (a & c) ^ (b & c);
+			int temp2 = S0 + maj;
+
+			hh = g;
+			g = f;
+			f = e;
+			e = d + temp1;
+			d = c;
+			c = b;
+			b = a;
+			a = temp1 + temp2;
+		}
+		h[0] += a;
+		h[1] += b;
+		h[2] += c;
+		h[3] += d;
+		h[4] += e;
+		h[5] += f;
+		h[6] += g;
+		h[7] += hh;
+	}
+
+	private static int readInt(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+	}
+}
@@ -1,27 +1,47 @@
 package indicium_blockChain;
 
 import java.io.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.*;
 import java.util.*;
-import com.google.gson.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Indicium_beta {
 
-	public static ArrayList<Block> blockchain = new ArrayList<Block>();
-	public static HashMap<String, TransactionOutput> UTXOs = new HashMap<String, TransactionOutput>();
-
-	public static final int difficulty = 5; //mining difficulty
-	public static float minTransaction = 0.1f; //transaction between two parties has to be at least 0.1 Indiciums
+	public static ArrayList<Block> blockchain = new ArrayList<Block>(); //the best chain, from the genesis block to the tip of the blockTree, with only the headers of older blocks (see cachedBlocks); only the writer adding blocks uses it
+	public static volatile ChainState state = ChainState.EMPTY; //the last committed blocks and UTXOs, which other threads read without locks
+	public static BlockTree blockTree = new BlockTree(); //every known block, including competing branches
+	public static UTXODatabase UTXOs = UTXODatabase.openTemporary(); //replaced by the UTXODatabase in the node's data directory when it has one, see openDataDirectory
+
+	public static final int difficulty = 5; //difficulty of the genesis block in leading hexadecimal 0s; the blocks after it are retargeted (see Difficulty)
+	public static Mempool mempool = new Mempool(100000); //transactions waiting to be mined
+	public static int maxBlockTransactions = 1000; //the most transactions a block template holds
+	public static BlockStore blockStore; //when set, every block added to the blockchain is also persisted
+	public static ChainIndex chainIndex = new ChainIndex(); //finds blocks, transactions and spends by their hashes
+	public static PeerNetwork network; //when set, every block added to the blockchain is announced to the node's peers
+	public static ChainParams params = ChainParams.DEFAULT; //the rules of the node's chain, chosen before the chain is created or opened and handed to its validator and miner
+	public static ChainValidator validator = new ChainValidator(params); //remembers how far the chain has already been validated
+	public static long minTransaction = Amount.COIN / 10; //transaction between two parties has to be at least 0.1 Indiciums
+	public static int pruneDepth; //when above 0 the node is pruned: only the last pruneDepth blocks keep their transactions, older blocks are reduced to their headers
+	public static long pruneTarget = 512L * 1024 * 1024; //the size a pruned node's block store is kept to, in bytes; the last pruneDepth blocks are kept whatever it is
+	public static int prunedHeight; //the blocks below this height (apart from the genesis block) have been pruned
+	public static int maxReorgDepth = 100; //the most blocks a reorganization disconnects; deeper blocks drop their undo records and side branches forking below them are dropped, so keep it no larger than cachedBlocks
+	public static int cachedBlocks = 100; //with a blockStore, only the last cachedBlocks blocks keep their transactions on the heap; older blocks only keep their headers, and are read back from the store when needed
+	private static final int PRUNE_INTERVAL = 64; //blocks are pruned in batches, as each batch validates the chain up to it first
+	private static Future<Boolean> historyValidation; //the replay of the chain's history after bootstrapping, which needs the blocks up to the snapshot
+	private static volatile Thread miningThread; //the thread mining the next block while the node mines, see startMining
+	private static final AtomicLong blocksMined = new AtomicLong(); //blocks the mining thread has added to the blockchain
 	
-	public static Wallet firstWallet; 
-	public static Wallet walletB;
+	public static Wallet_beta firstWallet; 
+	public static Wallet_beta walletB;
 	public static Transactions genesisTransaction;
 	
 	public static int walletCounter;
-	public static Wallet currentWallet;
+	public static Wallet_beta currentWallet;
 
 
-	public static Scanner sc = new Scanner(System.in);
 	/** Determines if a block is valid
 	 * @return True if the block is valid, False if it is not. 
 	 * */
@@ -33,12 +53,12 @@ public class Indicium_beta {
 			currentBlock = blockchain.get(i);
 			previousBlock = blockchain.get(i - 1);
 
-			if(!(currentBlock.hash.equals(currentBlock.calculateHash()))) {
-				System.out.println("Current hashes are not equal.");
+			if(!(Arrays.equals(currentBlock.hash, currentBlock.calculateHash()))) {
+				Log.warn("Current hashes are not equal.");
 				return false;
 			}
-			if(!(currentBlock.prevHash.equals(previousBlock.hash))) {
-				System.out.println("Previous hashes are not equal.");
+			if(!(Arrays.equals(currentBlock.prevHash, previousBlock.hash))) {
+				Log.warn("Previous hashes are not equal.");
 				return false;
 			}
 		}
@@ -48,90 +68,721 @@ public class Indicium_beta {
 	 * @return True if the chain is valid, False if it is not.
 	 * */
 	public static boolean isChainValid() {
-		Block currentBlock;
-		Block prevBlock;
+		//only the blocks after the last one the validator has already replayed are replayed
+		if(!(validator.validate(blockchain, genesisTransaction.outputs.get(0)))) {
+			return false;
+		}
 
-		String hashTarget = new String(new char[difficulty]).replace('\0', '0');
-		HashMap<String, TransactionOutput> tempUTXOs = new HashMap<String, TransactionOutput>();
-		tempUTXOs.put(genesisTransaction.outputs.get(0).id, genesisTransaction.outputs.get(0));
+		Log.info("#Blockchain is valid");
+		return true;	
+	}
+	
+	/** Adds a block to the blockchain after it has been successfully mined. 
+	 * <br>The UTXO changes made while its transactions were added are discarded, and the mined block is validated and connected like one from a peer (see {@link #acceptBlock(Block)}).
+	 * @param newBlock - the block which is being added to the blockchain.
+	 * @return True once the block has been mined and added, False if mining was cancelled or the block is invalid. 
+	 * */
+	public static synchronized boolean addBlock(Block newBlock) {
+		boolean mined = newBlock.mineBlock(Difficulty.nextBits(params, blockchain));
+		UTXOs.rollback();
+		return mined && acceptBlock(newBlock);
+	}
 
-		//iterate through the blockchain to check hashes
-		for(int i = 1; i < blockchain.size(); i++) {
-			currentBlock = blockchain.get(i);
-			prevBlock = blockchain.get(i - 1);
-			
-			//if the current hashes are not equal
-			if(!(currentBlock.hash.equals(currentBlock.calculateHash()))) {
-				System.out.println("#Current hashes are not equal. ");
+	/** Adds a block which has already been mined to the blockchain, commits its UTXO changes and removes its transactions from the Mempool.
+	 * @param newBlock - the mined block which is being added to the blockchain.
+	 * */
+	public static synchronized void appendBlock(Block newBlock) {
+		BlockTree.Node node = blockTree.add(newBlock);
+		node.undo = BlockTree.Undo.of(newBlock); //the block's inputs have been resolved to the outputs they spent while it was built
+		linkBlock(node);
+		commitState(); //every UTXO change made by the block's transactions is applied as one atomic batch
+		if(network != null) {
+			network.announceBlock(newBlock, blockchain.size() - 1);
+		}
+		pruneBlocks();
+	}
+
+	/** Commits the UTXOs' pending batch and publishes the blockchain and UTXOs after it as the next {@link #state}.
+	 * */
+	private static void commitState() {
+		ChainState.Changes changes = state.prepare(UTXOs);
+		UTXOs.commit(blockchain.get(blockchain.size() - 1).hash);
+		state = state.apply(blockchain, UTXOs, changes);
+	}
+
+	/** Makes a connected block the new tip of the blockchain, without committing the UTXOs or announcing it, which is done once the new state is published.
+	 * */
+	private static void linkBlock(BlockTree.Node node) {
+		Block newBlock = node.block;
+		Miner.getDefault().cancel(); //a block being mined on the old tip would be stale
+		blockTree.setTip(node);
+		blockchain.add(newBlock);
+		chainIndex.addBlock(newBlock, blockchain.size() - 1);
+		mempool.removeAll(newBlock.transactions);
+
+		if(blockStore != null) {
+			try {
+				blockStore.append(newBlock);
+			} catch(IOException ex) {
+				ex.printStackTrace();
+				throw new RuntimeException(ex);
+			}
+			releaseBlock(blockchain.size() - 1 - cachedBlocks);
+		}
+		forgetBelowReorgDepth(node);
+	}
+
+	/** Forgets what a reorganization from a new tip could never reach, which is at most {@link #maxReorgDepth} blocks deep: the undo record of the block just below that depth, and every side branch which forks before it.
+	 * <br>Each new tip moves the depth by one block, so every undo record and side branch is dropped once, and the blockTree only keeps side branches near the tip.
+	 * @param tip - The new tip of the blockchain.
+	 * */
+	private static void forgetBelowReorgDepth(BlockTree.Node tip) {
+		int height = tip.height - maxReorgDepth; //disconnecting this block would be one block too deep
+		if(height <= 0) {
+			return;
+		}
+		BlockTree.Node deep = blockTree.getNode(blockchain.get(height).hash);
+		deep.undo = null;
+		BlockTree.Node fork = deep.parent;
+		for(BlockTree.Node child : new ArrayList<BlockTree.Node>(fork.children)) {
+			if(child != deep) {
+				Log.info("#Dropped " + blockTree.removeBranch(child) + " blocks of a side branch which forks more than " + maxReorgDepth + " blocks below the tip. ");
+			}
+		}
+	}
+
+	/** Keeps only the header of a block deep below the tip in memory, once the block store holds it, so the heap doesn't grow with the chain. Its transactions are read back from the store when needed (see {@link #getBlock(int)}).
+	 * @param height - The height of the block. The genesis block is always kept whole.
+	 * */
+	private static void releaseBlock(int height) {
+		if(blockStore == null || height <= 0 || height >= blockStore.size() || blockchain.get(height).isStored()) {
+			return;
+		}
+		Block block = blockchain.get(height);
+		Block header = block.toHeader();
+		blockchain.set(height, header);
+		BlockTree.Node node = blockTree.getNode(block.hash);
+		if(node != null) {
+			node.block = header;
+		}
+		state.releaseBlock(height);
+	}
+
+	/** Adds a block which was mined by another node, after validating it against the tip of the chain and the UTXOs.
+	 * <br>A block on another branch is kept in the blockTree, and the blockchain is reorganized onto that branch once it has more work than the current one.
+	 * <br>A node which starts without a chain takes the first block it is given as its genesis block.
+	 * @param block - The block which has been received.
+	 * @return True if the block has been added to the blockchain or to one of its branches.
+	 * */
+	public static synchronized boolean acceptBlock(Block block) {
+		if(blockchain.isEmpty()) {
+			String invalid = validator.checkGenesis(block);
+			if(invalid != null || block.transactions.size() != 1) {
+				Log.warn((invalid != null) ? invalid : "#The first block received is not a genesis block. ");
 				return false;
 			}
-			//if the previous hashes are not equal
-			if(!(prevBlock.hash.equals(currentBlock.prevHash))) {
-				System.out.println("#Previous hashes are not equal. ");
+			genesisTransaction = block.transactions.get(0);
+			for(TransactionOutput output : genesisTransaction.outputs) {
+				UTXOs.put(output.id, output);
+			}
+			appendBlock(block);
+			return true;
+		}
+
+		if(blockTree.getNode(block.hash) != null) {
+			return true; //already known
+		}
+		BlockTree.Node tip = blockTree.getTip();
+		if(Arrays.equals(block.prevHash, tip.block.hash)) {
+			if(!(validator.connectBlock(tip.block, block, Difficulty.nextBits(params, tip), Difficulty.medianTimePast(tip), UTXOs))) {
+				UTXOs.rollback();
+				return false;
+			}
+			appendBlock(block);
+			return true;
+		}
+
+		BlockTree.Node parent = blockTree.getNode(block.prevHash);
+		if(parent == null) {
+			Log.warn("#Block " + block.getHash() + " doesn't build on a known block. ");
+			return false;
+		}
+		if(tip.height - parent.height > maxReorgDepth && parent == blockTree.getNode(blockchain.get(parent.height).hash)) {
+			Log.warn("#Block " + block.getHash() + " forks more than " + maxReorgDepth + " blocks below the tip. ");
+			return false;
+		}
+		String invalid = validator.checkHeader(parent.block, block, Difficulty.nextBits(params, parent), Difficulty.medianTimePast(parent)); //the transactions can only be checked once the branch is connected
+		if(invalid != null) {
+			Log.warn(invalid);
+			return false;
+		}
+		BlockTree.Node node = blockTree.add(block);
+		if(node.invalid || node.chainWork.compareTo(tip.chainWork) <= 0) {
+			Log.info("#Block " + block.getHash() + " has been added to a side branch at height " + node.height + ". ");
+			return !(node.invalid);
+		}
+		return reorganize(node);
+	}
+
+	/** Switches the blockchain to the branch ending in a block with more work than the current tip.
+	 * <br>The blocks after the fork point are disconnected using their undo records, then the new branch is connected, all in one UTXO batch. This costs O(blocks rolled back + blocks connected), and if any block of the new branch is invalid, the batch is discarded and the blockchain stays as it was.
+	 * @param newTip - The tip of the new branch.
+	 * @return True if the blockchain has been reorganized.
+	 * */
+	public static synchronized boolean reorganize(BlockTree.Node newTip) {
+		BlockTree.Node oldTip = blockTree.getTip();
+		BlockTree.Node fork = BlockTree.findFork(oldTip, newTip);
+
+		for(BlockTree.Node node = oldTip; node != fork; node = node.parent) {
+			if(node.undo == null || node.block.isStored()) {
+				Log.warn("#Can't reorganize more than " + maxReorgDepth + " blocks deep, below the UTXO snapshot the node was bootstrapped from, below its pruned blocks, or below the blocks it only holds the headers of. ");
 				return false;
 			}
-			//if the block has not been mined
-			if(!(currentBlock.hash.substring(0, difficulty).equals(hashTarget))) {
-				System.out.println("#This block has not been mined. ");
+		}
+		for(BlockTree.Node node = oldTip; node != fork; node = node.parent) {
+			node.undo.revert(UTXOs);
+		}
+		ArrayList<BlockTree.Node> branch = BlockTree.branch(fork, newTip);
+		BlockTree.Node previous = fork;
+		for(BlockTree.Node node : branch) {
+			if(!(validator.connectBlock(previous.block, node.block, Difficulty.nextBits(params, previous), Difficulty.medianTimePast(previous), UTXOs))) {
+				Log.warn("#Block " + node.block.getHash() + " failed to connect. Staying on the current branch. ");
+				UTXOs.rollback();
+				blockTree.markInvalid(node);
 				return false;
 			}
+			node.undo = BlockTree.Undo.of(node.block);
+			previous = node;
+		}
 
-			TransactionOutput tempOutput;
-			for(int t = 0; i < currentBlock.transactions.size(); t++) {
-				Transactions currentTransaction = currentBlock.transactions.get(t);
+		//the UTXOs are committed first, so a crash during the rest leaves them consistent with the new branch
+		ArrayList<Block> disconnected = new ArrayList<Block>();
+		for(BlockTree.Node node = oldTip; node != fork; node = node.parent) {
+			node.undo = null;
+			disconnected.add(node.block);
+		}
+		ChainState.Changes changes = state.prepare(UTXOs);
+		UTXOs.commit(newTip.block.hash);
 
-				if(!(currentTransaction.verifySignature())) {
-					System.out.println("#Transaction (" + t + ") + signature is invalid. ");
-					return false;
-				}
-				if(currentTransaction.getInputsValue() != currentTransaction.getOutputsValue()) {
-					System.out.print("#Inputs are not equal to outputs in Transaction(" + t + ")");
-					return false;
+		for(int height = blockchain.size() - 1; height > fork.height; height--) {
+			chainIndex.removeBlock(blockchain.remove(height), height);
+		}
+		blockTree.setTip(fork);
+		if(blockStore != null) {
+			try {
+				blockStore.truncate(fork.height + 1);
+			} catch(IOException ex) {
+				ex.printStackTrace();
+				throw new RuntimeException(ex);
+			}
+		}
+		for(BlockTree.Node node : branch) {
+			linkBlock(node);
+		}
+		state = state.apply(blockchain, UTXOs, changes);
+		if(network != null) {
+			for(BlockTree.Node node : branch) {
+				network.announceBlock(node.block, node.height);
+			}
+		}
+
+		//transactions of the abandoned blocks go back to the Mempool, unless the new branch already spends their inputs
+		for(Block block : disconnected) {
+			for(Transactions transaction : block.transactions) {
+				mempool.add(transaction);
+			}
+		}
+		Log.info("#Reorganized onto a branch of " + branch.size() + " blocks, replacing " + disconnected.size() + " blocks after height " + fork.height + ". ");
+		pruneBlocks();
+		return true;
+	}
+
+	/** Drops the transactions of the blocks more than {@link #pruneDepth} blocks below the tip, if the node is pruned. Their headers stay in the blockchain, so the Merkle roots still commit to them, and the UTXOs already hold what they left unspent.
+	 * <br>The chain up to the pruned blocks is validated first, so the validator's own UTXOs are past them and new blocks are validated from there. Their undo records are dropped as well, so the node can't reorganize below them.
+	 * <br>The block store is then reduced to {@link #pruneTarget} by deleting its oldest segments, which bounds both the heap and the disk a node needs.
+	 * */
+	private static void pruneBlocks() {
+		int pruneHeight = blockchain.size() - pruneDepth; //the blocks below this height are pruned
+		if(pruneDepth <= 0 || pruneHeight - Math.max(prunedHeight, 1) < PRUNE_INTERVAL) {
+			return;
+		}
+		if(historyValidation != null && !(historyValidation.isDone())) {
+			return; //the history up to the UTXO snapshot is still being replayed from these blocks
+		}
+		if(!(validator.validate(blockchain.subList(0, pruneHeight), genesisTransaction.outputs.get(0)))) {
+			Log.error("#The blockchain is invalid below height " + pruneHeight + ", so its blocks aren't pruned. ");
+			return;
+		}
+
+		for(int height = Math.max(prunedHeight, 1); height < pruneHeight; height++) {
+			Block block = blockchain.get(height);
+			chainIndex.pruneBlock(block.isStored() ? getBlock(height) : block, height);
+			block.prune();
+			blockTree.getNode(block.hash).undo = null;
+		}
+		prunedHeight = pruneHeight;
+		if(blockStore != null) {
+			try {
+				blockStore.prune(pruneHeight, pruneTarget);
+			} catch(IOException ex) {
+				ex.printStackTrace();
+				throw new RuntimeException(ex);
+			}
+		}
+		Log.info("#Pruned the transactions of the blocks below height " + pruneHeight + ". ");
+	}
+
+	/** Admits a transaction to the Mempool and announces it to the node's peers.
+	 * @param transaction - A signed transaction, e.g. from {@link Wallet_beta#sendFunds(PublicKey, long)}.
+	 * @return True if the transaction was admitted.
+	 * */
+	public static boolean submitTransaction(Transactions transaction) {
+		if(!(mempool.add(transaction))) {
+			return false;
+		}
+		if(network != null) {
+			network.announceTransaction(transaction);
+		}
+		return true;
+	}
+
+	/** Chooses the rules of the node's chain, which its validator and miner follow from then on. They can't change under a chain, so they are chosen before it is created, synced or opened.
+	 * @param chainParams - The rules of the chain.
+	 * */
+	public static synchronized void setParams(ChainParams chainParams) {
+		if(!(blockchain.isEmpty())) {
+			throw new IllegalStateException("#The node already has a chain, so its rules can't be changed. ");
+		}
+		params = chainParams;
+		validator.close();
+		validator = new ChainValidator(params);
+	}
+
+	/** Opens the data directory a node keeps its chain in, with the blocks in a BlockStore, the UTXOs after them in a UTXODatabase and the validator's own UTXOs beside them, and restores the chain from it (see {@link #openBlockStore(Path)}).
+	 * @param directory - The data directory, which is created if needed.
+	 * @return The number of blocks restored, 0 if the directory is new.
+	 * */
+	public static synchronized int openDataDirectory(Path directory) {
+		if(!(blockchain.isEmpty())) {
+			throw new IllegalStateException("#The node already has a chain, so it can't be restored from a data directory. ");
+		}
+		try {
+			UTXOs.close();
+			UTXOs = new UTXODatabase(directory.resolve("utxos"));
+			validator.close();
+			validator = new ChainValidator(params, directory.resolve("validated")); //so a restart continues validating from the block it had reached
+		} catch(IOException ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
+		}
+		return openBlockStore(directory.resolve("blocks"));
+	}
+
+	/** Opens the block store a node keeps its chain in, and restores the chain from the blocks already stored, so a restarted node continues from its stored tip instead of mining a new genesis block.
+	 * <br>The UTXOs are reconciled with the store first. UTXOs kept after a stored block (see {@link #openDataDirectory(Path)}) are taken as they are, and only the blocks after it are connected to them; the blocks up to it only have their headers checked. UTXOs after a block the store never received are stepped back with their undo journal, and UTXOs which don't belong to the store at all are rebuilt by connecting every stored block.
+	 * <br>The blockTree, the blockchain, the genesis transaction and the {@link #state} are rebuilt in the same pass, and so are the chain's lookup indexes, so every block is only read once. Only the last {@link #cachedBlocks} blocks keep their transactions in memory. The blocks the UTXOs' undo journal covers get their undo records from it, so the node can still reorganize below its restored tip.
+	 * <br>A stored block which fails to connect stops the node rather than being dropped, as it means the store was written with other rules or has been damaged.
+	 * @param directory - The directory of the store.
+	 * @return The number of blocks restored, 0 if the store is new.
+	 * */
+	public static synchronized int openBlockStore(Path directory) {
+		try {
+			blockStore = new BlockStore(directory);
+			if(blockStore.size() == 0) {
+				if(blockchain.isEmpty() && (UTXOs.getTip() != null || UTXOs.size() > 0)) {
+					Log.warn("#The UTXOs don't belong to the empty block store, so they are cleared. ");
+					UTXOs.clear();
 				}
+				return 0;
+			}
+			if(!(blockchain.isEmpty())) {
+				throw new IllegalStateException("#The node already has a chain, so it can't be restored from a block store. ");
+			}
 
-				for(TransactionInput input: currentTransaction.inputs) {
-					tempOutput = tempUTXOs.get(input.transactionOutID);
+			//UTXOs committed after a block which never reached the store (e.g. in a crash during a reorganization) are stepped back to one it has
+			while(UTXOs.getTip() != null && blockStore.getHeight(UTXOs.getTip()) < 0 && UTXOs.undoLast()) {
+				Log.warn("#Stepped the UTXOs back to a block in the block store. ");
+			}
+			int utxoHeight = (UTXOs.getTip() == null) ? -1 : blockStore.getHeight(UTXOs.getTip()); //the UTXOs are after this block, so it and the blocks before it aren't connected again
+			if(utxoHeight < 0) {
+				if(UTXOs.getTip() != null || UTXOs.size() > 0) {
+					Log.warn("#The UTXOs don't belong to the block store, so they are rebuilt from its blocks. ");
+					UTXOs.clear();
+				}
+				if(blockStore.getPrunedHeight() > 0) {
+					throw new IllegalStateException("#The block store has been pruned, so the UTXOs can't be rebuilt from its blocks. ");
+				}
+			}
 
-					if(tempOutput == null) {
-						System.out.println("#Referenced input in Transaction(" + t + ") is missing. ");
-						return false;
+			Block genesis = blockStore.getBlock(0);
+			String invalidGenesis = validator.checkGenesis(genesis);
+			if(invalidGenesis != null) {
+				throw new IllegalStateException(invalidGenesis);
+			}
+			genesisTransaction = genesis.transactions.get(0);
+			if(utxoHeight < 0) {
+				for(TransactionOutput output : genesisTransaction.outputs) {
+					UTXOs.put(output.id, output);
+				}
+				UTXOs.commit(genesis.hash);
+			}
+			chainIndex = new ChainIndex();
+			chainIndex.addBlock(genesis, 0);
+			BlockTree.Node tip = blockTree.add(genesis);
+			blockTree.setTip(tip);
+			blockchain.add(genesis);
+
+			for(int height = 1; height < blockStore.size(); height++) {
+				Block block = blockStore.getBlock(height);
+				if(height <= utxoHeight) {
+					String invalid = validator.checkHeader(tip.block, block, Difficulty.nextBits(params, tip), Difficulty.medianTimePast(tip));
+					if(invalid != null) {
+						Log.warn(invalid);
+						throw new IllegalStateException("#Stored block " + block.getHash() + " at height " + height + " has an invalid header. ");
 					}
-
-					if(input.UTXO.value != tempOutput.value) {
-						System.out.println("#Referenced input in Transaction(" + t + ") value is invalid. ");
-						return false;
+				} else {
+					if(!(validator.connectBlock(tip.block, block, Difficulty.nextBits(params, tip), Difficulty.medianTimePast(tip), UTXOs))) {
+						UTXOs.rollback();
+						throw new IllegalStateException("#Stored block " + block.getHash() + " at height " + height + " failed to connect. ");
 					}
-
-					tempUTXOs.remove(input.transactionOutID);
+					UTXOs.commit(block.hash); //one batch per block, so the pending batch never holds more than a block
+				}
+				tip = blockTree.add(block);
+				if(height > utxoHeight) {
+					tip.undo = BlockTree.Undo.of(block);
 				}
+				blockTree.setTip(tip);
+				blockchain.add(block);
+				chainIndex.addBlock(block, height);
+				releaseBlock(height - cachedBlocks); //only the last blocks are kept whole, so restoring a long chain doesn't fill the heap
+				forgetBelowReorgDepth(tip); //and only the last blocks keep their undo records
+			}
 
-				for(TransactionOutput output: currentTransaction.outputs) {
-					tempUTXOs.put(output.id, output);
+			//the kept blocks get their undo records from the journal, as far back as it reaches; a reorganization is one commit for all of its blocks, so it ends them
+			if(utxoHeight > 0) {
+				ArrayList<UTXODatabase.UndoRecord> journal = UTXOs.getUndoJournal();
+				BlockTree.Node node = tip;
+				for(int r = journal.size() - 1; r >= 0 && node.height > Math.max(blockStore.getPrunedHeight(), tip.height - maxReorgDepth); r--) {
+					UTXODatabase.UndoRecord record = journal.get(r);
+					if(!(Arrays.equals(record.tip, node.block.hash)) || !(Arrays.equals(record.previousTip, node.parent.block.hash))) {
+						break;
+					}
+					node.undo = BlockTree.Undo.ofReplaced(record.replaced);
+					node = node.parent;
 				}
+				validator.assumeValid(blockchain, UTXOs); //they were validated before the UTXOs were committed after them
+			}
+			prunedHeight = blockStore.getPrunedHeight();
+			state = ChainState.of(blockchain, UTXOs);
+			Log.info("#Restored " + blockchain.size() + " blocks from the block store, tip " + tip.block.getHash() + ", connecting " + (blockchain.size() - 1 - Math.max(utxoHeight, 0)) + " of them to the UTXOs. ");
+			return blockchain.size();
+		} catch(IOException ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/** Writes the UTXOs after the tip of the blockchain to a snapshot file, which other nodes can bootstrap from.
+	 * @param file - The snapshot file.
+	 * @return The snapshot, whose commitment can be published alongside it.
+	 * */
+	public static synchronized UTXOSnapshot exportSnapshot(Path file) {
+		try {
+			UTXOSnapshot snapshot = UTXOSnapshot.write(UTXOs, blockchain.size() - 1, blockchain.get(blockchain.size() - 1).hash, file);
+			Log.info("#UTXO snapshot of " + snapshot.size + " outputs written at height " + snapshot.height + ", commitment " + StringUtil.toHexString(snapshot.getCommitment()));
+			return snapshot;
+		} catch(IOException ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/** Starts a node without a chain from a UTXO snapshot instead of replaying every block.
+	 * <br>Only the headers up to the snapshot's block are checked (in parallel) before the node takes the snapshot's UTXOs and continues with the blocks after it. The transactions up to the snapshot are replayed on a background thread, and the result is compared with the snapshot's UTXOs.
+	 * <br>The blocks up to the snapshot have no undo records, so the node can't reorganize below the snapshot's height.
+	 * @param chain - The blocks, e.g. from a BlockStore or downloaded from peers, starting with the genesis block and including the snapshot's block.
+	 * @param file - The snapshot file.
+	 * @return The background validation, which completes with True once the snapshot has been confirmed by the chain's history.
+	 * */
+	public static synchronized Future<Boolean> bootstrap(List<Block> chain, Path file) {
+		UTXOSnapshot snapshot;
+		byte[] digest;
+		try {
+			snapshot = UTXOSnapshot.open(file);
+			if(!(blockchain.isEmpty()) || snapshot.height >= chain.size() || !(Arrays.equals(chain.get(snapshot.height).hash, snapshot.blockHash))) {
+				throw new IllegalStateException("#The UTXO snapshot doesn't belong to this chain. ");
+			}
+			if(validator.checkGenesis(chain.get(0)) != null || !(validator.checkHeaders(chain, 1, snapshot.height + 1))) {
+				throw new IllegalStateException("#The chain up to the UTXO snapshot has an invalid header. ");
+			}
+			digest = snapshot.load(UTXOs);
+			UTXOs.commit(snapshot.blockHash); //the UTXOs are after the snapshot's block
+		} catch(IOException ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
+		}
 
-				if(currentTransaction.outputs.get(0).recipient != currentTransaction.sender) {
-					System.out.println("#Transaction(" + t + ") output recipient is not who it should be. ");
-					return false;
+		genesisTransaction = chain.get(0).transactions.get(0);
+		for(int height = 0; height <= snapshot.height; height++) {
+			Block block = chain.get(height);
+			blockTree.add(block);
+			blockchain.add(block);
+			chainIndex.addBlock(block, height);
+			try {
+				if(blockStore != null && blockStore.size() <= height) {
+					blockStore.append(block);
 				}
-				if(currentTransaction.outputs.get(1).recipient != currentTransaction.sender) {
-					System.out.println("#Transaction(" + t + ") output 'change' is not transfered back to Sender. ");
-					return false;
+				releaseBlock(height - cachedBlocks);
+			} catch(IOException ex) {
+				ex.printStackTrace();
+				throw new RuntimeException(ex);
+			}
+		}
+		blockTree.setTip(blockTree.getNode(snapshot.blockHash));
+		state = ChainState.of(blockchain, UTXOs);
+		Log.info("#Bootstrapped from a UTXO snapshot of " + snapshot.size + " outputs at height " + snapshot.height + ". ");
+
+		//a copy, so the history is validated against the blocks the snapshot was taken after, however far the chain has moved on
+		List<Block> history = new ArrayList<Block>(chain.subList(0, snapshot.height + 1));
+		FutureTask<Boolean> validation = new FutureTask<Boolean>(() -> {
+			boolean valid;
+			try(ChainValidator historyValidator = new ChainValidator(params)) { //its own UTXOs, which end at the snapshot's block however far the node's validator has moved on
+				valid = historyValidator.validate(history, genesisTransaction.outputs.get(0))
+						&& Arrays.equals(historyValidator.getLastCheckpoint(history).utxoDigest, digest);
+			}
+			if(valid) {
+				Log.info("#The chain's history confirms the UTXO snapshot at height " + snapshot.height + ". ");
+			} else {
+				Log.error("#The chain's history doesn't match the UTXO snapshot at height " + snapshot.height + ". ");
+			}
+			return valid;
+		});
+		Thread worker = new Thread(validation, "indicium-history");
+		worker.setDaemon(true);
+		worker.start();
+		historyValidation = validation; //set before the later blocks are accepted, so they don't prune the history meanwhile
+
+		for(int height = snapshot.height + 1; height < chain.size(); height++) {
+			if(!(acceptBlock(chain.get(height)))) {
+				break;
+			}
+		}
+		return validation;
+	}
+
+	/** Finds a block by its hash, without scanning the chain.
+	 * @param hash - The raw hash of the block.
+	 * @return The block, or null if it isn't in the chain.
+	 * */
+	public static Block getBlock(byte[] hash) {
+		int height = chainIndex.getHeight(hash);
+		return (height < 0) ? blockTree.getBlock(hash) : getBlock(height); //a block on a side branch is only in the blockTree
+	}
+
+	/** Finds a mined transaction by its id, without scanning the chain.
+	 * @param transactionID - The id of the transaction.
+	 * @return The transaction, or null if it hasn't been mined.
+	 * */
+	public static Transactions getTransaction(String transactionID) {
+		return getTransactionAt(chainIndex.getLocation(transactionID));
+	}
+
+	/** Finds the transaction which spent an output.
+	 * @param outputID - The id of the output.
+	 * @return The spending transaction, or null if the output is unspent or unknown.
+	 * */
+	public static Transactions getSpendingTransaction(String outputID) {
+		return getTransactionAt(chainIndex.getSpender(outputID));
+	}
+
+	/** Gets a block from the last committed {@link #state} if it holds the block's transactions, or else from the block store. It can be called from any thread.
+	 * @param height - The height of the block, where the genesis block is 0.
+	 * @return The block, or null if there is none at that height.
+	 * */
+	public static Block getBlock(int height) {
+		Block block = state.getBlock(height);
+		if(block != null && !(block.isStored())) {
+			return block;
+		}
+		try {
+			return (blockStore == null || height >= blockStore.size()) ? null : blockStore.getBlock(height);
+		} catch(IOException ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
+		}
+	}
+
+	private static Transactions getTransactionAt(long location) {
+		if(location < 0) {
+			return null;
+		}
+		Block block = getBlock(ChainIndex.heightOf(location));
+		ArrayList<Transactions> transactions = (block == null) ? null : block.transactions;
+		return (transactions == null || ChainIndex.positionOf(location) >= transactions.size()) ? null : transactions.get(ChainIndex.positionOf(location)); //the block may have been pruned since it was found
+	}
+
+	/** A block built on the tip, while it is being mined.
+	 * */
+	private static class BlockTemplate {
+		final Block block;
+		final int bits;
+		final long search; //the Miner's generation, taken while the block was built
+
+		BlockTemplate(Block block, int bits, long search) {
+			this.block = block;
+			this.bits = bits;
+			this.search = search;
+		}
+	}
+
+	/** Builds the next block from the highest priority transactions in the Mempool, then mines it and adds it to the blockchain.
+	 * <br>The block is built, and later added, on the chain thread (or under the writer's lock when the node has no network), but it is mined on the calling thread, e.g. the node's mining thread. The chain thread keeps connecting blocks from peers meanwhile, and one which moves the tip cancels the search, even if it arrives before the first nonce is hashed. A block mined on a tip which has moved on anyway is dropped.
+	 * <br>It must not be called on the chain thread, which it would block while mining.
+	 * @return The block which has been added, or null if the chain is empty, mining was cancelled or the tip moved on.
+	 * */
+	public static Block mineNextBlock() {
+		return mineNextBlock(null);
+	}
+
+	/** @param miner - The node's mining thread when it is the caller, which builds no block once mining has been stopped, or null.
+	 * */
+	private static Block mineNextBlock(Thread miner) {
+		BlockTemplate template = onChainThread(() -> {
+			if(blockchain.isEmpty() || (miner != null && miningThread != miner)) {
+				return null;
+			}
+			long search = Miner.getDefault().newSearch();
+			Block block = new Block(blockchain.get(blockchain.size() - 1).hash);
+			ArrayList<Transactions> pooled = mempool.getBlockTemplate(maxBlockTransactions);
+			block.addTransactions(pooled);
+			if(block.transactions.size() < pooled.size()) {
+				//a transaction the block rejects would be picked for every block after it, so it is evicted
+				pooled.removeAll(new HashSet<Transactions>(block.transactions));
+				for(Transactions rejected : pooled) {
+					mempool.remove(rejected);
 				}
 			}
+			//the block's changes are discarded, so blocks from peers can be connected while it is mined; it is connected again once it has been mined
+			UTXOs.rollback();
+			return new BlockTemplate(block, Difficulty.nextBits(params, blockchain), search);
+		});
+		if(template == null || !(template.block.mineBlock(template.bits, template.search))) {
+			return null;
+		}
 
+		return onChainThread(() -> {
+			BlockTree.Node tip = blockTree.getTip();
+			if(!(Arrays.equals(template.block.prevHash, tip.block.hash))) {
+				Log.info("#Block " + template.block.getHash() + " was mined on a tip which has moved on, so it is dropped. ");
+				return null;
+			}
+			//the block is validated like one from a peer, so a transaction which slipped through the Mempool can't make the chain invalid
+			if(!(validator.connectBlock(tip.block, template.block, Difficulty.nextBits(params, tip), Difficulty.medianTimePast(tip), UTXOs))) {
+				UTXOs.rollback();
+				Log.error("#Block " + template.block.getHash() + " which was mined by this node is invalid, so it is dropped. ");
+				return null;
+			}
+			appendBlock(template.block);
+			return template.block;
+		});
+	}
+
+	/** Starts the node's mining thread, which keeps mining the next block (see {@link #mineNextBlock()}) until {@link #stopMining()}. A node without a chain yet starts mining once it has one.
+	 * <br>Mining is started and stopped on the chain thread, like the steps of mineNextBlock, so no block is built once stopMining has returned. It does nothing if the node is already mining.
+	 * */
+	public static void startMining() {
+		onChainThread(() -> {
+			if(miningThread != null) {
+				return null;
+			}
+			Thread worker = new Thread(() -> {
+				while(miningThread == Thread.currentThread()) {
+					if(state.height < 0) {
+						try {
+							Thread.sleep(1000);
+						} catch(InterruptedException ex) {
+							return;
+						}
+					} else if(mineNextBlock(Thread.currentThread()) != null) {
+						blocksMined.incrementAndGet();
+					}
+				}
+			}, "indicium-mining");
+			worker.setDaemon(true);
+			miningThread = worker;
+			worker.start();
+			return null;
+		});
+	}
+
+	/** Stops the node's mining thread, cancelling the block it is mining, and waits for it to finish.
+	 * */
+	public static void stopMining() {
+		Thread worker = onChainThread(() -> {
+			Thread stopped = miningThread;
+			miningThread = null;
+			Miner.getDefault().cancel();
+			return stopped;
+		});
+		if(worker != null && worker != Thread.currentThread()) {
+			try {
+				worker.join();
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
 		}
+	}
 
-		System.out.println("#Blockchain is valid");
-		return true;	
+	/** @return True while the node's mining thread is running.
+	 * */
+	public static boolean isMining() {
+		return miningThread != null;
 	}
-	
-	/** Adds a block to the blockchain after it has been successfully mined. 
-	 * @param newBlock - the block which is being added to the blockchain.
-	 * @return Adds the block to the blockchain once mined. 
+
+	/** @return The number of blocks the node's mining thread has added to the blockchain.
 	 * */
-	public static void addBlock(Block newBlock) {
-		newBlock.mineBlock(difficulty);
-		blockchain.add(newBlock);
+	public static long getBlocksMined() {
+		return blocksMined.get();
+	}
+
+	/** Runs a step of mining on the chain thread when the node is on a network, so it is ordered with the blocks from peers, or else under the writer's lock.
+	 * */
+	private static <T> T onChainThread(Callable<T> step) {
+		try {
+			PeerNetwork node = network;
+			if(node != null && !(node.isChainThread())) {
+				return node.submit(step).get();
+			}
+			synchronized(Indicium_beta.class) {
+				return step.call();
+			}
+		} catch(Exception ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/** Creates the genesis transaction, which mints the first coins, and mines the genesis block holding it.
+	 * @param coinbase - The wallet which signs the genesis transaction.
+	 * @param recipient - The wallet which receives the first coins.
+	 * @param value - How many coins are minted, in base units.
+	 * @param blockDifficulty - The difficulty the genesis block is mined with, in leading hexadecimal 0s.
+	 * @return The genesis block, which has been added to the blockchain.
+	 * */
+	public static Block createGenesis(Wallet_beta coinbase, Wallet_beta recipient, long value, int blockDifficulty) {
+		if(params.getGenesisHash() != null) {
+			throw new IllegalStateException("#The chain's rules fix its genesis block, so a new one can't be created. ");
+		}
+		genesisTransaction = new Transactions(coinbase.pubKey, recipient.pubKey, value, null);
+		genesisTransaction.generateSignature(coinbase.privKey); //gives it its id
+		genesisTransaction.outputs.add(new TransactionOutput(genesisTransaction.receiver, genesisTransaction.value, genesisTransaction.transactionID));
+		UTXOs.put(genesisTransaction.outputs.get(0).id, genesisTransaction.outputs.get(0));
+
+		Block genesis = new Block("0");
+		genesis.addTransaction(genesisTransaction);
+		genesis.mineBlock(Difficulty.ofLeadingZeros(blockDifficulty));
+		appendBlock(genesis);
+		return genesis;
 	}
 
 	public static void main(String[] args){
@@ -139,49 +790,49 @@ public class Indicium_beta {
 		Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
 		
 		//Initialize new wallets
-		firstWallet = new Wallet();
-		walletB = new Wallet();
-		Wallet coinbase = new Wallet();
+		firstWallet = new Wallet_beta();
+		walletB = new Wallet_beta();
+		Wallet_beta coinbase = new Wallet_beta();
 		
 		//A new wallet can be created by a user initializing a new Wallet: Wallet wallet_name = new Wallet();
 
 
 		System.out.println("Welcome to the Indicium blockchain!");
-		System.out.println("This is a demo. This will showcase how the blockchain functions and how value is transferred between 2 wallets.\n");
-
-		genesisTransaction = new Transactions(coinbase.pubKey, firstWallet.pubKey, 1729f, null);
-		genesisTransaction.generateSignature(coinbase.privKey);
-		genesisTransaction.transactionID = "0";
-		genesisTransaction.outputs.add(new TransactionOutput(genesisTransaction.receiver, genesisTransaction.value, genesisTransaction.transactionID));
-		UTXOs.put(genesisTransaction.outputs.get(0).id, genesisTransaction.outputs.get(0));
 
+		//a node started with a data directory keeps its chain there: java Indicium_beta --data=<directory>
+		for(String option : args) {
+			if(option.startsWith("--data=") && openDataDirectory(Paths.get(option.substring(7))) > 0) {
+				System.out.println("The blockchain has been restored from " + option.substring(7) + " with " + blockchain.size() + " blocks.");
+				isChainValid();
+				return;
+			}
+		}
+		System.out.println("This is a demo. This will showcase how the blockchain functions and how value is transferred between 2 wallets.\n");
 
 		System.out.println("Creating and mining the Genesis block... ");
-		Block genesis = new Block("0");
-		genesis.addTransaction(genesisTransaction);
-		addBlock(genesis);
+		Block genesis = createGenesis(coinbase, firstWallet, Amount.ofCoins(1729), difficulty);
 
 		Block block1 = new Block(genesis.hash);
-		System.out.println("\nWallet A's balance is: " + firstWallet.getWalletBalance());
+		System.out.println("\nWallet A's balance is: " + Amount.toString(firstWallet.getWalletBalance()));
 		System.out.println("Wallet A is attempting to transfer funds (40) to WalletB...  ");
-		block1.addTransaction(firstWallet.sendFunds(walletB.pubKey, 40f));
+		block1.addTransaction(firstWallet.sendFunds(walletB.pubKey, Amount.ofCoins(40)));
 		addBlock(block1);
-		System.out.println("\nWallet A's balance is: " + firstWallet.getWalletBalance());
-		System.out.println("\nWallet B's balance is: " + walletB.getWalletBalance());
+		System.out.println("\nWallet A's balance is: " + Amount.toString(firstWallet.getWalletBalance()));
+		System.out.println("\nWallet B's balance is: " + Amount.toString(walletB.getWalletBalance()));
 
 		Block block2 = new Block(block1.hash);
 		System.out.println("Wallet A is attempting to transfer more funds (1000) than it currently has... ");
-		block2.addTransaction(firstWallet.sendFunds(walletB.pubKey, 1000f));
+		block2.addTransaction(firstWallet.sendFunds(walletB.pubKey, Amount.ofCoins(1000)));
 		addBlock(block2);
-		System.out.println("\nWallet A's balance is: " + firstWallet.getWalletBalance());
-		System.out.println("\nWallet B's balance is: " + walletB.getWalletBalance());
+		System.out.println("\nWallet A's balance is: " + Amount.toString(firstWallet.getWalletBalance()));
+		System.out.println("\nWallet B's balance is: " + Amount.toString(walletB.getWalletBalance()));
 
 		Block block3 = new Block(block2.hash);
 		System.out.println("Wallet B is attempting to send funds (20) to Wallet A... ");
-		block3.addTransaction(walletB.sendFunds(firstWallet.pubKey, 20f));
+		block3.addTransaction(walletB.sendFunds(firstWallet.pubKey, Amount.ofCoins(20)));
 		addBlock(block3);
-		System.out.println("\nWallet A's balance is: " + firstWallet.getWalletBalance());
-		System.out.println("\nWallet B's balance is: " + walletB.getWalletBalance());
+		System.out.println("\nWallet A's balance is: " + Amount.toString(firstWallet.getWalletBalance()));
+		System.out.println("\nWallet B's balance is: " + Amount.toString(walletB.getWalletBalance()));
 
 		isChainValid();
 
@@ -210,9 +861,16 @@ public class Indicium_beta {
 		System.out.println("Trying to Mine block 3... ");
 		blockchain.get(2).mineBlock(difficulty);*/	
 
-		String blockchainJson = new GsonBuilder().setPrettyPrinting().create().toJson(blockchain);
-		System.out.println("\nThe block chain: ");
-		System.out.println(blockchainJson);
+		int encodedSize = 0;
+		for(Block block : blockchain) {
+			encodedSize += BlockCodec.encodePooled(block).remaining();
+		}
+		System.out.println("\nThe block chain takes " + encodedSize + " bytes in its binary encoding.");
+		//the JSON view is only for debugging, so it is printed on request: java Indicium_beta --json
+		if(Arrays.asList(args).contains("--json")) {
+			System.out.println("\nThe block chain: ");
+			System.out.println(BlockCodec.toDebugJson(blockchain));
+		}
 
 
 	}
@@ -0,0 +1,316 @@
+package indicium_blockChain;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.gson.stream.JsonWriter;
+
+public class LoadTest {
+	// A headless load test which drives a node end to end, without a network: transfers are signed by the wallets, submitted to the Mempool at a fixed rate, assembled into blocks, mined and connected, and the whole chain is validated at the end.
+	// The workload is seeded and planned one block at a time, so the same settings always put the same transfers into the same blocks, and only the timings differ between runs. The report holds a digest of the final balances to check that two runs processed the same workload; transaction ids hash the signatures, which differ between runs, so the UTXOs themselves can't be compared.
+	// Every stage records its latencies in a histogram, its throughput, and the memory it allocated, and the run is written as a JSON report so versions can be compared for performance regressions.
+
+	private static final long COINS = 1000000; //minted by the genesis block, then spread over the wallets
+
+	private final long seed;
+	private final int walletCount;
+	private final int transactionsPerSecond; //0 submits every transfer as soon as it is signed
+	private final int blockSize;
+	private final int difficulty;
+
+	private final Stage sign = new Stage("sign", "batch"); //signing a block's worth of transfers
+	private final Stage submit = new Stage("submit", "transaction"); //admitting a transfer to the Mempool
+	private final Stage assemble = new Stage("assemble", "block"); //building a block from the Mempool, including the signature checks
+	private final Stage mine = new Stage("mine", "block");
+	private final Stage append = new Stage("append", "block"); //committing a block's UTXOs and publishing the new chain state
+	private final Stage confirm = new Stage("confirm", "transaction"); //from a transfer's scheduled submission to its block being added; only its latencies are recorded
+	private final Stage validate = new Stage("validate", "chain"); //replaying the whole chain from the genesis block
+	private final Stage[] stages = { sign, submit, assemble, mine, append, confirm, validate };
+
+	private int blocks;
+	private long transactions;
+	private long nanos; //duration of the blocks after the funding block
+	private boolean chainValid;
+	private byte[] balanceDigest;
+
+	/** @param seed - The seed of the wallets and of every transfer.
+	 * @param walletCount - How many wallets send to each other.
+	 * @param transactionsPerSecond - The rate transfers are submitted at, or 0 to submit them as fast as the node accepts them.
+	 * @param blockSize - How many transfers are generated, and mined, per block.
+	 * @param difficulty - The difficulty every block is mined with, in leading hexadecimal 0s.
+	 * */
+	public LoadTest(long seed, int walletCount, int transactionsPerSecond, int blockSize, int difficulty) {
+		this.seed = seed;
+		this.walletCount = Math.max(2, walletCount);
+		this.transactionsPerSecond = Math.max(0, transactionsPerSecond);
+		this.blockSize = Math.max(1, blockSize);
+		this.difficulty = difficulty;
+	}
+
+	/** Resets the chain state in {@link Indicium_beta}, funds the wallets in a first block, then runs the workload.
+	 * @param blockCount - How many blocks of transfers are mined after the funding block.
+	 * */
+	public void run(int blockCount) {
+		WorkloadGenerator workload = new WorkloadGenerator(seed, walletCount);
+		Wallet_beta[] wallets = workload.getWallets();
+		workload.startChain(COINS, difficulty);
+		fund(wallets);
+
+		TransactionGenerator generator = new TransactionGenerator(wallets, seed);
+		IdentityHashMap<Transactions, Long> arrivals = new IdentityHashMap<Transactions, Long>(); //scheduled submission of every pooled transfer
+		long start = System.nanoTime();
+		long submitted = 0;
+
+		try {
+			for(int b = 0; b < blockCount; b++) {
+				generator.refresh(); //the outputs created by the last block can be spent now
+
+				sign.begin();
+				ArrayList<Transactions> transfers = generator.generate(blockSize);
+				sign.end(transfers.size(), true);
+
+				submit.begin();
+				for(Transactions transfer : transfers) {
+					//arrivals are scheduled at a fixed rate from the start, so a node which falls behind shows it in the confirmation latencies
+					long arrival = (transactionsPerSecond == 0) ? System.nanoTime() : start + submitted * 1000000000L / transactionsPerSecond;
+					submitted++;
+					long wait = arrival - System.nanoTime();
+					if(wait > 0) {
+						LockSupport.parkNanos(wait);
+					}
+					long admission = System.nanoTime();
+					if(Indicium_beta.submitTransaction(transfer)) {
+						arrivals.put(transfer, arrival);
+					}
+					submit.latency.recordSince(admission);
+				}
+				submit.end(transfers.size(), false);
+
+				assemble.begin();
+				Block block = new Block(Indicium_beta.blockchain.get(Indicium_beta.blockchain.size() - 1).hash);
+				block.addTransactions(Indicium_beta.mempool.getBlockTemplate(blockSize));
+				assemble.end(1, true);
+
+				mine.begin();
+				block.mineBlock(Difficulty.nextBits(Indicium_beta.params, Indicium_beta.blockchain));
+				mine.end(1, true);
+
+				append.begin();
+				Indicium_beta.appendBlock(block);
+				append.end(1, true);
+
+				long added = System.nanoTime();
+				for(Transactions transaction : block.transactions) {
+					Long arrival = arrivals.remove(transaction);
+					if(arrival != null) {
+						confirm.latency.record(added - arrival);
+					}
+				}
+				confirm.items += block.transactions.size();
+				blocks++;
+				transactions += block.transactions.size();
+			}
+			nanos = System.nanoTime() - start;
+
+			validate.begin();
+			try(ChainValidator validator = new ChainValidator(Indicium_beta.params)) { //the rules the workload's chain was created with
+				chainValid = validator.validate(Indicium_beta.blockchain, Indicium_beta.genesisTransaction.outputs.get(0));
+			}
+			validate.end(1, true);
+
+			balanceDigest = digestBalances(Indicium_beta.UTXOs);
+		} finally {
+			generator.shutdown();
+		}
+	}
+
+	/** Digests the balance of every owner of an unspent output, in order of their key hashes.
+	 * @return The SHA-256 hash of each owner hash followed by its balance.
+	 * */
+	private static byte[] digestBalances(UTXODatabase UTXOs) {
+		TreeMap<String, Long> balances = new TreeMap<String, Long>();
+		UTXOs.forEach(output -> balances.merge(StringUtil.toHexString(output.ownerHash), output.value, Long::sum));
+		ByteBuffer data = ByteBuffer.allocate(balances.size() * (32 + 8));
+		for(Map.Entry<String, Long> balance : balances.entrySet()) {
+			data.put(StringUtil.hashFromHex(balance.getKey())).putLong(balance.getValue());
+		}
+		return StringUtil.applySHA256Raw(data.array());
+	}
+
+	/** Mines a first block in which the first wallet, which holds every coin, pays equal shares to the others. There are at least as many shares as transfers per block, so the first blocks of the workload are already full.
+	 * */
+	private void fund(Wallet_beta[] wallets) {
+		int shares = Math.max(blockSize, wallets.length - 1);
+		long share = Amount.ofCoins(COINS) / (shares + 1);
+		Block block = new Block(Indicium_beta.blockchain.get(0).hash);
+		for(int s = 0; s < shares; s++) {
+			block.addTransaction(wallets[0].sendFunds(wallets[1 + s % (wallets.length - 1)].pubKey, share, Indicium_beta.UTXOs)); //each share spends the change of the one before
+		}
+		block.mineBlock(Difficulty.nextBits(Indicium_beta.params, Indicium_beta.blockchain));
+		Indicium_beta.appendBlock(block);
+	}
+
+	/** Writes the report of the last run as JSON: the settings, the totals, and per stage its count, throughput, latency percentiles (in seconds) and memory.
+	 * @param writer - Where the report is written. It isn't closed.
+	 * */
+	public void writeReport(Writer writer) throws IOException {
+		JsonWriter out = new JsonWriter(writer);
+		out.setIndent("\t");
+		out.beginObject();
+
+		out.name("settings").beginObject();
+		out.name("seed").value(seed);
+		out.name("wallets").value(walletCount);
+		out.name("transactionsPerSecond").value(transactionsPerSecond);
+		out.name("blockSize").value(blockSize);
+		out.name("difficulty").value(difficulty);
+		out.name("blocks").value(blocks);
+		out.endObject();
+
+		out.name("environment").beginObject();
+		out.name("java").value(System.getProperty("java.version"));
+		out.name("processors").value(Runtime.getRuntime().availableProcessors());
+		out.name("maxHeapBytes").value(Runtime.getRuntime().maxMemory());
+		out.endObject();
+
+		out.name("totals").beginObject();
+		out.name("blocks").value(blocks);
+		out.name("transactions").value(transactions);
+		out.name("seconds").value(nanos / 1e9);
+		out.name("transactionsPerSecond").value((nanos == 0) ? 0 : transactions * 1e9 / nanos);
+		out.name("chainValid").value(chainValid);
+		out.name("utxoCount").value(Indicium_beta.UTXOs.size());
+		out.name("balanceDigest").value((balanceDigest == null) ? null : StringUtil.toHexString(balanceDigest));
+		out.endObject();
+
+		out.name("stages").beginObject();
+		for(Stage stage : stages) {
+			out.name(stage.name).beginObject();
+			out.name("unit").value(stage.unit);
+			out.name("count").value(stage.latency.getCount());
+			out.name("items").value(stage.items);
+			out.name("seconds").value(stage.nanos / 1e9);
+			out.name("itemsPerSecond").value((stage.nanos == 0) ? 0 : stage.items * 1e9 / stage.nanos);
+			out.name("p50").value(stage.latency.getValueAtQuantile(0.5) / 1e9);
+			out.name("p90").value(stage.latency.getValueAtQuantile(0.9) / 1e9);
+			out.name("p99").value(stage.latency.getValueAtQuantile(0.99) / 1e9);
+			out.name("max").value(stage.latency.getMax() / 1e9);
+			out.name("allocatedBytes").value(stage.allocatedBytes);
+			out.name("peakHeapBytes").value(stage.peakHeapBytes);
+			out.endObject();
+		}
+		out.endObject();
+
+		out.endObject();
+		out.flush();
+	}
+
+	/** The measurements of one stage, summed over every block of the run.
+	 * */
+	private static final class Stage {
+		final String name;
+		final String unit; //what one latency is recorded for
+		final Metrics.Histogram latency = new Metrics.Histogram();
+		long items; //transfers or blocks which went through the stage
+		long nanos;
+		long allocatedBytes; //allocated by every thread while the stage ran, so it includes e.g. the signing workers
+		long peakHeapBytes; //heap in use at the end of the stage, at its highest
+		private long startNanos;
+		private long startAllocated;
+
+		Stage(String name, String unit) {
+			this.name = name;
+			this.unit = unit;
+		}
+
+		void begin() {
+			startAllocated = allocatedBytes();
+			startNanos = System.nanoTime();
+		}
+
+		/** @param count - How many items went through the stage.
+		 * @param recordLatency - True if the whole stage is one latency, False if it has recorded its own latencies per item.
+		 * */
+		void end(long count, boolean recordLatency) {
+			long elapsed = System.nanoTime() - startNanos;
+			if(recordLatency) {
+				latency.record(elapsed);
+			}
+			nanos += elapsed;
+			items += count;
+			allocatedBytes += allocatedBytes() - startAllocated;
+			peakHeapBytes = Math.max(peakHeapBytes, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+		}
+	}
+
+	/** @return The bytes allocated so far by every live thread, or 0 if the JVM doesn't measure it.
+	 * */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(!(threads instanceof com.sun.management.ThreadMXBean) || !(((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemoryEnabled())) {
+			return 0;
+		}
+		long total = 0;
+		for(long allocated : ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threads.getAllThreadIds())) {
+			total += Math.max(0, allocated); //-1 for a thread which ended meanwhile
+		}
+		return total;
+	}
+
+	/** Runs a load test and writes its report.
+	 * <br>Options: --seed=, --wallets=, --tps= (0 for unpaced), --block-size=, --difficulty=, --blocks= and --report= (a file; the report goes to the standard output without it).
+	 * */
+	public static void main(String[] args) throws Exception {
+		long seed = 1;
+		int wallets = 100;
+		int tps = 0;
+		int blockSize = 500;
+		int difficulty = 2;
+		int blockCount = 20;
+		Path report = null;
+		for(String option : args) {
+			String value = option.substring(option.indexOf('=') + 1);
+			if(option.startsWith("--seed=")) {
+				seed = Long.parseLong(value);
+			} else if(option.startsWith("--wallets=")) {
+				wallets = Integer.parseInt(value);
+			} else if(option.startsWith("--tps=")) {
+				tps = Integer.parseInt(value);
+			} else if(option.startsWith("--block-size=")) {
+				blockSize = Integer.parseInt(value);
+			} else if(option.startsWith("--difficulty=")) {
+				difficulty = Integer.parseInt(value);
+			} else if(option.startsWith("--blocks=")) {
+				blockCount = Integer.parseInt(value);
+			} else if(option.startsWith("--report=")) {
+				report = Paths.get(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + option);
+			}
+		}
+		if(System.getProperty("indicium.log") == null) {
+			Log.level = Log.Level.WARN; //logging every block would be measured along with it
+		}
+
+		LoadTest test = new LoadTest(seed, wallets, tps, blockSize, difficulty);
+		test.run(blockCount);
+		if(report == null) {
+			Writer out = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+			test.writeReport(out);
+			out.write('\n');
+			out.flush();
+		} else {
+			try(Writer out = Files.newBufferedWriter(report, StandardCharsets.UTF_8)) {
+				test.writeReport(out);
+			}
+			System.out.println("#Load test report written to " + report);
+		}
+		System.exit(0);
+	}
+}
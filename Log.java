@@ -0,0 +1,70 @@
+package indicium_blockChain;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Log {
+	// A leveled logger for the node's diagnostic messages, which used to be printed unconditionally.
+	// Lines below the level are dropped before anything is formatted, and at most maxLinesPerSecond lines are printed per second, so a flood of rejected transactions can't slow the node down. Errors are never suppressed.
+
+	public enum Level {
+		ERROR, WARN, INFO, DEBUG
+	}
+
+	public static volatile Level level = Level.valueOf(System.getProperty("indicium.log", "INFO").toUpperCase()); //set with -Dindicium.log=DEBUG
+	public static volatile int maxLinesPerSecond = 100;
+
+	private static final AtomicLong currentSecond = new AtomicLong();
+	private static final AtomicInteger linesThisSecond = new AtomicInteger();
+	private static final AtomicInteger suppressed = new AtomicInteger();
+
+	/** @param messageLevel - The level of a message.
+	 * @return True if messages of that level are printed. Callers building an expensive message check this first.
+	 * */
+	public static boolean isEnabled(Level messageLevel) {
+		return messageLevel.ordinal() <= level.ordinal();
+	}
+
+	public static void error(String message) {
+		log(Level.ERROR, message);
+	}
+
+	public static void warn(String message) {
+		log(Level.WARN, message);
+	}
+
+	public static void info(String message) {
+		log(Level.INFO, message);
+	}
+
+	public static void debug(String message) {
+		log(Level.DEBUG, message);
+	}
+
+	/** Prints a message if its level is enabled and the rate limit allows it.
+	 * @param messageLevel - The level of the message.
+	 * @param message - The message.
+	 * */
+	public static void log(Level messageLevel, String message) {
+		if(!(isEnabled(messageLevel))) {
+			return;
+		}
+
+		long second = System.nanoTime() / 1000000000L;
+		long last = currentSecond.get();
+		if(second != last && currentSecond.compareAndSet(last, second)) {
+			//only the thread which starts the new second reports what was dropped in the last one
+			linesThisSecond.set(0);
+			int dropped = suppressed.getAndSet(0);
+			if(dropped > 0) {
+				System.out.println("#" + dropped + " log lines were suppressed. ");
+			}
+		}
+
+		if(linesThisSecond.incrementAndGet() > maxLinesPerSecond && messageLevel != Level.ERROR) {
+			suppressed.incrementAndGet();
+			return;
+		}
+		System.out.println(message);
+	}
+}
@@ -0,0 +1,191 @@
+package indicium_blockChain;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class Mempool {
+	// Thread-safe pool of validated transactions which are waiting to be mined.
+	// Transactions are admitted concurrently, kept ordered by priority in a lock-free skip list, and every input is claimed by at most one transaction, so double-spends are rejected on admission.
+
+	/** A transaction in the Mempool together with the values its ordering is based on.
+	 * */
+	private static class Entry implements Comparable<Entry> {
+		final Transactions transaction;
+		final long priority; //total value of the inputs; higher value transfers are mined first
+		final long sequence; //arrival order, which breaks ties so earlier transactions go first
+
+		Entry(Transactions transaction, long priority, long sequence) {
+			this.transaction = transaction;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			int byPriority = Long.compare(other.priority, priority);
+			return (byPriority != 0) ? byPriority : Long.compare(sequence, other.sequence);
+		}
+	}
+
+	private final int maxSize; //the lowest priority transaction is evicted once the pool is full
+	private final ConcurrentSkipListSet<Entry> byPriority = new ConcurrentSkipListSet<Entry>();
+	private final ConcurrentHashMap<Transactions, Entry> entries = new ConcurrentHashMap<Transactions, Entry>();
+	private final ConcurrentHashMap<String, Transactions> spentBy = new ConcurrentHashMap<String, Transactions>(); //output id -> the pooled transaction which spends it
+	private final ConcurrentHashMap<String, Transactions> byID = new ConcurrentHashMap<String, Transactions>(); //transaction id -> the pooled transaction, which compact blocks are reconstructed from
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicInteger size = new AtomicInteger();
+
+	public Mempool(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/** Validates a transaction and admits it to the Mempool. Can be called from many threads at once.
+	 * <br>The signature is verified and the inputs are checked against the UTXOs exactly once, here. The transaction is then only applied to the UTXOs when it is mined.
+	 * @param transaction - The transaction which is being submitted.
+	 * @return True if the transaction was admitted, False if it is invalid, spends an output which is already spent by a pooled transaction, or the pool is full of higher priority transactions.
+	 * */
+	public boolean add(Transactions transaction) {
+		if(transaction == null || transaction.transactionID == null || transaction.inputs == null || transaction.inputs.isEmpty()) {
+			return false;
+		}
+		if(!(transaction.verifySignature())) {
+			Log.warn("#Transaction signature failed to verify. Not admitted to the Mempool. ");
+			return false;
+		}
+
+		long inputsValue = 0;
+		byte[] senderHash = CryptoContext.getKeyHash(transaction.sender);
+		HashSet<String> inputIDs = new HashSet<String>();
+		for(TransactionInput input : transaction.inputs) {
+			if(!(inputIDs.add(input.transactionOutID))) {
+				Log.warn("#Transaction spends the same output twice. Not admitted to the Mempool. ");
+				return false;
+			}
+			TransactionOutput UTXO = Indicium_beta.state.getUTXO(input.transactionOutID); //checked against the last committed UTXOs, without waiting for the block being added
+			if(UTXO == null) {
+				Log.warn("#Transaction references a missing or spent output. Not admitted to the Mempool. ");
+				return false;
+			}
+			//otherwise anyone could claim another wallet's output, which its owner could then never spend
+			if(!(UTXO.isOwnedBy(senderHash))) {
+				Log.warn("#Transaction spends an output which isn't owned by its Sender. Not admitted to the Mempool. ");
+				return false;
+			}
+			inputsValue += UTXO.value; //every stored value is in range, so a handful can't overflow
+		}
+		if(inputsValue < Indicium_beta.minTransaction || inputsValue < transaction.value || !(Amount.isValid(transaction.value))) {
+			Log.warn("#Transaction Inputs too small: " + Amount.toString(inputsValue));
+			return false;
+		}
+
+		//claims every input; the first transaction to claim an output wins, and a conflicting one releases what it has claimed
+		for(int i = 0; i < transaction.inputs.size(); i++) {
+			Transactions holder = spentBy.putIfAbsent(transaction.inputs.get(i).transactionOutID, transaction);
+			if(holder != null && holder != transaction) {
+				for(int j = 0; j < i; j++) {
+					spentBy.remove(transaction.inputs.get(j).transactionOutID, transaction);
+				}
+				Log.warn("#Transaction double-spends an output of a pooled transaction. Not admitted to the Mempool. ");
+				return false;
+			}
+		}
+
+		Entry entry = new Entry(transaction, inputsValue, sequence.getAndIncrement());
+		if(entries.putIfAbsent(transaction, entry) != null) {
+			return false; //the same transaction was submitted twice
+		}
+		byID.put(transaction.transactionID, transaction); //before the entry can be evicted, which removes it again
+		byPriority.add(entry);
+
+		if(size.incrementAndGet() > maxSize) {
+			Entry lowest = byPriority.pollLast();
+			if(lowest != null) {
+				release(lowest);
+				return lowest != entry;
+			}
+		}
+		return true;
+	}
+
+	/** Assembles a block template from the highest priority transactions. The skip list is read without any lock, so admission carries on while the template is built.
+	 * @param maxTransactions - The most transactions the block can hold.
+	 * @return Up to <code>maxTransactions</code> transactions, highest priority first.
+	 * */
+	public ArrayList<Transactions> getBlockTemplate(int maxTransactions) {
+		ArrayList<Transactions> template = new ArrayList<Transactions>(Math.min(maxTransactions, size.get() + 1));
+		for(Entry entry : byPriority) {
+			if(template.size() == maxTransactions) {
+				break;
+			}
+			template.add(entry.transaction);
+		}
+		return template;
+	}
+
+	/** Removes transactions which have been mined. Pooled transactions which spend the same outputs can never be mined any more, so they are evicted as well.
+	 * @param mined - The transactions of the block which has been added to the blockchain.
+	 * */
+	public void removeAll(Collection<Transactions> mined) {
+		for(Transactions transaction : mined) {
+			if(remove(transaction)) {
+				continue;
+			}
+			if(transaction.inputs == null) {
+				continue;
+			}
+			for(TransactionInput input : transaction.inputs) {
+				Transactions conflict = spentBy.get(input.transactionOutID);
+				Entry conflicting = (conflict == null) ? null : entries.get(conflict);
+				if(conflicting != null && byPriority.remove(conflicting)) {
+					release(conflicting);
+				}
+			}
+		}
+	}
+
+	/** Evicts a pooled transaction which can't be mined, e.g. one which was rejected while a block template was built.
+	 * @param transaction - The pooled transaction.
+	 * @return True if the transaction was in the Mempool.
+	 * */
+	public boolean remove(Transactions transaction) {
+		Entry entry = entries.get(transaction);
+		if(entry != null && byPriority.remove(entry)) {
+			release(entry);
+			return true;
+		}
+		return false;
+	}
+
+	/** @return True if a pooled transaction already spends the output.
+	 * */
+	public boolean isSpent(String outputID) {
+		return spentBy.containsKey(outputID);
+	}
+
+	/** @param transactionID - The id of a transaction.
+	 * @return The pooled transaction with that id, or null if it isn't in the Mempool.
+	 * */
+	public Transactions get(String transactionID) {
+		return byID.get(transactionID);
+	}
+
+	public boolean contains(Transactions transaction) {
+		return entries.containsKey(transaction);
+	}
+
+	public int size() {
+		return size.get();
+	}
+
+	/** Drops an entry which has already been taken out of the skip list, releasing the outputs it claimed.
+	 * */
+	private void release(Entry entry) {
+		entries.remove(entry.transaction, entry);
+		byID.remove(entry.transaction.transactionID, entry.transaction);
+		for(TransactionInput input : entry.transaction.inputs) {
+			spentBy.remove(input.transactionOutID, entry.transaction);
+		}
+		size.decrementAndGet();
+	}
+}
@@ -0,0 +1,125 @@
+package indicium_blockChain;
+
+import java.util.*;
+
+public class MerkleTree {
+	// Binary Merkle tree over raw 32-byte transaction hashes.
+	// Every layer is cached, so appending or replacing a transaction only rehashes the nodes on its path to the root. A node without a right sibling is paired with itself.
+
+	private final ArrayList<ArrayList<byte[]>> layers = new ArrayList<ArrayList<byte[]>>(); //layer 0 holds the leaves, the last layer holds the root
+
+	/** A compact inclusion proof: the sibling of every node on a leaf's path to the root.
+	 * */
+	public static class Proof {
+		public final int index; //position of the leaf, whose bits tell on which side each sibling is
+		public final ArrayList<byte[]> siblings; //from the leaf's layer up to just below the root
+
+		public Proof(int index, ArrayList<byte[]> siblings) {
+			this.index = index;
+			this.siblings = siblings;
+		}
+	}
+
+	public MerkleTree() {
+		layers.add(new ArrayList<byte[]>());
+	}
+
+	/** Builds the tree of a block's transactions.
+	 * @param transactions - The transactions of the block, whose ids form the leaves.
+	 * @return The complete tree.
+	 * */
+	public static MerkleTree of(List<Transactions> transactions) {
+		MerkleTree tree = new MerkleTree();
+		for(Transactions transaction : transactions) {
+			tree.append(transaction);
+		}
+		return tree;
+	}
+
+	/** Appends a transaction as the next leaf, e.g. while a block template grows.
+	 * @param transaction - The transaction, which needs to have its id.
+	 * */
+	public void append(Transactions transaction) {
+		append(StringUtil.hashFromHex(transaction.transactionID));
+	}
+
+	/** Appends a leaf, rehashing only the path from the new leaf to the root.
+	 * @param leaf - The 32-byte hash of a transaction.
+	 * */
+	public void append(byte[] leaf) {
+		layers.get(0).add(leaf);
+		updatePath(layers.get(0).size() - 1);
+	}
+
+	/** Replaces a leaf, rehashing only the path from that leaf to the root.
+	 * @param index - The position of the leaf.
+	 * @param leaf - The new 32-byte hash.
+	 * */
+	public void set(int index, byte[] leaf) {
+		layers.get(0).set(index, leaf);
+		updatePath(index);
+	}
+
+	/** @return The Merkle root, or 32 zero bytes if the tree is empty.
+	 * */
+	public byte[] getRoot() {
+		ArrayList<byte[]> top = layers.get(layers.size() - 1);
+		return top.isEmpty() ? new byte[32] : top.get(0);
+	}
+
+	public int size() {
+		return layers.get(0).size();
+	}
+
+	/** Produces the inclusion proof of a leaf, which has one hash per layer below the root.
+	 * @param index - The position of the leaf.
+	 * @return The proof, which a light client can check against the Merkle root in the block header.
+	 * */
+	public Proof getProof(int index) {
+		ArrayList<byte[]> siblings = new ArrayList<byte[]>();
+		int position = index;
+		for(int level = 0; level < layers.size() - 1; level++) {
+			ArrayList<byte[]> layer = layers.get(level);
+			int sibling = position ^ 1;
+			siblings.add(sibling < layer.size() ? layer.get(sibling) : layer.get(position));
+			position >>= 1;
+		}
+		return new Proof(index, siblings);
+	}
+
+	/** Checks that a leaf is included in a tree, using only the leaf, its proof and the root.
+	 * @param leaf - The 32-byte hash of the transaction.
+	 * @param proof - The leaf's inclusion proof.
+	 * @param root - The Merkle root from the block header.
+	 * @return True if the proof leads from the leaf to the root.
+	 * */
+	public static boolean verifyProof(byte[] leaf, Proof proof, byte[] root) {
+		byte[] node = leaf;
+		int position = proof.index;
+		for(byte[] sibling : proof.siblings) {
+			node = ((position & 1) == 0) ? StringUtil.applySHA256Raw(node, sibling) : StringUtil.applySHA256Raw(sibling, node);
+			position >>= 1;
+		}
+		return Arrays.equals(node, root);
+	}
+
+	private void updatePath(int index) {
+		for(int level = 0; layers.get(level).size() > 1; level++) {
+			ArrayList<byte[]> layer = layers.get(level);
+			int left = index & ~1;
+			byte[] right = (left + 1 < layer.size()) ? layer.get(left + 1) : layer.get(left);
+			byte[] parent = StringUtil.applySHA256Raw(layer.get(left), right);
+
+			if(level + 1 == layers.size()) {
+				layers.add(new ArrayList<byte[]>());
+			}
+			ArrayList<byte[]> above = layers.get(level + 1);
+			index >>= 1;
+			if(index < above.size()) {
+				above.set(index, parent);
+			} else {
+				above.add(parent);
+			}
+		}
+	}
+}
@@ -0,0 +1,311 @@
+package indicium_blockChain;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import javax.management.*;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class Metrics {
+	// The node's instrumentation: meters for events and their rates, latency histograms and gauges of the node's state.
+	// Recording is lock-free (LongAdders and atomic bucket counts), so the hot paths can be instrumented; the work of computing rates and percentiles is only done when the metrics are read, over JMX or the HTTP scrape endpoint.
+
+	private static final Map<String, Object> registry = Collections.synchronizedMap(new LinkedHashMap<String, Object>());
+
+	public static final Meter hashes = meter("hashes"); //header hashes computed by the Miner
+	public static final Meter signatureVerifications = meter("signature_verifications");
+	public static final Meter signatureCacheHits = meter("signature_cache_hits"); //signatures which had already been verified
+	public static final Histogram blockValidation = histogram("block_validation_seconds"); //time to validate the transactions of a block
+	public static final Histogram blockMining = histogram("block_mining_seconds");
+
+	static {
+		gauge("chain_height", () -> Indicium_beta.state.height);
+		gauge("mempool_size", () -> Indicium_beta.mempool.size());
+		gauge("utxo_cache_hits_total", () -> Indicium_beta.UTXOs.getCacheHits());
+		gauge("utxo_cache_misses_total", () -> Indicium_beta.UTXOs.getCacheMisses());
+		gauge("utxo_cache_hit_ratio", () -> {
+			double hits = Indicium_beta.UTXOs.getCacheHits();
+			double lookups = hits + Indicium_beta.UTXOs.getCacheMisses();
+			return (lookups == 0) ? 0 : hits / lookups;
+		});
+		gauge("peers", () -> (Indicium_beta.network == null) ? 0 : Indicium_beta.network.peerCount());
+	}
+
+	/** Counts events, and keeps their rate per second as a 1-minute exponentially weighted moving average.
+	 * */
+	public static class Meter {
+		private static final long TICK = 5000000000L; //the average is updated every 5 seconds
+		private static final double ALPHA = 1 - Math.exp(-5 / 60.0);
+
+		private final LongAdder count = new LongAdder();
+		private final long created = System.nanoTime();
+		private long lastTick = created;
+		private long lastCount;
+		private double rate;
+		private boolean ticked;
+
+		public void mark() {
+			count.increment();
+		}
+
+		public void mark(long events) {
+			count.add(events);
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		/** @return The events per second. Until the first 5 seconds have passed, the mean rate since the meter was created.
+		 * */
+		public synchronized double getRate() {
+			long now = System.nanoTime();
+			while(now - lastTick >= TICK) {
+				long total = count.sum();
+				double instant = (total - lastCount) * 1e9 / TICK; //only the first interval which is caught up on has any events
+				lastCount = total;
+				rate = ticked ? rate + ALPHA * (instant - rate) : instant;
+				ticked = true;
+				lastTick += TICK;
+			}
+			if(!(ticked)) {
+				long elapsed = Math.max(1, now - created);
+				return count.sum() * 1e9 / elapsed;
+			}
+			return rate;
+		}
+	}
+
+	/** A histogram of non-negative values (e.g. latencies in nanoseconds) in the style of an HDR histogram.
+	 * <br>Values below 64 have a bucket each; above that, every power of two is split into 32 buckets, so any value is reported within about 3% while the whole range of a long fits in 1888 buckets.
+	 * */
+	public static class Histogram {
+		private static final int SUB_BUCKETS = 32;
+		private static final int BUCKETS = (64 - 5) * SUB_BUCKETS;
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+		public void record(long value) {
+			value = Math.max(0, value);
+			counts.incrementAndGet(bucketOf(value));
+			count.increment();
+			sum.add(value);
+			max.accumulate(value);
+		}
+
+		/** Records the time since a start time taken with System.nanoTime().
+		 * */
+		public void recordSince(long startNanos) {
+			record(System.nanoTime() - startNanos);
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public long getSum() {
+			return sum.sum();
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		/** @param quantile - The quantile, from 0 to 1.
+		 * @return The highest value in the bucket holding the quantile, or 0 if nothing has been recorded.
+		 * */
+		public long getValueAtQuantile(double quantile) {
+			long[] snapshot = new long[BUCKETS];
+			long total = 0;
+			for(int i = 0; i < BUCKETS; i++) {
+				snapshot[i] = counts.get(i);
+				total += snapshot[i];
+			}
+			if(total == 0) {
+				return 0;
+			}
+
+			long rank = Math.max(1, (long) Math.ceil(quantile * total));
+			long seen = 0;
+			for(int i = 0; i < BUCKETS; i++) {
+				seen += snapshot[i];
+				if(seen >= rank) {
+					return Math.min(highestValueOf(i), getMax());
+				}
+			}
+			return getMax();
+		}
+
+		static int bucketOf(long value) {
+			if(value < 2 * SUB_BUCKETS) {
+				return (int) value;
+			}
+			int shift = 63 - Long.numberOfLeadingZeros(value) - 5; //keeps the 6 most significant bits
+			return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+		}
+
+		static long highestValueOf(int bucket) {
+			if(bucket < 2 * SUB_BUCKETS) {
+				return bucket;
+			}
+			int shift = bucket / SUB_BUCKETS - 1;
+			long lowest = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+			return lowest + (1L << shift) - 1;
+		}
+	}
+
+	public static Meter meter(String name) {
+		Meter meter = new Meter();
+		registry.put(name, meter);
+		return meter;
+	}
+
+	public static Histogram histogram(String name) {
+		Histogram histogram = new Histogram();
+		registry.put(name, histogram);
+		return histogram;
+	}
+
+	/** Registers a value which is read from the node's state whenever the metrics are read.
+	 * */
+	public static void gauge(String name, DoubleSupplier value) {
+		registry.put(name, value);
+	}
+
+	/** Reads every metric. Meters give a total and a rate, histograms (of nanoseconds) give their count, sum, percentiles and maximum in seconds.
+	 * @return The values by name, in the order the metrics were registered.
+	 * */
+	public static LinkedHashMap<String, Double> snapshot() {
+		LinkedHashMap<String, Double> values = new LinkedHashMap<String, Double>();
+		ArrayList<Map.Entry<String, Object>> metrics;
+		synchronized(registry) {
+			metrics = new ArrayList<Map.Entry<String, Object>>(registry.entrySet());
+		}
+
+		for(Map.Entry<String, Object> metric : metrics) {
+			String name = metric.getKey();
+			if(metric.getValue() instanceof Meter) {
+				Meter meter = (Meter) metric.getValue();
+				values.put(name + "_total", (double) meter.getCount());
+				values.put(name + "_per_second", meter.getRate());
+			} else if(metric.getValue() instanceof Histogram) {
+				Histogram histogram = (Histogram) metric.getValue();
+				values.put(name + "_count", (double) histogram.getCount());
+				values.put(name + "_sum", histogram.getSum() / 1e9);
+				values.put(name + "_p50", histogram.getValueAtQuantile(0.5) / 1e9);
+				values.put(name + "_p90", histogram.getValueAtQuantile(0.9) / 1e9);
+				values.put(name + "_p99", histogram.getValueAtQuantile(0.99) / 1e9);
+				values.put(name + "_max", histogram.getMax() / 1e9);
+			} else {
+				double value;
+				try {
+					value = ((DoubleSupplier) metric.getValue()).getAsDouble();
+				} catch(RuntimeException ex) {
+					value = Double.NaN; //e.g. the UTXOs are being replaced
+				}
+				values.put(name, value);
+			}
+		}
+		return values;
+	}
+
+	/** Formats the metrics in the Prometheus text format, every name prefixed with "indicium_".
+	 * */
+	public static String toText() {
+		StringBuilder text = new StringBuilder();
+		for(Map.Entry<String, Double> value : snapshot().entrySet()) {
+			text.append("indicium_").append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+		}
+		return text.toString();
+	}
+
+	/** Registers the metrics with the platform MBean server as indicium_blockChain:type=Metrics, with one read-only attribute per value.
+	 * */
+	public static synchronized void registerMBean() {
+		try {
+			ObjectName name = new ObjectName("indicium_blockChain:type=Metrics");
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if(!(server.isRegistered(name))) {
+				server.registerMBean(new MetricsMBean(), name);
+			}
+		} catch(Exception ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/** Serves the metrics in the Prometheus text format on http://127.0.0.1:port/metrics. Only local scrapers can reach it.
+	 * @param port - The port, or 0 for any free port.
+	 * @return The server, whose address holds the port it is bound to.
+	 * */
+	public static HttpServer serve(int port) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/metrics", exchange -> {
+			byte[] body = toText().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+			exchange.sendResponseHeaders(200, body.length);
+			try(OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start(); //requests are handled one at a time on the server's own thread
+		return server;
+	}
+
+	/** Exposes the snapshot over JMX. The attributes are read from a fresh snapshot, so gauges registered later show up too.
+	 * */
+	private static class MetricsMBean implements DynamicMBean {
+
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Double value = snapshot().get(attribute);
+			if(value == null) {
+				throw new AttributeNotFoundException(attribute);
+			}
+			return value;
+		}
+
+		public AttributeList getAttributes(String[] attributes) {
+			LinkedHashMap<String, Double> values = snapshot();
+			AttributeList list = new AttributeList();
+			for(String attribute : attributes) {
+				if(values.containsKey(attribute)) {
+					list.add(new Attribute(attribute, values.get(attribute)));
+				}
+			}
+			return list;
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+		}
+
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+			throw new ReflectionException(new NoSuchMethodException(actionName));
+		}
+
+		public MBeanInfo getMBeanInfo() {
+			ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			for(String name : snapshot().keySet()) {
+				attributes.add(new MBeanAttributeInfo(name, "java.lang.Double", name, true, false, false));
+			}
+			return new MBeanInfo(Metrics.class.getName(), "Indicium node metrics", attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+		}
+	}
+}
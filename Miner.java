@@ -0,0 +1,156 @@
+package indicium_blockChain;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class Miner {
+	// Multi-threaded Proof-of-Work engine.
+	// The nonce space is split across all worker threads, and every worker hashes the serialized header from a cached midstate with only the nonce changing.
+	// The hash rate of every search is measured, so callers can size their rounds to take about ROUND_MILLIS whatever the hardware.
+	// Every search belongs to a generation, taken when its block is built; cancel() starts a new generation, so it stops every search of an older one, including one which hasn't started hashing yet.
+
+	private static Miner defaultMiner; //shared miner used by Block.mineBlock
+
+	private final int threads; //number of worker threads searching the nonce space
+	private final ExecutorService workers;
+	private final AtomicLong generation = new AtomicLong(); //incremented when a competing block arrives and the searches begun before should stop
+	private volatile double hashRate; //hashes per second, averaged over the recent searches
+
+	public static final long ROUND_MILLIS = 500; //how long a round of the search should take
+	private static final long MIN_BATCH = 1 << 16;
+
+	public Miner(int threadCount) {
+		threads = Math.max(1, threadCount);
+		workers = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread worker = new Thread(runnable, "indicium-miner");
+			worker.setDaemon(true);
+			return worker;
+		});
+	}
+
+	public Miner() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/** Gets the miner shared by every block of this node, which uses one worker per available core.
+	 * @return The default Miner.
+	 * */
+	public static synchronized Miner getDefault() {
+		if(defaultMiner == null) {
+			defaultMiner = new Miner();
+		}
+		return defaultMiner;
+	}
+
+	/** Searches a range of the 32-bit nonce space for a nonce which makes the header's hash meet the target.
+	 * <br>Each worker starts at its own index and steps by the number of workers, so no two workers ever test the same nonce.
+	 * @param header - The serialized block header of {@link Block#HEADER_SIZE} bytes. Its nonce is ignored.
+	 * @param target - The target as 32 big-endian bytes, see {@link Difficulty#toTarget(int)}.
+	 * @param firstNonce - The first nonce of the range.
+	 * @param count - How many nonces are searched, e.g. {@link #getBatchSize()}.
+	 * @param search - The search's generation, from {@link #newSearch()}.
+	 * @return The winning nonce as an unsigned value, or -1 if the search was cancelled or the range was exhausted.
+	 * */
+	public long search(byte[] header, byte[] target, long firstNonce, long count, long search) {
+		AtomicLong winner = new AtomicLong(-1);
+		LongAdder hashed = new LongAdder();
+		long end = Math.min(firstNonce + count, 0x100000000L);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+		for(int w = 0; w < threads; w++) {
+			final long start = firstNonce + w;
+			tasks.add(() -> {
+				hashed.add(searchRange(header, target, start, end, search, winner));
+				return null;
+			});
+		}
+
+		long began = System.nanoTime();
+		try {
+			workers.invokeAll(tasks);
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			cancel();
+		}
+		long elapsed = System.nanoTime() - began;
+
+		//short searches, e.g. at a low difficulty, say little about the hash rate
+		if(hashed.sum() >= MIN_BATCH) {
+			double rate = hashed.sum() * 1e9 / Math.max(1, elapsed);
+			hashRate = (hashRate == 0) ? rate : (hashRate + rate) / 2;
+		}
+		return winner.get();
+	}
+
+	/** @return The hashes per second of the recent searches, or 0 before the first long enough search.
+	 * */
+	public double getHashRate() {
+		return hashRate;
+	}
+
+	/** @return How many nonces take about {@link #ROUND_MILLIS} to search at the measured hash rate, at least 2^16 and at most the whole nonce space.
+	 * */
+	public long getBatchSize() {
+		long batch = (long) (hashRate * ROUND_MILLIS / 1000);
+		return Math.max(MIN_BATCH, Math.min(0x100000000L, batch));
+	}
+
+	/** Starts a search, which should happen while its block is built, so a competing block which arrives before the first nonce is hashed still cancels it.
+	 * @return The search's generation, which is passed to {@link #search(byte[], byte[], long, long, long)}.
+	 * */
+	public long newSearch() {
+		return generation.get();
+	}
+
+	/** Stops every search started before, whether it is running or hasn't begun yet, e.g. because a competing block has arrived.
+	 * */
+	public void cancel() {
+		generation.incrementAndGet();
+	}
+
+	/** @param search - The search's generation, from {@link #newSearch()}.
+	 * @return True if the search has been stopped by {@link #cancel()}.
+	 * */
+	public boolean isCancelled(long search) {
+		return generation.get() != search;
+	}
+
+	/** Stops all worker threads. The miner cannot be used afterwards.
+	 * */
+	public void shutdown() {
+		cancel();
+		workers.shutdownNow();
+	}
+
+	/** The hot loop of a single worker. Nothing is allocated per nonce: the midstate of the header's first 64 bytes is computed once, and every nonce only compresses the last SHA-256 block into a reused buffer.
+	 * @return The number of hashes computed.
+	 * */
+	private long searchRange(byte[] header, byte[] target, long start, long end, long search, AtomicLong winner) {
+		HeaderHasher hasher = new HeaderHasher(header);
+		byte[] hash = new byte[32];
+		long steps = 0;
+
+		for(long nonce = start; nonce < end; nonce += threads) {
+			//the other workers are checked, and the hashes counted, every 1024 steps so neither happens on every hash
+			if((steps & 0x3FF) == 0) {
+				if(steps != 0) {
+					Metrics.hashes.mark(0x400);
+				}
+				if(generation.get() != search || winner.get() != -1) {
+					break;
+				}
+			}
+			steps++;
+
+			hasher.hash((int) nonce, hash);
+
+			if(Difficulty.meetsTarget(hash, target)) {
+				winner.compareAndSet(-1, nonce);
+				break;
+			}
+		}
+		Metrics.hashes.mark(steps & 0x3FF);
+		return steps;
+	}
+}
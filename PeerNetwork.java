@@ -0,0 +1,892 @@
+package indicium_blockChain;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.security.Security;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class PeerNetwork implements Closeable {
+	// Non-blocking gossip of transactions and blocks between nodes over TCP.
+	// One selector thread does all of the network IO and one chain thread handles every message, so the chain is never changed from two threads at once.
+	// A new node syncs header-first: headers are fetched in batches and checked for linkage and Proof-of-Work, while their blocks are downloaded in a pipelined window.
+	// Headers which don't build on a known block belong to another branch, so earlier and earlier headers are requested until the fork point is found; the chain then decides which branch has the most work.
+	// A new block is announced as a compact block: its header and, per transaction, a salted short id with the transaction's id, which the receiver looks up in its own Mempool by id, so the Mempool is never rehashed for a block. Only the transactions it doesn't have are fetched in a second round trip, so a block whose transactions were already gossiped costs a few bytes per transaction instead of the whole block.
+	// A peer isn't read from while its messages or the replies to it are backed up, which pushes back on the sender through TCP.
+
+	//message types; every message is framed as its length (4 bytes), its type (1 byte) and its payload
+	private static final byte HELLO = 0; //number of blocks in the sender's chain
+	private static final byte GET_HEADERS = 1; //first height, count
+	private static final byte HEADERS = 2; //first height, count, 80-byte headers
+	private static final byte GET_BLOCKS = 3; //count, block hashes
+	private static final byte BLOCK = 4; //an encoded block
+	private static final byte NOT_FOUND = 5; //the hash of a requested block the sender doesn't have
+	private static final byte TRANSACTION = 6; //an encoded transaction
+	private static final byte COMPACT_BLOCK = 7; //height, 80-byte header, salt, count, then per transaction a short id with its id and change, or the whole encoded transaction; announces a new block
+	private static final byte GET_BLOCK_TRANSACTIONS = 8; //block hash, count, indexes of the transactions missing from a compact block
+	private static final byte BLOCK_TRANSACTIONS = 9; //block hash, count, the encoded transactions which were asked for
+
+	//kinds of transactions in a compact block
+	private static final byte SHORT_ID = 0; //6-byte short id, 32-byte transaction id, change as a varint
+	private static final byte PREFILLED = 1; //an encoded transaction, for those a Mempool can't hold (e.g. the genesis transaction)
+
+	private static final int MAX_MESSAGE_SIZE = 32 * 1024 * 1024;
+	private static final int HEADERS_PER_MESSAGE = 2000;
+	private static final int BLOCK_WINDOW = 16; //blocks requested from a peer and not yet received
+	private static final int MAX_PENDING_MESSAGES = 64; //messages of a peer waiting for the chain thread before it is no longer read from
+	private static final long MAX_QUEUED_BYTES = 8L * 1024 * 1024; //replies waiting to be written to a peer before it is no longer read from
+	private static final int SEEN_TRANSACTIONS = 65536; //recently relayed transactions, so gossip doesn't loop
+	private static final long SHORT_ID_MASK = 0xFFFFFFFFFFFFL; //short ids are 6 bytes
+
+	/** What the network needs from a node's chain. It is only ever called on the chain thread.
+	 * */
+	public interface Chain {
+		/** @return The number of blocks, which is also the height of the next block. */
+		int size();
+		/** @return The 80-byte header of the block at a height, or null if there is none. */
+		byte[] getHeader(int height);
+		/** @return The block with the given raw hash on any branch, or null if the chain doesn't hold it. */
+		Block getBlock(byte[] hash);
+		/** @return True if the block was valid and now extends the chain. */
+		boolean acceptBlock(Block block);
+		/** @return True if the transaction was valid and has been admitted to the Mempool. */
+		boolean acceptTransaction(Transactions transaction);
+		/** @return The transaction with the given raw id in the Mempool, which compact blocks are reconstructed from, or null if it isn't pooled. */
+		Transactions getPooledTransaction(byte[] transactionID);
+	}
+
+	/** The chain of this process's node, i.e. the static state in {@link Indicium_beta}.
+	 * */
+	public static class NodeChain implements Chain {
+		public int size() {
+			return Indicium_beta.state.size();
+		}
+
+		public byte[] getHeader(int height) {
+			Block block = Indicium_beta.getBlock(height);
+			return (block == null) ? null : block.getHeaderBytes();
+		}
+
+		public Block getBlock(byte[] hash) {
+			return Indicium_beta.getBlock(hash);
+		}
+
+		public boolean acceptBlock(Block block) {
+			return Indicium_beta.acceptBlock(block); //the block is announced onwards when it is added to the blockchain, which also cancels a block being mined on the old tip
+		}
+
+		public boolean acceptTransaction(Transactions transaction) {
+			return Indicium_beta.mempool.add(transaction);
+		}
+
+		public Transactions getPooledTransaction(byte[] transactionID) {
+			return Indicium_beta.mempool.get(StringUtil.toHexString(transactionID));
+		}
+	}
+
+	/** A connection to another node. Its IO state belongs to the selector thread and its sync state to the chain thread.
+	 * */
+	private static class Peer {
+		final SocketChannel channel;
+		final String name;
+		SelectionKey key;
+		ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+		final ConcurrentLinkedQueue<ByteBuffer> outbox = new ConcurrentLinkedQueue<ByteBuffer>();
+		final AtomicLong queuedBytes = new AtomicLong();
+		final AtomicInteger pendingMessages = new AtomicInteger();
+
+		//sync state, only used on the chain thread
+		int remoteSize; //the number of blocks the peer has announced
+		int headersUpTo; //height after the last header received from the peer
+		final HashSet<ByteBuffer> queued = new HashSet<ByteBuffer>(); //hashes of headers whose blocks are queued or in flight
+		int forkSearch; //how far back headers are requested when the peer's headers don't build on a known block
+		int requestedHeadersFrom = -1; //the first height of the outstanding header request, or -1
+		final ArrayDeque<byte[]> toDownload = new ArrayDeque<byte[]>(); //hashes of headers whose blocks haven't been requested yet
+		int inFlight; //blocks requested and not received
+		final HashMap<ByteBuffer, CompactBlock> compactBlocks = new HashMap<ByteBuffer, CompactBlock>(); //compact blocks from the peer waiting for their missing transactions
+
+		Peer(SocketChannel channel, String name) {
+			this.channel = channel;
+			this.name = name;
+		}
+	}
+
+	/** A compact block which couldn't be reconstructed from the Mempool alone, while its missing transactions are requested.
+	 * */
+	private static class CompactBlock {
+		final Block block; //only the header; the transactions are added once all of them are known
+		final Transactions[] transactions;
+		final int[] missing; //indexes of the transactions which were requested
+
+		CompactBlock(Block block, Transactions[] transactions, int[] missing) {
+			this.block = block;
+			this.transactions = transactions;
+			this.missing = missing;
+		}
+	}
+
+	private final Chain chain;
+	private final Selector selector;
+	private final Thread selectorThread;
+	private final ExecutorService chainThread;
+	private volatile Thread chainWorker; //the thread of the chainThread executor
+	private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<Runnable>();
+	private final CopyOnWriteArrayList<Peer> peers = new CopyOnWriteArrayList<Peer>();
+	private volatile boolean running = true;
+
+	@SuppressWarnings("serial")
+	private final LinkedHashMap<ByteBuffer, Boolean> seenTransactions = new LinkedHashMap<ByteBuffer, Boolean>() { //only used on the chain thread
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+			return size() > SEEN_TRANSACTIONS;
+		}
+	};
+
+	public PeerNetwork(Chain chain) throws IOException {
+		this.chain = chain;
+		selector = Selector.open();
+		chainThread = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "indicium-chain");
+			thread.setDaemon(true);
+			chainWorker = thread;
+			return thread;
+		});
+		selectorThread = new Thread(this::run, "indicium-network");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+
+	/** Accepts connections from other nodes.
+	 * @param port - The port to listen on, or 0 for any free port.
+	 * @return The port which is listened on.
+	 * */
+	public int listen(int port) throws IOException {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port));
+		server.configureBlocking(false);
+		runOnSelector(() -> {
+			try {
+				server.register(selector, SelectionKey.OP_ACCEPT);
+			} catch(ClosedChannelException ex) {
+				ex.printStackTrace();
+			}
+		});
+		return server.socket().getLocalPort();
+	}
+
+	/** Connects to another node. Both nodes then tell each other how long their chains are, and the shorter one syncs.
+	 * @param address - The address the other node listens on.
+	 * */
+	public void connect(InetSocketAddress address) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		channel.connect(address);
+		Peer peer = new Peer(channel, address.toString());
+		runOnSelector(() -> {
+			try {
+				peer.key = channel.register(selector, SelectionKey.OP_CONNECT, peer);
+			} catch(ClosedChannelException ex) {
+				ex.printStackTrace();
+			}
+		});
+	}
+
+	/** Runs a task on the chain thread, e.g. mining the next block, so it never races with blocks and transactions from peers.
+	 * @param task - The task.
+	 * @return The task's future.
+	 * */
+	public Future<?> submit(Runnable task) {
+		return chainThread.submit(task);
+	}
+
+	/** Runs a task with a result on the chain thread, e.g. reading the chain while no block is being added.
+	 * @param task - The task.
+	 * @return The task's future, which holds its result.
+	 * */
+	public <T> Future<T> submit(Callable<T> task) {
+		return chainThread.submit(task);
+	}
+
+	/** @return True if the calling thread is the chain thread, where tasks run directly instead of being submitted and waited for.
+	 * */
+	public boolean isChainThread() {
+		return Thread.currentThread() == chainWorker;
+	}
+
+	/** Announces a block which has been added to the chain by sending it to every peer as a compact block.
+	 * <br>Every transaction is sent as a short id, which peers look up in their Mempools, together with its full id, which tells apart transactions whose short ids collide, and its change, since the outputs aren't part of the gossiped transaction. Peers request whatever they can't find.
+	 * @param block - The block.
+	 * @param height - Its height in the chain.
+	 * */
+	public void announceBlock(Block block, int height) {
+		byte[] header = block.getHeaderBytes();
+		long salt = ThreadLocalRandom.current().nextLong(); //a new salt for every block, so short ids can't be made to collide in advance
+		long[] key = shortIDKey(header, salt);
+
+		int size = 4 + Block.HEADER_SIZE + 8 + 5;
+		byte[][] prefilled = new byte[block.transactions.size()][];
+		for(int i = 0; i < prefilled.length; i++) {
+			Transactions transaction = block.transactions.get(i);
+			if(isReconstructable(transaction)) {
+				size += 1 + 6 + 32 + 10;
+			} else {
+				prefilled[i] = BlockCodec.encodeTransaction(transaction);
+				size += 1 + prefilled[i].length;
+			}
+		}
+
+		ByteBuffer message = message(COMPACT_BLOCK, size);
+		message.putInt(height).put(header).putLong(salt);
+		BlockCodec.putVarint(message, prefilled.length);
+		for(int i = 0; i < prefilled.length; i++) {
+			Transactions transaction = block.transactions.get(i);
+			if(prefilled[i] == null) {
+				long shortID = shortID(key, transaction);
+				message.put(SHORT_ID).putShort((short) (shortID >>> 32)).putInt((int) shortID);
+				message.put(StringUtil.hashFromHex(transaction.transactionID));
+				BlockCodec.putVarint(message, transaction.outputs.get(1).value);
+			} else {
+				message.put(PREFILLED).put(prefilled[i]);
+			}
+		}
+		message.putInt(0, message.position() - 4); //the size above is an upper bound
+		broadcast(message, null);
+	}
+
+	/** Announces a transaction which has been admitted to this node's Mempool.
+	 * @param transaction - The signed transaction.
+	 * */
+	public void announceTransaction(Transactions transaction) {
+		byte[] encoded = BlockCodec.encodeTransaction(transaction);
+		chainThread.execute(() -> {
+			seenTransactions.put(ByteBuffer.wrap(StringUtil.applySHA256Raw(transaction.signature)), Boolean.TRUE);
+			broadcast(message(TRANSACTION, encoded.length).put(encoded), null);
+		});
+	}
+
+	public int peerCount() {
+		return peers.size();
+	}
+
+	@Override
+	public void close() throws IOException {
+		running = false;
+		selector.wakeup();
+		try {
+			selectorThread.join(1000);
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		for(SelectionKey key : selector.keys()) {
+			key.channel().close();
+		}
+		selector.close();
+		chainThread.shutdownNow();
+	}
+
+	/** The selector loop, which does every read, write, accept and connect without blocking.
+	 * */
+	private void run() {
+		while(running) {
+			try {
+				selector.select(1000);
+				for(Runnable task; (task = selectorTasks.poll()) != null;) {
+					task.run();
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if(!(key.isValid())) {
+						continue;
+					}
+					if(key.isAcceptable()) {
+						accept((ServerSocketChannel) key.channel());
+						continue;
+					}
+					Peer peer = (Peer) key.attachment();
+					try {
+						if(key.isConnectable()) {
+							if(!(peer.channel.finishConnect())) {
+								continue;
+							}
+							connected(peer);
+						}
+						if(key.isValid() && key.isReadable()) {
+							read(peer);
+						}
+						if(key.isValid() && key.isWritable()) {
+							write(peer);
+						}
+						if(key.isValid()) {
+							updateInterest(peer);
+						}
+					} catch(IOException ex) {
+						disconnect(peer, ex.getMessage());
+					}
+				}
+			} catch(IOException | ClosedSelectorException ex) {
+				if(running) {
+					ex.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void accept(ServerSocketChannel server) throws IOException {
+		SocketChannel channel = server.accept();
+		if(channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		Peer peer = new Peer(channel, channel.getRemoteAddress().toString());
+		peer.key = channel.register(selector, 0, peer);
+		connected(peer);
+	}
+
+	private void connected(Peer peer) {
+		peers.add(peer);
+		peer.key.interestOps(SelectionKey.OP_READ);
+		Log.info("#Connected to peer " + peer.name);
+		chainThread.execute(() -> send(peer, message(HELLO, 4).putInt(chain.size())));
+	}
+
+	/** Reads whatever the peer has sent and hands every complete message to the chain thread.
+	 * */
+	private void read(Peer peer) throws IOException {
+		if(peer.channel.read(peer.readBuffer) < 0) {
+			throw new EOFException("closed by peer");
+		}
+		ByteBuffer buffer = peer.readBuffer;
+		buffer.flip();
+		while(buffer.remaining() >= 4) {
+			int length = buffer.getInt(buffer.position());
+			if(length < 1 || length > MAX_MESSAGE_SIZE) {
+				throw new IOException("invalid message length " + length);
+			}
+			if(buffer.remaining() < 4 + length) {
+				if(buffer.capacity() < 4 + length) {
+					peer.readBuffer = ByteBuffer.allocate(4 + length).put(buffer); //grown to fit a large block
+					return;
+				}
+				break;
+			}
+			buffer.getInt();
+			byte[] message = new byte[length];
+			buffer.get(message);
+			dispatch(peer, message);
+		}
+		buffer.compact();
+	}
+
+	private void write(Peer peer) throws IOException {
+		for(ByteBuffer head; (head = peer.outbox.peek()) != null;) {
+			peer.channel.write(head);
+			if(head.hasRemaining()) {
+				return; //the socket is full; the rest is written once it is writable again
+			}
+			peer.outbox.poll();
+			peer.queuedBytes.addAndGet(-head.limit());
+		}
+	}
+
+	/** Reads from a peer only while it isn't backed up, and writes to it while there is something to write.
+	 * */
+	private void updateInterest(Peer peer) {
+		if(peer.key == null || !(peer.key.isValid()) || peer.channel.isConnectionPending()) {
+			return;
+		}
+		int ops = 0;
+		if(peer.queuedBytes.get() < MAX_QUEUED_BYTES && peer.pendingMessages.get() < MAX_PENDING_MESSAGES) {
+			ops |= SelectionKey.OP_READ;
+		}
+		if(!(peer.outbox.isEmpty())) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		peer.key.interestOps(ops);
+	}
+
+	private void dispatch(Peer peer, byte[] message) {
+		peer.pendingMessages.incrementAndGet();
+		chainThread.execute(() -> {
+			try {
+				handle(peer, ByteBuffer.wrap(message));
+			} catch(RuntimeException ex) {
+				disconnect(peer, "malformed message: " + ex);
+			} finally {
+				if(peer.pendingMessages.decrementAndGet() == MAX_PENDING_MESSAGES - 1) {
+					runOnSelector(() -> updateInterest(peer)); //the peer can be read from again
+				}
+			}
+		});
+	}
+
+	/** Handles a message from a peer. Runs on the chain thread.
+	 * */
+	private void handle(Peer peer, ByteBuffer message) {
+		byte type = message.get();
+		switch(type) {
+		case HELLO:
+			peer.remoteSize = message.getInt();
+			requestHeaders(peer);
+			break;
+		case GET_HEADERS:
+			sendHeaders(peer, message.getInt(), message.getInt());
+			break;
+		case HEADERS:
+			receiveHeaders(peer, message);
+			break;
+		case GET_BLOCKS:
+			sendBlocks(peer, message);
+			break;
+		case BLOCK:
+			receiveBlock(peer, BlockCodec.decode(message));
+			break;
+		case NOT_FOUND:
+			byte[] hash = new byte[32];
+			message.get(hash);
+			if(peer.compactBlocks.remove(ByteBuffer.wrap(hash)) == null) {
+				peer.inFlight--;
+			}
+			restartSync(peer);
+			requestHeaders(peer);
+			break;
+		case TRANSACTION:
+			receiveTransaction(peer, BlockCodec.decodeTransaction(message), message);
+			break;
+		case COMPACT_BLOCK:
+			receiveCompactBlock(peer, message);
+			break;
+		case GET_BLOCK_TRANSACTIONS:
+			sendBlockTransactions(peer, message);
+			break;
+		case BLOCK_TRANSACTIONS:
+			receiveBlockTransactions(peer, message);
+			break;
+		default:
+			throw new IllegalArgumentException("unknown message type " + type);
+		}
+	}
+
+	/** Asks the peer for the next batch of headers, if it has announced more blocks than are known here and no request is outstanding.
+	 * */
+	private void requestHeaders(Peer peer) {
+		int next = nextHeight(peer);
+		if(peer.requestedHeadersFrom < 0 && peer.remoteSize > next) {
+			peer.requestedHeadersFrom = next;
+			send(peer, message(GET_HEADERS, 8).putInt(next).putInt(HEADERS_PER_MESSAGE));
+		}
+	}
+
+	private void sendHeaders(Peer peer, int from, int count) {
+		count = Math.max(0, Math.min(Math.min(count, HEADERS_PER_MESSAGE), chain.size() - from));
+		ByteBuffer message = message(HEADERS, 8 + count * Block.HEADER_SIZE);
+		message.putInt(from).putInt(count);
+		for(int height = from; height < from + count; height++) {
+			message.put(chain.getHeader(height));
+		}
+		send(peer, message);
+	}
+
+	/** Checks a batch of headers, which is either the reply to a request or the announcement of a new block, and queues the download of their blocks.
+	 * */
+	private void receiveHeaders(Peer peer, ByteBuffer message) {
+		int from = message.getInt();
+		int count = message.getInt();
+		if(count < 0 || count > HEADERS_PER_MESSAGE || message.remaining() != count * Block.HEADER_SIZE) {
+			throw new IllegalArgumentException("invalid header count " + count);
+		}
+		if(from == peer.requestedHeadersFrom) {
+			peer.requestedHeadersFrom = -1;
+		}
+		peer.remoteSize = Math.max(peer.remoteSize, from + count);
+
+		int next = nextHeight(peer);
+		if(from > next) {
+			requestHeaders(peer); //an announcement beyond what is known here, so the headers in between are fetched first
+			return;
+		}
+		for(int height = from; height < from + count; height++) {
+			Block header = Block.fromHeader(message);
+			if(isKnown(peer, header.hash)) {
+				continue;
+			}
+			boolean genesis = (height == 0 && chain.size() == 0 && header.isGenesis()); //a new node takes the genesis block of its first peer
+			if(!(genesis || isKnown(peer, header.prevHash))) {
+				searchFork(peer, from);
+				return;
+			}
+			if(!(Difficulty.meetsTarget(header.hash, header.getBits()))) {
+				disconnect(peer, "header without Proof-of-Work at height " + height);
+				return;
+			}
+			peer.toDownload.add(header.hash);
+			peer.queued.add(ByteBuffer.wrap(header.hash));
+			peer.headersUpTo = Math.max(peer.headersUpTo, height + 1);
+		}
+		peer.forkSearch = 0;
+
+		requestBlocks(peer);
+		requestHeaders(peer); //the next batch of headers is fetched while the blocks download
+	}
+
+	/** @return True if the block is in the chain, on any branch, or is already being downloaded from the peer.
+	 * */
+	private boolean isKnown(Peer peer, byte[] hash) {
+		return peer.queued.contains(ByteBuffer.wrap(hash)) || chain.getBlock(hash) != null;
+	}
+
+	/** The peer is on a branch whose fork point isn't known yet, so headers are requested from further and further back until they build on a known block.
+	 * */
+	private void searchFork(Peer peer, int from) {
+		if(from == 0) {
+			disconnect(peer, "different genesis block");
+			return;
+		}
+		peer.forkSearch = Math.max(1, peer.forkSearch * 2);
+		int start = Math.max(0, Math.min(from, chain.size()) - peer.forkSearch);
+		if(peer.requestedHeadersFrom < 0) {
+			peer.requestedHeadersFrom = start;
+			send(peer, message(GET_HEADERS, 8).putInt(start).putInt(HEADERS_PER_MESSAGE));
+		}
+	}
+
+	/** Requests queued blocks from the peer until the download window is full.
+	 * */
+	private void requestBlocks(Peer peer) {
+		int count = Math.min(BLOCK_WINDOW - peer.inFlight, peer.toDownload.size());
+		if(count <= 0) {
+			return;
+		}
+		ByteBuffer message = message(GET_BLOCKS, 4 + count * 32);
+		message.putInt(count);
+		for(int i = 0; i < count; i++) {
+			message.put(peer.toDownload.poll());
+		}
+		peer.inFlight += count;
+		send(peer, message);
+	}
+
+	private void sendBlocks(Peer peer, ByteBuffer message) {
+		int count = message.getInt();
+		if(count < 0 || count > BLOCK_WINDOW || message.remaining() != count * 32) {
+			throw new IllegalArgumentException("invalid block request count " + count);
+		}
+		for(int i = 0; i < count; i++) {
+			byte[] hash = new byte[32];
+			message.get(hash);
+			Block block = chain.getBlock(hash);
+			if(block == null || block.isPruned()) { //a pruned node only serves the blocks it still has the transactions of
+				send(peer, message(NOT_FOUND, 32).put(hash));
+				continue;
+			}
+			ByteBuffer encoded = BlockCodec.encodePooled(block);
+			send(peer, message(BLOCK, encoded.remaining()).put(encoded));
+		}
+	}
+
+	private void receiveBlock(Peer peer, Block block) {
+		peer.inFlight = Math.max(0, peer.inFlight - 1);
+		peer.queued.remove(ByteBuffer.wrap(block.hash));
+		if(chain.getBlock(block.hash) == null && !(chain.acceptBlock(block))) {
+			Log.warn("#Block " + block.getHash() + " from peer " + peer.name + " was rejected. ");
+			restartSync(peer);
+		}
+		requestBlocks(peer);
+		requestHeaders(peer);
+	}
+
+	/** Reconstructs a compact block from the Mempool, and requests the transactions which aren't in it from the peer.
+	 * <br>A block which doesn't build on a known block is treated as an announcement, so its headers are synced and it is downloaded whole.
+	 * */
+	private void receiveCompactBlock(Peer peer, ByteBuffer message) {
+		int height = message.getInt();
+		Block block = Block.fromHeader(message);
+		long salt = message.getLong();
+		int count = BlockCodec.getCount(message);
+		peer.remoteSize = Math.max(peer.remoteSize, height + 1);
+		if(isKnown(peer, block.hash)) {
+			return;
+		}
+		if(chain.getBlock(block.prevHash) == null) {
+			requestHeaders(peer);
+			return;
+		}
+		if(!(Difficulty.meetsTarget(block.hash, block.getBits()))) {
+			disconnect(peer, "compact block without Proof-of-Work at height " + height);
+			return;
+		}
+
+		long[] key = shortIDKey(block.getHeaderBytes(), salt);
+		Transactions[] transactions = new Transactions[count];
+		int[] missing = new int[count];
+		int missingCount = 0;
+		for(int i = 0; i < count; i++) {
+			byte kind = message.get();
+			if(kind == PREFILLED) {
+				transactions[i] = BlockCodec.decodeTransaction(message);
+				continue;
+			}
+			if(kind != SHORT_ID) {
+				throw new IllegalArgumentException("unknown compact block entry " + kind);
+			}
+			long shortID = ((message.getShort() & 0xFFFFL) << 32) | (message.getInt() & 0xFFFFFFFFL);
+			byte[] id = new byte[32];
+			message.get(id);
+			long change = BlockCodec.getVarint(message);
+			Transactions pooled = chain.getPooledTransaction(id); //looked up by its id, so the Mempool is never hashed under the block's key
+			if(pooled == null || shortID(key, pooled) != shortID) {
+				missing[missingCount++] = i; //a transaction whose short id doesn't match the one announced is requested as well
+			} else {
+				transactions[i] = reconstruct(pooled, change);
+			}
+		}
+
+		peer.queued.add(ByteBuffer.wrap(block.hash));
+		if(missingCount == 0) {
+			completeCompactBlock(peer, block, transactions);
+			return;
+		}
+		peer.compactBlocks.put(ByteBuffer.wrap(block.hash), new CompactBlock(block, transactions, Arrays.copyOf(missing, missingCount)));
+		ByteBuffer request = message(GET_BLOCK_TRANSACTIONS, 32 + 5 + missingCount * 5);
+		request.put(block.hash);
+		BlockCodec.putVarint(request, missingCount);
+		for(int i = 0; i < missingCount; i++) {
+			BlockCodec.putVarint(request, missing[i]);
+		}
+		request.putInt(0, request.position() - 4); //the size above is an upper bound
+		send(peer, request);
+	}
+
+	private void sendBlockTransactions(Peer peer, ByteBuffer message) {
+		byte[] hash = new byte[32];
+		message.get(hash);
+		int count = BlockCodec.getCount(message);
+		Block block = chain.getBlock(hash);
+		if(block == null || block.isPruned()) {
+			send(peer, message(NOT_FOUND, 32).put(hash));
+			return;
+		}
+		byte[][] encoded = new byte[count][];
+		int size = 32 + 5;
+		for(int i = 0; i < count; i++) {
+			long index = BlockCodec.getVarint(message);
+			if(index >= block.transactions.size()) {
+				throw new IllegalArgumentException("invalid transaction index " + index);
+			}
+			encoded[i] = BlockCodec.encodeTransaction(block.transactions.get((int) index));
+			size += encoded[i].length;
+		}
+		ByteBuffer reply = message(BLOCK_TRANSACTIONS, size);
+		reply.put(hash);
+		BlockCodec.putVarint(reply, count);
+		for(byte[] transaction : encoded) {
+			reply.put(transaction);
+		}
+		reply.putInt(0, reply.position() - 4); //the size above is an upper bound
+		send(peer, reply);
+	}
+
+	private void receiveBlockTransactions(Peer peer, ByteBuffer message) {
+		byte[] hash = new byte[32];
+		message.get(hash);
+		CompactBlock compact = peer.compactBlocks.remove(ByteBuffer.wrap(hash));
+		if(compact == null) {
+			return; //the block was given up on in the meantime
+		}
+		int count = BlockCodec.getCount(message);
+		if(count != compact.missing.length) {
+			throw new IllegalArgumentException("expected " + compact.missing.length + " transactions, got " + count);
+		}
+		for(int index : compact.missing) {
+			compact.transactions[index] = BlockCodec.decodeTransaction(message);
+		}
+		completeCompactBlock(peer, compact.block, compact.transactions);
+	}
+
+	/** Adds a reconstructed block to the chain. If its transactions don't match its Merkle root, the block is downloaded whole instead.
+	 * */
+	private void completeCompactBlock(Peer peer, Block block, Transactions[] transactions) {
+		block.transactions.addAll(Arrays.asList(transactions));
+		if(!(Arrays.equals(MerkleTree.of(block.transactions).getRoot(), block.merkleRoot))) {
+			Log.warn("#Compact block " + block.getHash() + " from peer " + peer.name + " doesn't match its Merkle root, so it is downloaded whole. ");
+			peer.toDownload.add(block.hash);
+			requestBlocks(peer);
+			return;
+		}
+		peer.queued.remove(ByteBuffer.wrap(block.hash));
+		if(chain.getBlock(block.hash) == null && !(chain.acceptBlock(block))) {
+			Log.warn("#Block " + block.getHash() + " from peer " + peer.name + " was rejected. ");
+			restartSync(peer);
+		}
+		requestHeaders(peer);
+	}
+
+	/** @return The SipHash key of a compact block: the first 16 bytes of the SHA-256 hash of its header and salt.
+	 * */
+	private static long[] shortIDKey(byte[] header, long salt) {
+		ByteBuffer digest = ByteBuffer.wrap(StringUtil.applySHA256Raw(header, ByteBuffer.allocate(8).putLong(salt).array()));
+		return new long[] { digest.getLong(), digest.getLong() };
+	}
+
+	/** @return The 6-byte short id of a transaction, over its id, which is the hash of everything the Sender signed and the signature.
+	 * */
+	private static long shortID(long[] key, Transactions transaction) {
+		return StringUtil.sipHash(key[0], key[1], StringUtil.hashFromHex(transaction.transactionID)) & SHORT_ID_MASK;
+	}
+
+	/** @return True if a mined transaction can be rebuilt from a pooled copy and its change, i.e. it pays the receiver and then the sender, as {@link Transactions#applyTransaction()} does.
+	 * */
+	private static boolean isReconstructable(Transactions transaction) {
+		return transaction.transactionID != null && transaction.signature != null && transaction.inputs != null && transaction.outputs.size() == 2
+				&& transaction.outputs.get(0).value == transaction.value && transaction.outputs.get(0).isMine(transaction.receiver) && transaction.outputs.get(1).isMine(transaction.sender);
+	}
+
+	/** Rebuilds a mined transaction from a copy in the Mempool, which hasn't got any outputs, and leaves the copy as it is.
+	 * @param pooled - The pooled copy, which has the same id as the mined transaction.
+	 * @param change - The value of the output back to the sender.
+	 * */
+	private static Transactions reconstruct(Transactions pooled, long change) {
+		String id = pooled.transactionID;
+		ArrayList<TransactionInput> inputs = new ArrayList<TransactionInput>(pooled.inputs.size());
+		for(TransactionInput input : pooled.inputs) {
+			inputs.add(new TransactionInput(input.transactionOutID));
+		}
+		Transactions transaction = new Transactions(pooled.sender, pooled.receiver, pooled.value, inputs);
+		transaction.transactionID = id;
+		transaction.timeOfCreation = pooled.timeOfCreation;
+		transaction.signature = pooled.signature;
+		transaction.outputs.add(new TransactionOutput(pooled.receiver, pooled.value, id));
+		transaction.outputs.add(new TransactionOutput(pooled.sender, change, id));
+		return transaction;
+	}
+
+	/** Drops what was queued for download from a peer, so the next headers are fetched from the tip of the chain again.
+	 * */
+	private void restartSync(Peer peer) {
+		peer.toDownload.clear();
+		peer.headersUpTo = 0;
+		peer.queued.clear();
+	}
+
+	private void receiveTransaction(Peer peer, Transactions transaction, ByteBuffer message) {
+		ByteBuffer key = ByteBuffer.wrap(StringUtil.applySHA256Raw(transaction.signature));
+		if(seenTransactions.put(key, Boolean.TRUE) != null) {
+			return;
+		}
+		if(chain.acceptTransaction(transaction)) {
+			message.rewind();
+			broadcast(message(TRANSACTION, message.remaining() - 1).put(message.position(1)), peer);
+		}
+	}
+
+	/** @return The height of the next header which is needed from the peer.
+	 * */
+	private int nextHeight(Peer peer) {
+		return Math.max(chain.size(), peer.headersUpTo);
+	}
+
+	/** Sends a message to every peer but one. Gossip to a peer which is backed up is dropped.
+	 * */
+	private void broadcast(ByteBuffer message, Peer except) {
+		for(Peer peer : peers) {
+			if(peer != except && peer.queuedBytes.get() < MAX_QUEUED_BYTES) {
+				send(peer, message.duplicate());
+			}
+		}
+	}
+
+	/** Queues a message for a peer. Can be called from any thread.
+	 * @param message - A message from {@link #message(byte, int)} which has been filled in.
+	 * */
+	private void send(Peer peer, ByteBuffer message) {
+		if(message.position() != 0) {
+			message.flip();
+		}
+		peer.queuedBytes.addAndGet(message.limit());
+		peer.outbox.add(message);
+		runOnSelector(() -> updateInterest(peer));
+	}
+
+	private void disconnect(Peer peer, String reason) {
+		runOnSelector(() -> {
+			if(peers.remove(peer)) {
+				Log.info("#Disconnected from peer " + peer.name + ": " + reason);
+			}
+			if(peer.key != null) {
+				peer.key.cancel();
+			}
+			try {
+				peer.channel.close();
+			} catch(IOException ex) {
+				ex.printStackTrace();
+			}
+		});
+	}
+
+	private void runOnSelector(Runnable task) {
+		selectorTasks.add(task);
+		selector.wakeup();
+	}
+
+	private static ByteBuffer message(byte type, int payloadSize) {
+		ByteBuffer message = ByteBuffer.allocate(4 + 1 + payloadSize);
+		message.putInt(1 + payloadSize).put(type);
+		return message;
+	}
+
+	/** Runs a node of the network: java PeerNetwork port [host:port ...] [--genesis | --genesis-hash=hash] [--mine] [--metrics=port] [--rpc=port]
+	 * <br>The node with --genesis creates the chain; every other node syncs it from its peers. With --genesis-hash a node only takes the chain which starts from that genesis block. Nodes with --mine keep mining the next block.
+	 * <br>The node's {@link Metrics} are registered with JMX, and with --metrics also served on http://127.0.0.1:port/metrics. With --rpc the node answers JSON-RPC calls on http://127.0.0.1:port/ (see {@link RPCServer}).
+	 * */
+	public static void main(String[] args) throws Exception {
+		Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+		PeerNetwork network = new PeerNetwork(new NodeChain());
+		Indicium_beta.network = network;
+		System.out.println("#Listening on port " + network.listen(Integer.parseInt(args[0])));
+
+		List<String> options = Arrays.asList(args).subList(1, args.length);
+		for(String option : options) {
+			if(option.startsWith("--genesis-hash=")) {
+				//set before the chain is restored or synced, so a chain from another genesis block is never taken
+				network.submit(() -> Indicium_beta.setParams(Indicium_beta.params.withGenesisHash(StringUtil.hashFromHex(option.substring(15))))).get();
+			}
+		}
+		for(String option : options) {
+			if(option.startsWith("--data=")) {
+				//the stored chain is restored before any peer connects, so the node announces its own tip instead of starting without a chain
+				network.submit(() -> Indicium_beta.openDataDirectory(Paths.get(option.substring(7)))).get();
+			}
+		}
+		Metrics.registerMBean();
+		for(String option : options) {
+			if(option.startsWith("--metrics=")) {
+				System.out.println("#Serving metrics on port " + Metrics.serve(Integer.parseInt(option.substring(10))).getAddress().getPort());
+			} else if(option.startsWith("--rpc=")) {
+				RPCServer rpc = new RPCServer(Integer.parseInt(option.substring(6)));
+				rpc.start();
+				System.out.println("#Serving JSON-RPC on port " + rpc.getPort());
+			} else if(!(option.startsWith("--"))) {
+				String[] hostAndPort = option.split(":");
+				network.connect(new InetSocketAddress(hostAndPort[0], Integer.parseInt(hostAndPort[1])));
+			}
+		}
+		if(options.contains("--genesis") && network.submit(() -> Indicium_beta.blockchain.isEmpty()).get()) {
+			network.submit(() -> Indicium_beta.createGenesis(new Wallet_beta(), new Wallet_beta(), Amount.ofCoins(1729), Indicium_beta.difficulty)).get();
+		}
+
+		if(options.contains("--mine")) {
+			Indicium_beta.startMining(); //mined on the node's mining thread, while the chain thread keeps connecting blocks from peers
+		}
+		while(true) {
+			Thread.sleep(1000);
+			BlockTree.Node tip = Indicium_beta.blockTree.getTip();
+			System.out.println("#Height " + Indicium_beta.blockchain.size() + ", tip " + ((tip == null) ? "none" : tip.block.getHash()) + ", peers " + network.peerCount());
+		}
+	}
+}
@@ -0,0 +1,468 @@
+package indicium_blockChain;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+import com.google.gson.*;
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class RPCServer {
+	// A JSON-RPC 2.0 API over HTTP for wallets and block explorers, served on the loopback interface: POST a request (or a batch of them) to http://127.0.0.1:port/
+	// A call without an id is a notification, which is run but never answered; a request of only notifications gets an empty response. Malformed params, e.g. a hash which isn't hexadecimal, are answered with INVALID_PARAMS before the call touches the chain.
+	// Connections are multiplexed by the HttpServer's selector, so idle keep-alive clients cost no thread; only requests in progress take one of the worker threads. Queries read one committed ChainState each and never wait for the writer, and responses are streamed with a JsonWriter straight into the connection instead of being built as one String.
+	//
+	// Methods (params are named):
+	//   getTip                                  the height, hash and target of the tip, and the sizes of the UTXOs and the Mempool
+	//   getBalance        {address | owner}     the balance of a compressed public key, or of an owner hash, both in hexadecimal
+	//   getBlock          {height | hash}       a block with its transactions, or only its header if it has been pruned
+	//   getTransaction    {id}                  a mined transaction, with the block holding it
+	//   submitTransaction {transaction}         admits a transaction, given as its BlockCodec encoding in hexadecimal, and returns its id
+	//   startMining, stopMining, getMiningStatus
+
+	private static final int MAX_REQUEST_SIZE = 1 << 20;
+	private static final int MAX_IDLE_CONNECTIONS = 10000; //keep-alive connections held open between requests
+
+	static {
+		//the JDK's server closes keep-alive connections beyond 200 by default; it reads the limit once, when the first server is created
+		if(System.getProperty("sun.net.httpserver.maxIdleConnections") == null) {
+			System.setProperty("sun.net.httpserver.maxIdleConnections", Integer.toString(MAX_IDLE_CONNECTIONS));
+		}
+	}
+
+	//the error codes of the JSON-RPC 2.0 specification
+	public static final int PARSE_ERROR = -32700;
+	public static final int INVALID_REQUEST = -32600;
+	public static final int METHOD_NOT_FOUND = -32601;
+	public static final int INVALID_PARAMS = -32602;
+	public static final int INTERNAL_ERROR = -32603;
+
+	private final HttpServer server;
+	private final ThreadPoolExecutor workers;
+
+	/** A failed call, which is answered with a JSON-RPC error object.
+	 * */
+	public static class RPCException extends Exception {
+		private static final long serialVersionUID = 1L;
+		public final int code;
+
+		public RPCException(int code, String message) {
+			super(message);
+			this.code = code;
+		}
+	}
+
+	/** Writes a call's result. The result is looked up before it is written, so a failed call can still be answered with an error.
+	 * */
+	private interface Result {
+		void write(JsonWriter out) throws IOException;
+	}
+
+	/** @param port - The port, or 0 for any free port.
+	 * @param threadCount - How many requests are handled at once.
+	 * */
+	public RPCServer(int port, int threadCount) throws IOException {
+		int threads = Math.max(1, threadCount);
+		workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				runnable -> {
+					Thread worker = new Thread(runnable, "indicium-rpc");
+					worker.setDaemon(true);
+					return worker;
+				});
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+		server.createContext("/", this::handle);
+		server.setExecutor(workers);
+	}
+
+	public RPCServer(int port) throws IOException {
+		this(port, 2 * Runtime.getRuntime().availableProcessors()); //a few more threads than cores, as requests also wait on their clients
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	/** @return The port the server is bound to.
+	 * */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/** Stops mining, closes every connection and stops the worker threads.
+	 * */
+	public void stop() {
+		stopMining();
+		server.stop(0);
+		workers.shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			if(!(exchange.getRequestMethod().equals("POST"))) {
+				exchange.getResponseHeaders().set("Allow", "POST");
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			byte[] body = exchange.getRequestBody().readNBytes(MAX_REQUEST_SIZE + 1);
+			if(body.length > MAX_REQUEST_SIZE) {
+				exchange.sendResponseHeaders(413, -1);
+				return;
+			}
+
+			JsonElement request;
+			try {
+				request = JsonParser.parseString(new String(body, StandardCharsets.UTF_8));
+			} catch(JsonParseException ex) {
+				request = null;
+			}
+			boolean batch = (request != null && request.isJsonArray() && !(request.getAsJsonArray().isEmpty())); //an empty batch is answered as an invalid request
+			List<JsonElement> calls = batch ? request.getAsJsonArray().asList() : Collections.singletonList(request);
+			boolean answered = false;
+			for(JsonElement call : calls) {
+				answered |= !(isNotification(call));
+			}
+			if(!(answered)) {
+				exchange.sendResponseHeaders(204, -1); //notifications are run, but never answered
+				for(JsonElement call : calls) {
+					answer(call, null);
+				}
+				return;
+			}
+
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, 0); //the length isn't known in advance, so the response is chunked
+			try(JsonWriter out = new JsonWriter(new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8)))) {
+				if(request == null) {
+					writeError(out, JsonNull.INSTANCE, PARSE_ERROR, "Parse error");
+				} else if(batch) {
+					out.beginArray();
+					for(JsonElement call : calls) {
+						answer(call, out);
+					}
+					out.endArray();
+				} else {
+					answer(request, out);
+				}
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/** @return True if the request is a valid call without an id, which the client expects no response to.
+	 * */
+	private static boolean isNotification(JsonElement request) {
+		return isCall(request) && !(request.getAsJsonObject().has("id"));
+	}
+
+	/** @return True if the request is an object with the name of a method, and an id which is a string, a number or null if it has one.
+	 * */
+	private static boolean isCall(JsonElement request) {
+		if(request == null || !(request.isJsonObject())) {
+			return false;
+		}
+		JsonElement method = request.getAsJsonObject().get("method");
+		JsonElement id = request.getAsJsonObject().get("id");
+		return method != null && method.isJsonPrimitive() && method.getAsJsonPrimitive().isString()
+				&& (id == null || id.isJsonNull() || (id.isJsonPrimitive() && !(id.getAsJsonPrimitive().isBoolean())));
+	}
+
+	/** Runs a call and writes its response, unless the call is a notification.
+	 * @param request - The call.
+	 * @param out - The response, or null if every call is a notification.
+	 * */
+	private void answer(JsonElement request, JsonWriter out) throws IOException {
+		if(!(isCall(request))) {
+			writeError(out, JsonNull.INSTANCE, INVALID_REQUEST, "Invalid request");
+			return;
+		}
+		JsonObject call = request.getAsJsonObject();
+		boolean notification = !(call.has("id"));
+		JsonElement id = notification ? JsonNull.INSTANCE : call.get("id");
+		JsonElement params = call.get("params");
+
+		Result result;
+		try {
+			if(params != null && !(params.isJsonNull()) && !(params.isJsonObject())) {
+				throw new RPCException(INVALID_PARAMS, "The params have to be named");
+			}
+			result = call(call.get("method").getAsString(), (params != null && params.isJsonObject()) ? params.getAsJsonObject() : new JsonObject());
+		} catch(RPCException ex) {
+			if(!(notification)) {
+				writeError(out, id, ex.code, ex.getMessage());
+			}
+			return;
+		} catch(RuntimeException ex) {
+			Log.error("#RPC call " + call.get("method") + " failed: " + ex);
+			if(!(notification)) {
+				writeError(out, id, INTERNAL_ERROR, "Internal error");
+			}
+			return;
+		}
+		if(notification) {
+			return;
+		}
+
+		out.beginObject();
+		out.name("jsonrpc").value("2.0");
+		out.name("id");
+		writeElement(out, id);
+		out.name("result");
+		result.write(out);
+		out.endObject();
+	}
+
+	/** Runs a call.
+	 * @param method - The name of the method.
+	 * @param params - The named parameters.
+	 * @return The result, which is written once the call has succeeded.
+	 * */
+	private Result call(String method, JsonObject params) throws RPCException {
+		switch(method) {
+			case "getTip":
+				return getTip();
+			case "getBalance":
+				return getBalance(params);
+			case "getBlock":
+				return getBlock(params);
+			case "getTransaction":
+				return getTransaction(params);
+			case "submitTransaction":
+				return submitTransaction(params);
+			case "startMining":
+				return startMining();
+			case "stopMining":
+				return stopMining();
+			case "getMiningStatus":
+				return getMiningStatus();
+			default:
+				throw new RPCException(METHOD_NOT_FOUND, "Method not found: " + method);
+		}
+	}
+
+	private Result getTip() {
+		ChainState state = Indicium_beta.state;
+		Block tip = state.getTip();
+		int mempoolSize = Indicium_beta.mempool.size();
+		return out -> {
+			out.beginObject();
+			out.name("height").value(state.height);
+			out.name("hash").value((tip == null) ? null : tip.getHash());
+			out.name("bits").value((tip == null) ? null : Integer.toHexString(tip.getBits()));
+			out.name("version").value(state.version);
+			out.name("utxos").value(state.utxoCount);
+			out.name("mempool").value(mempoolSize);
+			out.endObject();
+		};
+	}
+
+	private Result getBalance(JsonObject params) throws RPCException {
+		byte[] owner;
+		if(params.has("address")) {
+			owner = CryptoContext.getKeyHash(decodeKey(getString(params, "address")));
+		} else {
+			owner = decodeHash(getString(params, "owner"));
+		}
+		long balance = Indicium_beta.state.getBalance(owner);
+		return out -> {
+			out.beginObject();
+			out.name("owner").value(StringUtil.toHexString(owner));
+			out.name("balance").value(balance);
+			out.name("amount").value(Amount.toString(balance));
+			out.endObject();
+		};
+	}
+
+	private Result getBlock(JsonObject params) throws RPCException {
+		Block block;
+		int height;
+		if(params.has("hash")) {
+			block = Indicium_beta.getBlock(decodeHash(getString(params, "hash")));
+			height = (block == null) ? -1 : Indicium_beta.chainIndex.getHeight(block.hash);
+		} else {
+			height = getInt(params, "height");
+			block = (height < 0) ? null : Indicium_beta.getBlock(height);
+		}
+		if(block == null) {
+			throw new RPCException(INVALID_PARAMS, "Block not found");
+		}
+		final int blockHeight = height;
+		return out -> writeBlock(out, block, blockHeight);
+	}
+
+	private Result getTransaction(JsonObject params) throws RPCException {
+		byte[] id = decodeHash(getString(params, "id")); //checked first, so a malformed id is an invalid param rather than an internal error
+		long location = Indicium_beta.chainIndex.getLocation(StringUtil.toHexString(id));
+		Block block = (location < 0) ? null : Indicium_beta.getBlock(ChainIndex.heightOf(location));
+		if(block == null) {
+			throw new RPCException(INVALID_PARAMS, "Transaction not found");
+		}
+		ArrayList<Transactions> transactions = block.transactions;
+		if(ChainIndex.positionOf(location) >= transactions.size()) {
+			throw new RPCException(INVALID_PARAMS, "Transaction not found"); //its block has been pruned since it was found
+		}
+		Transactions transaction = transactions.get(ChainIndex.positionOf(location));
+		return out -> {
+			out.beginObject();
+			out.name("blockHeight").value(ChainIndex.heightOf(location));
+			out.name("blockHash").value(block.getHash());
+			out.name("transaction");
+			writeTransaction(out, transaction);
+			out.endObject();
+		};
+	}
+
+	private Result submitTransaction(JsonObject params) throws RPCException {
+		Transactions transaction;
+		try {
+			transaction = BlockCodec.decodeTransaction(ByteBuffer.wrap(StringUtil.fromHexString(getString(params, "transaction"))));
+		} catch(RuntimeException ex) {
+			throw new RPCException(INVALID_PARAMS, "Not an encoded transaction");
+		}
+		boolean accepted = Indicium_beta.submitTransaction(transaction);
+		return out -> {
+			out.beginObject();
+			out.name("accepted").value(accepted);
+			out.name("id").value(transaction.transactionID);
+			out.endObject();
+		};
+	}
+
+	/** Starts the node's mining thread, which mines the Mempool's transactions into blocks until {@link #stopMining()}. It is the same thread a node started with --mine uses, and it hands every block to the chain thread, so an RPC worker never changes the chain.
+	 * */
+	private Result startMining() throws RPCException {
+		if(Indicium_beta.state.height < 0) {
+			throw new RPCException(INVALID_REQUEST, "The chain has no genesis block yet");
+		}
+		Indicium_beta.startMining();
+		return getMiningStatus();
+	}
+
+	private Result stopMining() {
+		Indicium_beta.stopMining();
+		return getMiningStatus();
+	}
+
+	private Result getMiningStatus() {
+		boolean active = Indicium_beta.isMining();
+		long mined = Indicium_beta.getBlocksMined();
+		double hashRate = Miner.getDefault().getHashRate();
+		return out -> {
+			out.beginObject();
+			out.name("mining").value(active);
+			out.name("blocksMined").value(mined);
+			out.name("hashRate").value(hashRate);
+			out.endObject();
+		};
+	}
+
+	private static void writeBlock(JsonWriter out, Block block, int height) throws IOException {
+		out.beginObject();
+		out.name("hash").value(block.getHash());
+		out.name("height").value(height);
+		out.name("prevHash").value(StringUtil.toHexString(block.prevHash));
+		out.name("merkleRoot").value(StringUtil.toHexString(block.merkleRoot));
+		out.name("timeStamp").value(block.getTimeStamp());
+		out.name("bits").value(Integer.toHexString(block.getBits()));
+		out.name("nonce").value(block.getNonce() & 0xFFFFFFFFL);
+		out.name("pruned").value(block.isPruned());
+		out.name("transactions").beginArray();
+		for(Transactions transaction : block.transactions) {
+			writeTransaction(out, transaction);
+		}
+		out.endArray();
+		out.endObject();
+	}
+
+	private static void writeTransaction(JsonWriter out, Transactions transaction) throws IOException {
+		out.beginObject();
+		out.name("id").value(transaction.transactionID);
+		out.name("sender").value(StringUtil.toHexString(BlockCodec.encodePublicKey(transaction.sender)));
+		out.name("receiver").value(StringUtil.toHexString(BlockCodec.encodePublicKey(transaction.receiver)));
+		out.name("value").value(transaction.value);
+		out.name("inputs").beginArray();
+		if(transaction.inputs != null) {
+			for(TransactionInput input : transaction.inputs) {
+				out.value(input.transactionOutID);
+			}
+		}
+		out.endArray();
+		out.name("outputs").beginArray();
+		for(TransactionOutput output : transaction.outputs) {
+			out.beginObject();
+			out.name("id").value(output.id);
+			out.name("owner").value(StringUtil.toHexString(output.ownerHash));
+			out.name("value").value(output.value);
+			out.endObject();
+		}
+		out.endArray();
+		out.endObject();
+	}
+
+	private static void writeError(JsonWriter out, JsonElement id, int code, String message) throws IOException {
+		out.beginObject();
+		out.name("jsonrpc").value("2.0");
+		out.name("id");
+		writeElement(out, id);
+		out.name("error").beginObject();
+		out.name("code").value(code);
+		out.name("message").value(message);
+		out.endObject();
+		out.endObject();
+	}
+
+	private static void writeElement(JsonWriter out, JsonElement element) throws IOException {
+		if(element.isJsonPrimitive() && element.getAsJsonPrimitive().isNumber()) {
+			out.value(element.getAsNumber());
+		} else if(element.isJsonPrimitive()) {
+			out.value(element.getAsString());
+		} else {
+			out.nullValue(); //ids are Strings or numbers, anything else is answered as null
+		}
+	}
+
+	private static String getString(JsonObject params, String name) throws RPCException {
+		JsonElement value = params.get(name);
+		if(value == null || !(value.isJsonPrimitive())) {
+			throw new RPCException(INVALID_PARAMS, "Missing parameter: " + name);
+		}
+		return value.getAsString();
+	}
+
+	private static int getInt(JsonObject params, String name) throws RPCException {
+		try {
+			return Integer.parseInt(getString(params, name));
+		} catch(NumberFormatException ex) {
+			throw new RPCException(INVALID_PARAMS, "Not an integer: " + name);
+		}
+	}
+
+	private static byte[] decodeHash(String hex) throws RPCException {
+		if(hex.length() != 64) {
+			throw new RPCException(INVALID_PARAMS, "Not a 32-byte hexadecimal hash: " + hex);
+		}
+		try {
+			return StringUtil.hashFromHex(hex);
+		} catch(IllegalArgumentException ex) {
+			throw new RPCException(INVALID_PARAMS, ex.getMessage());
+		}
+	}
+
+	private static PublicKey decodeKey(String hex) throws RPCException {
+		try {
+			return BlockCodec.decodePublicKey(StringUtil.fromHexString(hex));
+		} catch(RuntimeException ex) {
+			throw new RPCException(INVALID_PARAMS, "Not a compressed public key: " + hex);
+		}
+	}
+}
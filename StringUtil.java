@@ -6,38 +6,156 @@ import java.util.Base64;
 
 public class StringUtil {
 
+	//MessageDigest instances are not thread-safe, so every thread reuses its own instead of looking one up on each call
+	private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256"); //creates instance of MessageDigest class, which is using SHA-256 for the hash function. Message digests are deterministic hash functions
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
+		}
+	});
+
 	/** Applies the SHA-256 cryptographic hash function to a given input. 
 	 * @param input - The String which needs to be hashed
 	 * @return The hashed String in hexadecimal representation. 
 	 * */
 	public static String applySHA256(String input){
 		try {
-			MessageDigest digest = MessageDigest.getInstance("SHA-256"); //creates instance of MessageDigest class, which is using SHA-256 for the hash function. Message digests are deterministic hash functions
-			byte[] hash = digest.digest(input.getBytes("UTF-8")); //input is converted to bytes array by the UTF-8 standard. This is then encrypted via the digest object. 
-
-			StringBuffer hexString = new StringBuffer(); //StringBuffer is used to make modifiable Strings. 
-			/*
-			 * StringBuffer may have characters and substrings inserted in the middle or appended to the end. 
-			 * It will automatically grow to make room for such additions and often has more characters preallocated than are actually needed, to allow room for growth.
-			 * */
-
-			for(int i = 0; i < hash.length; i++) {
-				String hex = Integer.toHexString(0xff & hash[i]); //converts every bit in hash to an 8-bit binary number in String representation
-				//0xff & is used so only last 8-bits of hash[i] are used since 0xff is (2^8)-1 in decimal and 00000000 00000000 00000000 11111111 in binary
-
-				//if the length of hex = 1
-				if(hex.length() == 1) {
-					hexString.append('0');
+			return applySHA256(input.getBytes("UTF-8")); //input is converted to bytes array by the UTF-8 standard.
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/** Applies the SHA-256 cryptographic hash function to raw bytes, e.g. a serialized block header.
+	 * @param input - The bytes which need to be hashed
+	 * @return The hashed bytes in hexadecimal representation. 
+	 * */
+	public static String applySHA256(byte[] input){
+		return toHexString(applySHA256Raw(input));
+	}
+
+	/** Applies the SHA-256 cryptographic hash function to raw bytes without converting the result to a String.
+	 * @param input - The bytes which need to be hashed
+	 * @return The 32-byte digest. 
+	 * */
+	public static byte[] applySHA256Raw(byte[] input){
+		return sha256.get().digest(input); //the input is hashed via this thread's digest object, which is reset afterwards
+	}
+
+	/** Applies the SHA-256 cryptographic hash function to two concatenated inputs, e.g. the children of a Merkle tree node, without copying them into one array.
+	 * @param left - The first bytes which need to be hashed
+	 * @param right - The bytes which follow them
+	 * @return The 32-byte digest. 
+	 * */
+	public static byte[] applySHA256Raw(byte[] left, byte[] right){
+		MessageDigest digest = sha256.get();
+		digest.update(left);
+		return digest.digest(right);
+	}
+
+	/** Applies SipHash-2-4, a fast keyed hash, e.g. to derive short ids which can't be made to collide without knowing the key.
+	 * @param k0 - The first half of the 128-bit key
+	 * @param k1 - The second half of the key
+	 * @param input - The bytes which need to be hashed
+	 * @return The 64-bit hash.
+	 * */
+	public static long sipHash(long k0, long k1, byte[] input){
+		long v0 = k0 ^ 0x736f6d6570736575L;
+		long v1 = k1 ^ 0x646f72616e646f6dL;
+		long v2 = k0 ^ 0x6c7967656e657261L;
+		long v3 = k1 ^ 0x7465646279746573L;
+		int end = input.length & ~7;
+		for(int i = 0; i <= end; i += 8) {
+			long m = 0;
+			if(i < end) {
+				for(int b = 7; b >= 0; b--) {
+					m = (m << 8) | (input[i + b] & 0xffL); //little-endian words
 				}
+			} else {
+				m = (long) input.length << 56; //the last word holds the remaining bytes and the length
+				for(int b = input.length - end - 1; b >= 0; b--) {
+					m |= (input[end + b] & 0xffL) << (8 * b);
+				}
+			}
+			v3 ^= m;
+			for(int round = 0; round < 2; round++) {
+				v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+				v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+				v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+				v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+			}
+			v0 ^= m;
+		}
+		v2 ^= 0xff;
+		for(int round = 0; round < 4; round++) {
+			v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+			v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+			v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+			v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+		}
+		return v0 ^ v1 ^ v2 ^ v3;
+	}
 
-				hexString.append(hex); //add hex to end of hexString
+	/** Converts raw bytes (e.g. a digest) into their hexadecimal representation.
+	 * @param bytes - The bytes which are being converted
+	 * @return A String of two lowercase hexadecimal digits per byte.
+	 * */
+	public static String toHexString(byte[] bytes) {
+		StringBuilder hexString = new StringBuilder(bytes.length * 2); //preallocated, as the length is known in advance
+
+		for(int i = 0; i < bytes.length; i++) {
+			String hex = Integer.toHexString(0xff & bytes[i]); //converts every byte to its hexadecimal String representation
+			//0xff & is used so only last 8-bits of bytes[i] are used since 0xff is (2^8)-1 in decimal and 00000000 00000000 00000000 11111111 in binary
+
+			//if the length of hex = 1
+			if(hex.length() == 1) {
+				hexString.append('0');
 			}
-			return hexString.toString();
 
-		} catch (Exception ex) {
-			ex.printStackTrace();
-			throw new RuntimeException(ex);
+			hexString.append(hex); //add hex to end of hexString
+		}
+		return hexString.toString();
+	}
+
+	/** Converts a hexadecimal hash into its raw 32-byte form. Shorter Strings are padded with leading 0s, so "0" and "" become the all-zero hash.
+	 * @param hex - The hash in hexadecimal representation.
+	 * @return The hash as 32 bytes.
+	 * */
+	public static byte[] hashFromHex(String hex) {
+		byte[] bytes = new byte[32];
+		int b = bytes.length - 1;
+		for(int i = hex.length(); i > 0 && b >= 0; i -= 2, b--) {
+			int low = Character.digit(hex.charAt(i - 1), 16);
+			int high = (i > 1) ? Character.digit(hex.charAt(i - 2), 16) : 0;
+			if(low < 0 || high < 0) {
+				throw new IllegalArgumentException("Not a hexadecimal hash: " + hex);
+			}
+			bytes[b] = (byte) ((high << 4) | low);
+		}
+		return bytes;
+	}
+
+	/** Converts a hexadecimal String of any even length into the bytes it represents, e.g. an encoded key or transaction.
+	 * @param hex - The bytes in hexadecimal representation.
+	 * @return The bytes.
+	 * */
+	public static byte[] fromHexString(String hex) {
+		if(hex.length() % 2 != 0) {
+			throw new IllegalArgumentException("Not a hexadecimal String: " + hex);
+		}
+		byte[] bytes = new byte[hex.length() / 2];
+		for(int b = 0; b < bytes.length; b++) {
+			int high = Character.digit(hex.charAt(2 * b), 16);
+			int low = Character.digit(hex.charAt(2 * b + 1), 16);
+			if(low < 0 || high < 0) {
+				throw new IllegalArgumentException("Not a hexadecimal String: " + hex);
+			}
+			bytes[b] = (byte) ((high << 4) | low);
 		}
+		return bytes;
 	}
 	/**Converts the Sender's private key and input to a signed array of bytes, known as the digital signature. 
 	 * <br>This digital signature ensures that only the owner can spend their coins and that an unverified transaction (i.e. before it is mined) cannot be tampered with.
@@ -46,11 +164,20 @@ public class StringUtil {
 	 * @return The digital signature, represented in a Byte array. 
 	 * */
 	public static byte[] applyESDSA(PrivateKey privKey, String input) {
+		return applyESDSA(privKey, input.getBytes());
+	}
+
+	/**Signs raw bytes with the Sender's private key.
+	 * @param privKey - The Sender's private key which is generated from their wallet. 
+	 * @param input - The bytes (e.g. a transaction's signed data) which need to be signed.
+	 * @return The digital signature, represented in a Byte array. 
+	 * */
+	public static byte[] applyESDSA(PrivateKey privKey, byte[] input) {
 		byte[] output = new byte[0];
 		try {
-			Signature dsa = Signature.getInstance("ECDSA", "BC"); //returns Signature object that implements ECDSA algorithm
+			Signature dsa = CryptoContext.getSigner(); //this thread's Signature object that implements ECDSA algorithm
 			dsa.initSign(privKey); //initialize private key for signing
-			dsa.update(input.getBytes()); //update the data to be verified
+			dsa.update(input); //update the data to be verified
 			byte[] signature = dsa.sign(); //returns signature of the updated data in a byte array.
 			output = signature; 
 		} catch(Exception ex) {
@@ -67,10 +194,20 @@ public class StringUtil {
 	 * @return True if it was the Sender's private key which signed the message.
 	 * */
 	public static boolean verifyECDSASig(PublicKey pubKey, String data, byte[] signature) {
+		return verifyECDSASig(pubKey, data.getBytes(), signature);
+	}
+
+	/**Verifies a signature over raw bytes.
+	 * @param pubKey - The public key of the Sender, generated as a key pair from the Sender's private key
+	 * @param data - The bytes which are being verified
+	 * @param signature - The signature which was created from the private key.
+	 * @return True if it was the Sender's private key which signed the message.
+	 * */
+	public static boolean verifyECDSASig(PublicKey pubKey, byte[] data, byte[] signature) {
 		try {
-			Signature verify = Signature.getInstance("ECDSA", "BC"); //returns Signature object that implements ECDSA
+			Signature verify = CryptoContext.getVerifier(); //this thread's Signature object that implements ECDSA
 			verify.initVerify(pubKey); //initializes public key for verification
-			verify.update(data.getBytes()); //updates the data to be verified
+			verify.update(data); //updates the data to be verified
 			return verify.verify(signature); //verifies the signature
 		} catch(Exception ex) {
 			ex.printStackTrace();
@@ -82,35 +219,23 @@ public class StringUtil {
 	 * @return The Base64-encoded String representation of the key.
 	 * */
 	public static String getStringFromKey(Key key) {
+		if(key instanceof PublicKey) {
+			return CryptoContext.getEncodedString((PublicKey) key); //public keys are encoded once and cached
+		}
 		return Base64.getEncoder().encodeToString(key.getEncoded());
 	}
 
 	/** Gets the Merkle root of all the transactions by going through the list of transactions.
 	 * <br>This allows there to be 1000s of transactions in every block. The Merkle root is simply hashing all of the transaction hashes until only one hash remain. That is, the Merkle root is the hash of all the hashes of all the transactions stored in a block.</br>
 	 * <p>This Merkle root still maintains the integrity of the blockchain. A change to a single transaction will result in a change of the root, which thus changes the hash of the entire block.</p>
+	 * <p>Blocks which are being built keep their own {@link MerkleTree}, so their root is updated as transactions are added instead of being recomputed.</p>
 	 * @param transactions - The list of transactions of a block, which form the base of the Merkle tree. 
+	 * @return The Merkle root in hexadecimal representation, or "" if there are no transactions.
 	 * */
 	public static String getMerkleRoot(ArrayList<Transactions> transactions) {
-		int count = transactions.size(); //the size of the transactions
-		ArrayList<String> prevTreeLayer = new ArrayList<String>(); //previous layer in the Merkle Tree
-
-		//adds all Transactions to the previous layer (i.e. the base).
-		for(Transactions transaction: transactions) {
-			prevTreeLayer.add(transaction.transactionID);
-		}
-
-		ArrayList<String> treeLayer = prevTreeLayer;
-		while(count > 1) {
-			treeLayer = new ArrayList<String>();
-
-			for(int i = 1; i < prevTreeLayer.size(); i++) {
-				treeLayer.add(applySHA256(prevTreeLayer.get(i - 1) + prevTreeLayer.get(i)));
-			}
-
-			count = treeLayer.size();
-			prevTreeLayer = treeLayer;
+		if(transactions.isEmpty()) {
+			return "";
 		}
-		String merkleRoot = (treeLayer.size() == 1) ? treeLayer.get(0): "";
-		return merkleRoot;	
+		return toHexString(MerkleTree.of(transactions).getRoot()); //each layer pairs neighbouring hashes, so the root costs O(n) hashes
 	}
 }
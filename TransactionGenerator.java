@@ -0,0 +1,203 @@
+package indicium_blockChain;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class TransactionGenerator {
+	// Builds and signs transfers between many wallets in bulk, for load tests and for services which pay out to many wallets at once.
+	// Transfers are planned on the calling thread from a snapshot of every wallet's unspent outputs, taken once instead of scanning a wallet's balance per transfer, with a seeded Random so the same seed and UTXOs give the same transfers.
+	// Only the signing, which is what costs, is spread over the worker threads, each with its own reusable Signature (see CryptoContext).
+
+	private final Wallet_beta[] wallets;
+	private final Random random;
+	private final int threads;
+	private final ThreadPoolExecutor workers;
+
+	private final ArrayList<ArrayDeque<TransactionOutput>> spendable = new ArrayList<ArrayDeque<TransactionOutput>>(); //per wallet, the outputs no planned transfer spends yet
+	private final ArrayList<Integer> senders = new ArrayList<Integer>(); //wallets with spendable outputs
+
+	/** @param wallets - The wallets which send to, and receive from, each other.
+	 * @param seed - The seed of every random choice.
+	 * @param threadCount - How many threads sign the transfers.
+	 * */
+	public TransactionGenerator(Wallet_beta[] wallets, long seed, int threadCount) {
+		this.wallets = wallets;
+		random = new Random(seed);
+		threads = Math.max(1, threadCount);
+		workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				runnable -> {
+					Thread worker = new Thread(runnable, "indicium-signer");
+					worker.setDaemon(true);
+					return worker;
+				});
+		refresh();
+	}
+
+	public TransactionGenerator(Wallet_beta[] wallets, long seed) {
+		this(wallets, seed, Runtime.getRuntime().availableProcessors());
+	}
+
+	/** Takes a new snapshot of the wallets' unspent outputs, e.g. after the transfers generated so far have been mined. Outputs spent by pooled transactions, and outputs too small to be spent, are left out.
+	 * */
+	public void refresh() {
+		spendable.clear();
+		senders.clear();
+		ChainState state = Indicium_beta.state; //every wallet is read from the same committed state
+		for(int w = 0; w < wallets.length; w++) {
+			ArrayDeque<TransactionOutput> outputs = new ArrayDeque<TransactionOutput>();
+			ArrayList<TransactionOutput> owned = state.getByOwner(wallets[w].ownerHash);
+			owned.sort((a, b) -> Long.compare(b.value, a.value)); //ids hash the signatures, so outputs are taken by value to plan the same transfers in every run
+			for(TransactionOutput UTXO : owned) {
+				if(UTXO.value >= Indicium_beta.minTransaction && !(Indicium_beta.mempool.isSpent(UTXO.id))) {
+					outputs.add(UTXO);
+				}
+			}
+			spendable.add(outputs);
+			if(!(outputs.isEmpty())) {
+				senders.add(w);
+			}
+		}
+	}
+
+	/** @return How many more transfers can be generated before the next {@link #refresh()}, as each one spends a single output.
+	 * */
+	public int available() {
+		int count = 0;
+		for(ArrayDeque<TransactionOutput> outputs : spendable) {
+			count += outputs.size();
+		}
+		return count;
+	}
+
+	/** Generates signed transfers. Each one spends a single output of a random sender, and sends between 1% and 50% of it to another random wallet.
+	 * @param count - How many transfers are generated.
+	 * @return The transfers, fewer than asked for if the wallets run out of spendable outputs.
+	 * */
+	public ArrayList<Transactions> generate(int count) {
+		ArrayList<Transactions> transfers = new ArrayList<Transactions>(count);
+		ArrayList<Wallet_beta> signers = new ArrayList<Wallet_beta>(count);
+
+		while(transfers.size() < count && !(senders.isEmpty()) && wallets.length > 1) {
+			int s = random.nextInt(senders.size());
+			int sender = senders.get(s);
+			ArrayDeque<TransactionOutput> outputs = spendable.get(sender);
+			TransactionOutput UTXO = outputs.poll();
+			if(outputs.isEmpty()) {
+				senders.set(s, senders.get(senders.size() - 1));
+				senders.remove(senders.size() - 1);
+			}
+
+			int recipient = random.nextInt(wallets.length - 1);
+			if(recipient >= sender) {
+				recipient++; //never sends to itself
+			}
+			long value = Math.max(1, UTXO.value / 100 * (1 + random.nextInt(50)));
+
+			ArrayList<TransactionInput> inputs = new ArrayList<TransactionInput>(1);
+			inputs.add(new TransactionInput(UTXO.id));
+			transfers.add(new Transactions(wallets[sender].pubKey, wallets[recipient].pubKey, value, inputs));
+			signers.add(wallets[sender]);
+		}
+
+		sign(transfers, signers);
+		return transfers;
+	}
+
+	/** Signs the transfers in parallel, in contiguous slices of roughly 4 per worker.
+	 * */
+	private void sign(List<Transactions> transfers, List<Wallet_beta> signers) {
+		int sliceSize = Math.max(1, (transfers.size() + threads * 4 - 1) / (threads * 4));
+		List<Future<?>> slices = new ArrayList<Future<?>>();
+
+		for(int start = 0; start < transfers.size(); start += sliceSize) {
+			final int from = start;
+			final int to = Math.min(transfers.size(), start + sliceSize);
+			slices.add(workers.submit(() -> {
+				for(int i = from; i < to; i++) {
+					transfers.get(i).generateSignature(signers.get(i).privKey);
+				}
+			}));
+		}
+
+		try {
+			for(Future<?> slice : slices) {
+				slice.get();
+			}
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ex);
+		} catch(ExecutionException ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex.getCause());
+		}
+	}
+
+	/** Submits transfers to the node, which admits them to its Mempool and relays them to its peers.
+	 * @param transfers - The signed transfers.
+	 * @return How many were admitted.
+	 * */
+	public static int submit(List<Transactions> transfers) {
+		int admitted = 0;
+		for(Transactions transfer : transfers) {
+			if(Indicium_beta.submitTransaction(transfer)) {
+				admitted++;
+			}
+		}
+		return admitted;
+	}
+
+	/** Appends transfers to a file, so the same load can be replayed later. Each one is stored as its length (varint) followed by its {@link BlockCodec} encoding, after a version byte at the start of the file.
+	 * @param transfers - The signed transfers.
+	 * @param file - The file, which is created if it doesn't exist.
+	 * */
+	public static void write(List<Transactions> transfers, Path file) throws IOException {
+		boolean empty = !(Files.exists(file)) || Files.size(file) == 0;
+		try(OutputStream out = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+			if(empty) {
+				out.write(BlockCodec.VERSION);
+			}
+			ByteBuffer length = ByteBuffer.allocate(10);
+			for(Transactions transfer : transfers) {
+				byte[] encoded = BlockCodec.encodeTransaction(transfer);
+				length.clear();
+				BlockCodec.putVarint(length, encoded.length);
+				out.write(length.array(), 0, length.position());
+				out.write(encoded);
+			}
+		}
+	}
+
+	/** Reads back the transfers of a file written by {@link #write(List, Path)}.
+	 * @param file - The file.
+	 * @return The transfers, in the order they were written.
+	 * */
+	public static ArrayList<Transactions> read(Path file) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+		ArrayList<Transactions> transfers = new ArrayList<Transactions>();
+		if(!(buffer.hasRemaining())) {
+			return transfers;
+		}
+		byte version = buffer.get();
+		if(version != BlockCodec.VERSION) {
+			throw new IOException("Unsupported transaction file version " + version);
+		}
+		while(buffer.hasRemaining()) {
+			int length = (int) BlockCodec.getVarint(buffer);
+			ByteBuffer record = buffer.slice();
+			record.limit(length);
+			transfers.add(BlockCodec.decodeTransaction(record));
+			buffer.position(buffer.position() + length);
+		}
+		return transfers;
+	}
+
+	/** Stops all worker threads. The generator cannot be used afterwards.
+	 * */
+	public void shutdown() {
+		workers.shutdownNow();
+	}
+}
@@ -1,24 +1,64 @@
 package indicium_blockChain;
 
+import java.nio.ByteBuffer;
 import java.security.*;
+import java.util.Arrays;
 
 public class TransactionOutput {
 	// The credit in a double-ledger transaction
 	// Transaction outputs show final amount of money sent to each party. 
+	// An output only holds the hash of its owner's key (pay-to-key-hash); the full key is supplied by the transaction which spends it, as its Sender.
 
 	public String id;
-	public PublicKey recipient; //new owner of the coins
-	public float value; //amount of coins they own
+	public byte[] ownerHash; //SHA-256 of the recipient's encoded key, the new owner of the coins
+	public long value; //amount of coins they own, in base units (see Amount)
 	public String parentTransactionID; //ID of transaction output was created in. 
 	
-	public TransactionOutput(PublicKey rec, float val, String parTransactionID) {
-		recipient = rec;
+	public TransactionOutput(PublicKey rec, long val, String parTransactionID) {
+		this(CryptoContext.getKeyHash(rec), val, parTransactionID);
+	}
+	
+	/** Creates an output paying an owner hash, e.g. when it is decoded from a block.
+	 * @param owner - The SHA-256 hash of the recipient's encoded key. The array is shared, so it must not be modified.
+	 * @param val - The value in base units.
+	 * @param parTransactionID - The id of the transaction which creates the output.
+	 * */
+	public TransactionOutput(byte[] owner, long val, String parTransactionID) {
+		ownerHash = owner;
+		value = val;
+		parentTransactionID = parTransactionID;
+		id = calculateID(ownerHash, value, parentTransactionID);
+	}
+	
+	/** Rebuilds an unspent output from its compact form in the {@link UTXODatabase}.
+	 * */
+	TransactionOutput(String outputID, long val, byte[] owner) {
+		id = outputID;
 		value = val;
-		parTransactionID = parentTransactionID;
-		id = StringUtil.applySHA256(StringUtil.getStringFromKey(recipient) + Float.toString(value) + parentTransactionID);
+		ownerHash = owner;
+	}
+	
+	/** Calculates an output's id from its binary fields, rather than from a String of the recipient's key.
+	 * @return The hexadecimal SHA-256 hash of the owner hash, the value and the parent transaction's id.
+	 * */
+	public static String calculateID(byte[] ownerHash, long value, String parentTransactionID) {
+		ByteBuffer data = ByteBuffer.allocate(32 + 8 + 32)
+				.put(ownerHash)
+				.putLong(value);
+		if(parentTransactionID != null) {
+			data.put(StringUtil.hashFromHex(parentTransactionID));
+		}
+		return StringUtil.toHexString(StringUtil.applySHA256Raw(data.array()));
 	}
 	
 	public boolean isMine(PublicKey pub) {
-		return(pub == recipient);
+		return isOwnedBy(CryptoContext.getKeyHash(pub));
+	}
+	
+	/** @param keyHash - The SHA-256 hash of an encoded public key.
+	 * @return True if the output pays that key, comparing the hashes byte by byte.
+	 * */
+	public boolean isOwnedBy(byte[] keyHash) {
+		return Arrays.equals(ownerHash, keyHash);
 	}
 }
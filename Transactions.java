@@ -1,5 +1,7 @@
 package indicium_blockChain;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.util.*;
 import java.time.*;
@@ -8,54 +10,80 @@ import org.bouncycastle.asn1.x509.Time;
 
 public class Transactions {
 
-	public String transactionID; //hash of the transaction
+	public String transactionID; //hash of the signed transaction, see calcHash()
 	public PublicKey sender; //the senders public key
 	public PublicKey receiver; //the recipients public key
-	public float value; //the value being transferred
+	public long value; //the value being transferred, in base units (see Amount)
 	public LocalTime timeOfCreation; //time the block is created
 	public byte[] signature; //ensures data in transaction hasn't been altered
 	
 	public ArrayList<TransactionInput> inputs = new ArrayList<TransactionInput>(); //ensures sender has sufficient fund; the 'debit' in terms of a double-ledger
 	public ArrayList<TransactionOutput> outputs = new ArrayList<TransactionOutput>(); //how much the recipient received in the transaction; the 'credit' in terms of a double-ledger.
 	
-	private static int transactions_count; 	
-	
-	public Transactions(PublicKey from, PublicKey to, float value_transferred, ArrayList<TransactionInput> input) {
+	public Transactions(PublicKey from, PublicKey to, long value_transferred, ArrayList<TransactionInput> input) {
 		sender = from;
 		receiver = to;
 		value = value_transferred;
 		inputs = input;
 	}
 	
-	/**Calculates a transaction's hash by using the <i>applySha256</i> method.
-	 * @return The String of the resulting hash. 
+	/**Calculates a transaction's hash from its contents: the signed data (which includes the inputs) and the signature.
+	 * <br>The outputs are derived from the id and the values of the inputs, so the id, and the Merkle root built from it, covers the whole transaction.
+	 * @return The hexadecimal SHA-256 hash of the signed transaction. 
 	 * */
 	public String calcHash() {
-		transactions_count++; //ensures two identical transactions don't have same hash
-		return StringUtil.applySHA256(StringUtil.getStringFromKey(sender) + 
-				StringUtil.getStringFromKey(receiver) + 
-				Float.toString(value) + 
-				transactions_count);
+		return StringUtil.toHexString(StringUtil.applySHA256Raw(getSignedData(), signature));
 	}
 	
 	/**Generates a signature for that transaction, hence verifying the <i>authenticity</i> of the transaction.
 	 * This method generates a digital signature, which is used to verify that it was initiated by the owner of the coins.
 	 * <br>Signatures will be verified by miners as they are added to new blocks.  
+	 * <br>The transaction gets its id once it is signed, see {@link #calcHash()}.
 	 * @param privKey - The PrivateKey of the Sender, which will be used in signing the data.
-	 * @return A signature for the specified transaction, generated via the ECDSA algorithm.
 	 * */
 	public void generateSignature(PrivateKey privKey) {
 		timeOfCreation = java.time.LocalTime.now();
-		String data = StringUtil.getStringFromKey(sender) + StringUtil.getStringFromKey(receiver) + Float.toString(value) + timeOfCreation.toString();
-		signature = StringUtil.applyESDSA(privKey, data);
+		signature = StringUtil.applyESDSA(privKey, getSignedData());
+		transactionID = calcHash();
 	}
 	
 	/**Verifies that the data has not been tampered with and that it was the owner of the coins who authorized the transaction.
 	 * @return True if the signature is valid (i.e. the PublicKey corresponds to the PrivateKey used for signing).
 	 * */
 	public boolean verifySignature() {
-		String data = StringUtil.getStringFromKey(sender) + StringUtil.getStringFromKey(receiver) + Float.toString(value) + timeOfCreation.toString();
-		return StringUtil.verifyECDSASig(sender, data, signature);
+		return verifySignature(CryptoContext.getVerifier());
+	}
+	
+	/**Verifies the transaction's signature with a Signature object that is reused between calls, e.g. by a worker of the {@link ValidationPipeline}.
+	 * <br>A signature which has already been verified (e.g. when the transaction was admitted to the Mempool) is found in the {@link CryptoContext} instead of being verified again.
+	 * @param verifier - An ECDSA Signature object. It is re-initialized with the Sender's public key.
+	 * @return True if the signature is valid (i.e. the PublicKey corresponds to the PrivateKey used for signing).
+	 * */
+	public boolean verifySignature(Signature verifier) {
+		if(signature == null) {
+			return false;
+		}
+		return CryptoContext.verify(sender, getSignedData(), signature, verifier);
+	}
+	
+	/**Gets the data covered by the transaction's signature: the encoded keys of both parties, the value, the time of creation and the ids of the inputs.
+	 * @return The bytes which are signed by the Sender.
+	 * */
+	public byte[] getSignedData() {
+		byte[] from = CryptoContext.getEncoded(sender); //the encodings are cached, so they aren't rebuilt on every signature
+		byte[] to = CryptoContext.getEncoded(receiver);
+		byte[] time = timeOfCreation.toString().getBytes(StandardCharsets.UTF_8);
+		int inputCount = (inputs == null) ? 0 : inputs.size();
+
+		ByteBuffer data = ByteBuffer.allocate(from.length + to.length + 8 + time.length + 32 * inputCount)
+				.put(from)
+				.put(to)
+				.putLong(value)
+				.put(time);
+		for(int i = 0; i < inputCount; i++) {
+			data.put(StringUtil.hashFromHex(inputs.get(i).transactionOutID)); //signing the inputs stops a relaying node from pointing the transaction at other outputs
+		}
+		return data.array();
 	}
 	
 	/** Processes the transaction and ensures that the digital signature is valid and the Sender has sufficient outputs to complete the transaction.
@@ -64,64 +92,98 @@ public class Transactions {
 	 * */
 	public boolean processTransaction() {
 		if(verifySignature() == false) {
-			System.out.println("#Transaction signature failed to verify. ");
+			Log.warn("#Transaction signature failed to verify. ");
 			return false;
 		}
-		
-		//gathers transaction's inputs (ensures they are unspent)
+		return applyTransaction();
+	}
+	
+	/** Carries out a transaction whose signature has already been verified (e.g. in parallel by the {@link ValidationPipeline}).
+	 * <p>Ensures the Sender has sufficient outputs, sends the transferred coins to the Recipient and any change back to the Sender, and updates the UTXOs.</p>
+	 * @return True if the transaction was applied, False if its inputs were insufficient.
+	 * */
+	public boolean applyTransaction() {
+		//gathers transaction's inputs (ensures they are unspent, spent only once, and owned by the Sender)
+		byte[] senderHash = CryptoContext.getKeyHash(sender);
+		HashSet<String> inputIDs = new HashSet<String>();
 		for(TransactionInput i : inputs) {
-			i.UTXO = Indicium.UTXOs.get(i.transactionOutID); //returns mapped value from previous TransactionOutputs
+			if(!(inputIDs.add(i.transactionOutID))) {
+				Log.warn("#Transaction Input " + i.transactionOutID + " is spent twice. ");
+				return false;
+			}
+			i.UTXO = Indicium_beta.UTXOs.get(i.transactionOutID); //returns mapped value from previous TransactionOutputs
+			if(i.UTXO == null) {
+				Log.warn("#Transaction Input " + i.transactionOutID + " is missing or already spent. ");
+				return false;
+			}
+			if(!(i.UTXO.isOwnedBy(senderHash))) {
+				Log.warn("#Transaction Input " + i.transactionOutID + " isn't owned by the Sender. ");
+				return false;
+			}
 		}
 		
 		//checks if funds are sufficient to complete transaction
-		if(getInputsValue() < Indicium.minTransaction) {
-			System.out.println("#Transaction Inputs too small: " + getInputsValue());
+		long inputsValue = getInputsValue();
+		if(inputsValue < Indicium_beta.minTransaction) {
+			Log.warn("#Transaction Inputs too small: " + Amount.toString(inputsValue));
+			return false;
+		}
+		if(!(Amount.isValid(value)) || value > inputsValue) {
+			Log.warn("#Transaction value is not covered by its inputs: " + Amount.toString(value));
 			return false;
 		}
 		
 		//generates the transaction's outputs
-		float leftOver = getInputsValue() - value; //the 'change' in the transaction
-		transactionID = calcHash();
+		long leftOver = inputsValue - value; //the 'change' in the transaction
+		if(transactionID == null) {
+			Log.warn("#Transaction hasn't been signed. ");
+			return false;
+		}
+		outputs.clear(); //a transaction which returns to the Mempool after a reorganization is applied again
 		outputs.add(new TransactionOutput(receiver, value, transactionID)); //sends the value to the recipient
 		outputs.add(new TransactionOutput(sender, leftOver, transactionID)); //sends any change back to the sender
-		
+		if(outputs.get(0).id.equals(outputs.get(1).id)) {
+			Log.warn("#Transaction pays its Sender the same value as its change, which would create the same output twice. ");
+			outputs.clear();
+			return false;
+		}
+
 		//adds outputs to Unspent list (UTXOs)
 		for(TransactionOutput i : outputs){
-			Indicium.UTXOs.put(i.id, i);
+			Indicium_beta.UTXOs.put(i.id, i);
 		}
 		
 		//remove the transaction inputs from UTXO list as they're spent
 		for(TransactionInput i : inputs) {
-			if(i.UTXO == null) {
-				continue;
-			}
-			Indicium.UTXOs.remove(i.UTXO.id);
+			Indicium_beta.UTXOs.remove(i.UTXO.id);
 		}
 		return true;
 	}
 	
 	/**Calculates the total value of inputs.
-	 * @return The total value.
+	 * The values are gathered into a primitive array first and summed by {@link Amount#sum(long[], int)}.
+	 * @return The total value in base units, or -1 if it is out of range.
 	 * */
-	public float getInputsValue() {
-		float total = 0;
+	public long getInputsValue() {
+		long[] values = new long[inputs.size()];
+		int count = 0;
 		for(TransactionInput i : inputs) {
-			if(i.UTXO.equals(null)) {
+			if(i.UTXO == null) {
 				continue;
 			}
-			total += i.UTXO.value;
+			values[count++] = i.UTXO.value;
 		}
-		return total;
+		return Amount.sum(values, count);
 	}
 	
 	/**Calculates the total value of outputs
-	 * 
+	 * @return The total value in base units, or -1 if it is out of range.
 	 * */
-	public float getOutputsValue() {
-		float total = 0;
-		for(TransactionOutput i : outputs) {
-			total += i.value;
+	public long getOutputsValue() {
+		long[] values = new long[outputs.size()];
+		for(int i = 0; i < values.length; i++) {
+			values[i] = outputs.get(i).value;
 		}
-		return total;
+		return Amount.sum(values, values.length);
 	}
 }
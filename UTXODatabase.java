@@ -0,0 +1,883 @@
+package indicium_blockChain;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+public class UTXODatabase implements Closeable {
+	// Disk-backed set of unspent transaction outputs.
+	// Outputs are stored off-heap in a memory-mapped, open-addressing hash table keyed by their raw 32-byte id. Only a bounded LRU cache of recently used outputs lives on the heap.
+	// Changes are collected in a pending batch and committed atomically through a write-ahead log, so a block is either applied completely or not at all.
+	// A secondary index from owner key hash to table slots lets a wallet find its outputs in time proportional to how many it owns.
+	// The writer's operations are synchronized. Reads of the committed outputs from other threads (see ChainState) don't take the database's monitor, so they aren't held up while a commit forces its log and table to disk: they only exclude the moment a batch is written into the table, and they never touch the cache.
+	// Every commit also folds its changes into a digest of the whole set, the sum of the hashes of its outputs, so two databases with the same outputs have the same digest without either of them being scanned.
+	// A commit can record the block the UTXOs are after (their tip), together with what it replaced in an undo journal of the last commits, so a node which reopens the database knows which block it continues from and can still disconnect the blocks before it.
+
+	private static final int SLOT_SIZE = 80; //state (1) + id (32) + value (8) + owner key hash (32), padded
+	private static final int REGION_BITS = 20; //each mapped region holds 2^20 slots (80 MB)
+	private static final int INITIAL_CAPACITY = 1 << 12;
+	private static final byte EMPTY = 0, USED = 1, DELETED = 2;
+	private static final int DEFAULT_CACHE_SIZE = 100000;
+	private static final int UNDO_DEPTH = 100; //how many of the last commits the undo journal keeps at least
+	private static final int ENTRY_SIZE = 1 + 32 + 8 + 32; //state, id, value, owner key hash; the format of a change in the write-ahead log and the undo journal
+	private static final BigInteger DIGEST_MODULUS = BigInteger.ONE.shiftLeft(256);
+
+	private final Path directory;
+	private final Path walPath;
+	private final Path tipPath;
+	private final Path undoPath;
+	private final boolean temporary; //temporary databases delete their files when closed, so they don't need the write-ahead log
+	private Thread shutdownHook; //closes a temporary database if the node exits first
+	private FileChannel table;
+	private MappedByteBuffer[] regions;
+	private long capacity; //number of slots, always a power of 2
+	private long used; //slots holding an output
+	private long deleted; //slots holding a tombstone
+	private byte[] tip; //hash of the block the committed UTXOs are after, or null if it isn't known
+	private int undoRecords; //number of commits in the undo journal
+	private BigInteger digest = BigInteger.ZERO; //sum of the hashes of the committed outputs modulo 2^256, see getDigest()
+
+	private final ReentrantReadWriteLock tableLock = new ReentrantReadWriteLock(); //write-locked while the table, its mapping or the owner index change; read-locked by the reads of committed outputs
+	private final HashMap<ByteBuffer, SlotList> slotsOfOwner = new HashMap<ByteBuffer, SlotList>(); //owner key hash -> slots of the owner's committed outputs
+	private final HashMap<ByteBuffer, TransactionOutput> pending = new HashMap<ByteBuffer, TransactionOutput>(); //uncommitted changes; a null value marks a removal
+	private final LinkedHashMap<ByteBuffer, TransactionOutput> cache;
+	private long cacheHits;
+	private long cacheMisses;
+
+	/** Opens the database in a directory, creating it if needed. A batch which was committed to the write-ahead log but not yet applied to the table is recovered.
+	 * @param directory - The directory holding the table and the write-ahead log.
+	 * @param cacheSize - How many outputs the in-memory cache holds at most.
+	 * */
+	public UTXODatabase(Path directory, int cacheSize) throws IOException {
+		this(directory, cacheSize, false);
+	}
+
+	/** Opens the database in a directory, creating it if needed, with the default cache size.
+	 * @param directory - The directory holding the table and the write-ahead log, e.g. in the node's data directory.
+	 * */
+	public UTXODatabase(Path directory) throws IOException {
+		this(directory, DEFAULT_CACHE_SIZE, false);
+	}
+
+	private UTXODatabase(Path directory, final int cacheSize, boolean temporary) throws IOException {
+		this.directory = directory;
+		this.temporary = temporary;
+		Files.createDirectories(directory);
+		walPath = directory.resolve("utxo.wal");
+		tipPath = directory.resolve("utxo.tip");
+		undoPath = directory.resolve("utxo.undo");
+		cache = new LinkedHashMap<ByteBuffer, TransactionOutput>(16, 0.75f, true) { //access order, so the eldest entry is the least recently used
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteBuffer, TransactionOutput> eldest) {
+				return size() > cacheSize;
+			}
+		};
+
+		Path tablePath = directory.resolve("utxo.dat");
+		boolean exists = Files.exists(tablePath) && Files.size(tablePath) > 0;
+		table = FileChannel.open(tablePath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if(exists) {
+			mapTable(table.size() / SLOT_SIZE);
+			loadSlots();
+		} else {
+			mapTable(INITIAL_CAPACITY);
+		}
+		if(Files.exists(tipPath)) {
+			tip = Files.readAllBytes(tipPath);
+		}
+		recoverLog();
+		loadUndo();
+	}
+
+	/** Opens a database in a new temporary directory, which is deleted when the database is closed.
+	 * @return An empty database.
+	 * */
+	public static UTXODatabase openTemporary() {
+		try {
+			UTXODatabase database = new UTXODatabase(Files.createTempDirectory("indicium-utxo"), DEFAULT_CACHE_SIZE, true);
+			database.shutdownHook = new Thread(() -> {
+				try {
+					database.close();
+				} catch(IOException ex) {
+					ex.printStackTrace();
+				}
+			});
+			Runtime.getRuntime().addShutdownHook(database.shutdownHook);
+			return database;
+		} catch(IOException ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/** Gets an unspent output, including changes that have not been committed yet.
+	 * @param id - The id of the output.
+	 * @return The output, or null if it doesn't exist or has been spent.
+	 * */
+	public synchronized TransactionOutput get(String id) {
+		ByteBuffer key = ByteBuffer.wrap(StringUtil.hashFromHex(id));
+		if(pending.containsKey(key)) {
+			return pending.get(key);
+		}
+		return read(key);
+	}
+
+	/** Gets an unspent output as of the last commit, ignoring the pending batch, e.g. for a {@link ChainState} read by another thread while the writer builds the next batch.
+	 * <br>It is read from the table without the database's monitor or its cache, so it can be called from any thread while a commit is forced to disk.
+	 * @param id - The id of the output.
+	 * @return The output, or null if it doesn't exist, has been spent, or the database has been closed.
+	 * */
+	public TransactionOutput getCommitted(String id) {
+		byte[] key = StringUtil.hashFromHex(id);
+		tableLock.readLock().lock();
+		try {
+			if(regions == null) {
+				return null; //a ChainState which outlived the node's UTXOs
+			}
+			long slot = findSlot(key);
+			return (slot < 0) ? null : readOutput(slot);
+		} finally {
+			tableLock.readLock().unlock();
+		}
+	}
+
+	private TransactionOutput read(ByteBuffer key) {
+		TransactionOutput output = cache.get(key);
+		if(output != null) {
+			cacheHits++;
+			return output;
+		}
+		cacheMisses++;
+
+		long slot = findSlot(key.array());
+		if(slot < 0) {
+			return null;
+		}
+		output = readOutput(slot);
+		cache.put(key, output);
+		return output;
+	}
+
+	/** Adds an unspent output to the pending batch.
+	 * @param id - The id of the output.
+	 * @param output - The output which is now unspent.
+	 * */
+	public synchronized void put(String id, TransactionOutput output) {
+		pending.put(ByteBuffer.wrap(StringUtil.hashFromHex(id)), output);
+	}
+
+	/** Marks an output as spent in the pending batch.
+	 * @param id - The id of the output.
+	 * */
+	public synchronized void remove(String id) {
+		pending.put(ByteBuffer.wrap(StringUtil.hashFromHex(id)), null);
+	}
+
+	/** Atomically applies the pending batch, after which the UTXOs are after no known block. See {@link #commit(byte[])}.
+	 * */
+	public synchronized void commit() {
+		commit(null);
+	}
+
+	/** Atomically applies the pending batch (e.g. every change made by a block's transactions), and records the block the UTXOs are after.
+	 * <br>What the batch replaces is appended to the undo journal first. The batch is then written to the write-ahead log and forced to disk, and applied to the table. If the node crashes in between, the batch is replayed when the database is reopened.
+	 * <br>A temporary database is deleted by a restart anyway, so its batches are applied to the table directly.
+	 * @param tipHash - The hash of the block the UTXOs are after once the batch is applied, or null if they aren't after a known block.
+	 * */
+	public synchronized void commit(byte[] tipHash) {
+		if(pending.isEmpty() && Arrays.equals(tipHash, tip)) {
+			return;
+		}
+		try {
+			if(!(temporary) && tipHash != null) {
+				appendUndo(tipHash);
+			}
+			applyPending(tipHash);
+		} catch(IOException ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/** Reverts the last commit in the undo journal, e.g. when the node's block store never received the block the UTXOs are after because the node crashed in between.
+	 * <br>A pending batch is discarded first.
+	 * @return True if the UTXOs are now after the block before, False if the journal doesn't hold the commit of the current tip.
+	 * */
+	public synchronized boolean undoLast() {
+		pending.clear();
+		try {
+			ArrayList<UndoRecord> records = readUndo();
+			if(records.isEmpty() || !(Arrays.equals(records.get(records.size() - 1).tip, tip))) {
+				return false;
+			}
+			UndoRecord last = records.remove(records.size() - 1);
+			for(Map.Entry<String, TransactionOutput> entry : last.replaced.entrySet()) {
+				pending.put(ByteBuffer.wrap(StringUtil.hashFromHex(entry.getKey())), entry.getValue());
+			}
+			applyPending(last.previousTip);
+			writeUndo(records); //a crash before this leaves the record after the tip, so it is dropped when the database is reopened
+			return true;
+		} catch(IOException ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/** Applies the pending batch through the write-ahead log, or directly if the database is temporary, and moves the tip.
+	 * */
+	private void applyPending(byte[] tipHash) throws IOException {
+		if(temporary) {
+			applyBatch(pending);
+		} else {
+			writeLog(tipHash);
+			applyBatch(pending);
+			table.force(false);
+			writeTip(tipHash);
+			try(FileChannel wal = FileChannel.open(walPath, StandardOpenOption.WRITE)) {
+				wal.truncate(0); //the batch is in the table now, so the log is no longer needed
+			}
+		}
+		tip = (tipHash == null) ? null : tipHash.clone();
+
+		for(ByteBuffer key : pending.keySet()) {
+			cache.remove(key);
+		}
+		pending.clear();
+	}
+
+	/** @return The hash of the block the committed UTXOs are after, or null if it isn't known.
+	 * */
+	public synchronized byte[] getTip() {
+		return (tip == null) ? null : tip.clone();
+	}
+
+	/** Digests the committed outputs as a set: each output (id, value and owner key hash) is hashed with SHA-256, and the hashes are added up modulo 2^256.
+	 * <br>The sum doesn't depend on the order the outputs were added in or on how the table is laid out, so two nodes with the same UTXOs get the same digest. Each commit adds the outputs it creates and subtracts those it spends, so the digest costs O(changes) rather than a scan of the set.
+	 * @return The 32-byte digest of the committed UTXOs.
+	 * */
+	public synchronized byte[] getDigest() {
+		byte[] sum = digest.toByteArray(); //big-endian, with a sign byte or without leading 0s
+		byte[] bytes = new byte[32];
+		int length = Math.min(sum.length, 32);
+		System.arraycopy(sum, sum.length - length, bytes, 32 - length, length);
+		return bytes;
+	}
+
+	/** One commit in the undo journal.
+	 * */
+	public static class UndoRecord {
+		public final byte[] previousTip; //the block the UTXOs were after before the commit, or null if it wasn't known
+		public final byte[] tip; //the block the UTXOs were after the commit
+		public final HashMap<String, TransactionOutput> replaced; //output id -> the output before the commit, or null if the commit created it
+
+		private UndoRecord(byte[] previousTip, byte[] tip, HashMap<String, TransactionOutput> replaced) {
+			this.previousTip = previousTip;
+			this.tip = tip;
+			this.replaced = replaced;
+		}
+	}
+
+	/** Reads the undo journal, e.g. so a node which restarts can disconnect its last blocks again.
+	 * @return The last commits which recorded a tip, oldest first; the last one is after the current tip.
+	 * */
+	public synchronized ArrayList<UndoRecord> getUndoJournal() {
+		try {
+			return readUndo();
+		} catch(IOException ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/** Removes every output, the tip and the undo journal, e.g. when the UTXOs don't belong to the node's block store and have to be rebuilt from its blocks.
+	 * */
+	public synchronized void clear() {
+		pending.clear();
+		cache.clear();
+		tableLock.writeLock().lock();
+		try {
+			slotsOfOwner.clear();
+			regions = null;
+			table.truncate(0);
+			mapTable(INITIAL_CAPACITY);
+			table.force(false);
+			used = 0;
+			deleted = 0;
+			digest = BigInteger.ZERO;
+			tip = null;
+			undoRecords = 0;
+			Files.deleteIfExists(tipPath);
+			Files.deleteIfExists(undoPath);
+			Files.deleteIfExists(walPath);
+		} catch(IOException ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+
+	/** Discards the pending batch, e.g. when a block could not be mined.
+	 * */
+	public synchronized void rollback() {
+		pending.clear();
+	}
+
+	/** Copies the pending batch, e.g. so the writer can record what they replace in its {@link ChainState} before they are committed.
+	 * @return The uncommitted changes, keyed by output id; a null value marks a spent output.
+	 * */
+	public synchronized HashMap<String, TransactionOutput> getPendingChanges() {
+		HashMap<String, TransactionOutput> changes = new HashMap<String, TransactionOutput>();
+		for(Map.Entry<ByteBuffer, TransactionOutput> change : pending.entrySet()) {
+			changes.put(StringUtil.toHexString(change.getKey().array()), change.getValue());
+		}
+		return changes;
+	}
+
+	/** Calls an action for every unspent output, including changes that have not been committed yet. This scans the whole table.
+	 * @param action - The action which is applied to each output.
+	 * */
+	public synchronized void forEach(Consumer<TransactionOutput> action) {
+		byte[] id = new byte[32];
+		for(long slot = 0; slot < capacity; slot++) {
+			ByteBuffer region = region(slot);
+			int offset = offset(slot);
+			if(region.get(offset) != USED) {
+				continue;
+			}
+			region.position(offset + 1);
+			region.get(id);
+			if(!pending.containsKey(ByteBuffer.wrap(id))) {
+				action.accept(readOutput(slot));
+			}
+		}
+		for(TransactionOutput output : pending.values()) {
+			if(output != null) {
+				action.accept(output);
+			}
+		}
+	}
+
+	/** Gets every unspent output of one owner, including changes that have not been committed yet. Only the owner's own outputs are read.
+	 * @param ownerHash - The SHA-256 hash of the owner's encoded public key.
+	 * @return The owner's unspent outputs.
+	 * */
+	public synchronized ArrayList<TransactionOutput> getByOwner(byte[] ownerHash) {
+		ArrayList<TransactionOutput> outputs = readByOwner(ownerHash, true);
+		//the pending batch is small (one block), so it is simply scanned
+		for(TransactionOutput output : pending.values()) {
+			if(output != null && Arrays.equals(output.ownerHash, ownerHash)) {
+				outputs.add(output);
+			}
+		}
+		return outputs;
+	}
+
+	/** Gets every unspent output of one owner as of the last commit, ignoring the pending batch. Like {@link #getCommitted(String)}, it can be called from any thread without waiting for a commit.
+	 * @param ownerHash - The SHA-256 hash of the owner's encoded public key.
+	 * @return The owner's committed outputs, or none if the database has been closed.
+	 * */
+	public ArrayList<TransactionOutput> getCommittedByOwner(byte[] ownerHash) {
+		tableLock.readLock().lock();
+		try {
+			if(regions == null) {
+				return new ArrayList<TransactionOutput>();
+			}
+			return readByOwner(ownerHash, false);
+		} finally {
+			tableLock.readLock().unlock();
+		}
+	}
+
+	/** @param skipPending - Whether the outputs which the pending batch spends or replaces are left out.
+	 * */
+	private ArrayList<TransactionOutput> readByOwner(byte[] ownerHash, boolean skipPending) {
+		ArrayList<TransactionOutput> outputs = new ArrayList<TransactionOutput>();
+		SlotList slots = slotsOfOwner.get(ByteBuffer.wrap(ownerHash));
+
+		if(slots != null) {
+			byte[] id = new byte[32];
+			for(int i = 0; i < slots.size; i++) {
+				region(slots.slots[i]).get(offset(slots.slots[i]) + 1, id);
+				if(skipPending && pending.containsKey(ByteBuffer.wrap(id))) {
+					continue; //spent or replaced by the pending batch
+				}
+				outputs.add(readOutput(slots.slots[i]));
+			}
+		}
+		return outputs;
+	}
+
+	/** @return The number of committed unspent outputs.
+	 * */
+	public synchronized long size() {
+		return used;
+	}
+
+	public synchronized long getCacheHits() {
+		return cacheHits;
+	}
+
+	public synchronized long getCacheMisses() {
+		return cacheMisses;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if(table == null) {
+			return;
+		}
+		table.force(false);
+		tableLock.writeLock().lock();
+		try {
+			table.close();
+			table = null;
+			regions = null;
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+		cache.clear();
+		if(shutdownHook != null && Thread.currentThread() != shutdownHook) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch(IllegalStateException ex) {
+				//the node is already exiting, so the hook runs anyway and finds the database closed
+			}
+		}
+
+		if(temporary) {
+			Files.deleteIfExists(directory.resolve("utxo.dat"));
+			Files.deleteIfExists(walPath);
+			Files.deleteIfExists(tipPath);
+			Files.deleteIfExists(undoPath);
+			Files.deleteIfExists(directory);
+		}
+	}
+
+	private void applyBatch(Map<ByteBuffer, TransactionOutput> batch) throws IOException {
+		tableLock.writeLock().lock();
+		try {
+			writeBatch(batch);
+		} finally {
+			tableLock.writeLock().unlock();
+		}
+	}
+
+	private void writeBatch(Map<ByteBuffer, TransactionOutput> batch) throws IOException {
+		//grow before the batch, so the table never passes half full
+		if((used + deleted + batch.size()) * 2 > capacity) {
+			resize(Math.max(capacity, Long.highestOneBit((used + batch.size()) * 4)));
+		}
+
+		for(Map.Entry<ByteBuffer, TransactionOutput> change : batch.entrySet()) {
+			byte[] id = change.getKey().array();
+			long slot = findSlot(id);
+
+			if(change.getValue() == null) {
+				if(slot >= 0) {
+					digest = digest.subtract(hashSlot(slot));
+					unindex(slot);
+					region(slot).put(offset(slot), DELETED);
+					used--;
+					deleted++;
+				}
+				continue;
+			}
+			if(slot < 0) {
+				slot = findFreeSlot(id);
+				if(region(slot).get(offset(slot)) == DELETED) {
+					deleted--;
+				}
+				used++;
+			} else {
+				digest = digest.subtract(hashSlot(slot));
+				unindex(slot);
+			}
+			writeSlot(slot, id, change.getValue());
+			index(slot, change.getValue().ownerHash);
+			digest = digest.add(hashSlot(slot));
+		}
+		digest = digest.mod(DIGEST_MODULUS);
+	}
+
+	/** Rebuilds the table with a new capacity, which also drops every tombstone. The outputs don't change, so neither does the digest.
+	 * */
+	private void resize(long newCapacity) throws IOException {
+		HashMap<ByteBuffer, TransactionOutput> live = new HashMap<ByteBuffer, TransactionOutput>();
+		Path tablePath = directory.resolve("utxo.dat");
+		Path resizedPath = directory.resolve("utxo.dat.resize");
+
+		FileChannel oldTable = table;
+		MappedByteBuffer[] oldRegions = regions;
+		long oldCapacity = capacity;
+
+		table = FileChannel.open(resizedPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		mapTable(newCapacity);
+		used = 0;
+		deleted = 0;
+		slotsOfOwner.clear(); //every output moves to a new slot
+
+		byte[] id = new byte[32];
+		for(long slot = 0; slot < oldCapacity; slot++) {
+			ByteBuffer region = oldRegions[(int) (slot >>> REGION_BITS)];
+			int offset = (int) (slot & ((1 << REGION_BITS) - 1)) * SLOT_SIZE;
+			if(region.get(offset) != USED) {
+				continue;
+			}
+			region.position(offset + 1);
+			region.get(id);
+			long value = region.getLong();
+			byte[] ownerHash = new byte[32];
+			region.get(ownerHash);
+
+			long newSlot = findFreeSlot(id);
+			writeSlot(newSlot, id, new TransactionOutput(StringUtil.toHexString(id), value, ownerHash));
+			index(newSlot, ownerHash);
+			used++;
+		}
+
+		table.force(false);
+		oldTable.close();
+		Files.move(resizedPath, tablePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private long findSlot(byte[] id) {
+		long mask = capacity - 1;
+		for(long slot = ByteBuffer.wrap(id).getLong() & mask; ; slot = (slot + 1) & mask) {
+			ByteBuffer region = region(slot);
+			int offset = offset(slot);
+			byte state = region.get(offset);
+			if(state == EMPTY) {
+				return -1;
+			}
+			if(state == USED && idEquals(region, offset + 1, id)) {
+				return slot;
+			}
+		}
+	}
+
+	private long findFreeSlot(byte[] id) {
+		long mask = capacity - 1;
+		for(long slot = ByteBuffer.wrap(id).getLong() & mask; ; slot = (slot + 1) & mask) {
+			if(region(slot).get(offset(slot)) != USED) {
+				return slot;
+			}
+		}
+	}
+
+	private void writeSlot(long slot, byte[] id, TransactionOutput output) {
+		ByteBuffer region = region(slot);
+		int offset = offset(slot);
+		region.position(offset + 1);
+		region.put(id);
+		region.putLong(output.value);
+		region.put(output.ownerHash);
+		region.put(offset, USED); //the state is written last
+	}
+
+	/** Reads an output with absolute gets only, as readers on other threads share the region's position with the writer.
+	 * */
+	private TransactionOutput readOutput(long slot) {
+		ByteBuffer region = region(slot);
+		int offset = offset(slot);
+		byte[] id = new byte[32];
+		region.get(offset + 1, id);
+		long value = region.getLong(offset + 1 + 32);
+		byte[] ownerHash = new byte[32];
+		region.get(offset + 1 + 32 + 8, ownerHash);
+		return new TransactionOutput(StringUtil.toHexString(id), value, ownerHash);
+	}
+
+	/** @return The SHA-256 hash of the output in a slot, as the number it adds to the digest.
+	 * */
+	private BigInteger hashSlot(long slot) {
+		byte[] record = new byte[32 + 8 + 32]; //id, value, owner key hash
+		ByteBuffer region = region(slot);
+		region.position(offset(slot) + 1);
+		region.get(record);
+		return new BigInteger(1, StringUtil.applySHA256Raw(record));
+	}
+
+	private static boolean idEquals(ByteBuffer region, int offset, byte[] id) {
+		for(int i = 0; i < id.length; i++) {
+			if(region.get(offset + i) != id[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void mapTable(long slots) throws IOException {
+		capacity = slots;
+		long regionSlots = 1L << REGION_BITS;
+		regions = new MappedByteBuffer[(int) ((slots + regionSlots - 1) / regionSlots)];
+		for(int r = 0; r < regions.length; r++) {
+			long start = r * regionSlots * SLOT_SIZE;
+			long length = Math.min(regionSlots, slots - r * regionSlots) * SLOT_SIZE;
+			regions[r] = table.map(FileChannel.MapMode.READ_WRITE, start, length);
+		}
+	}
+
+	/** Counts the table's slots and rebuilds the owner index and the digest from them.
+	 * */
+	private void loadSlots() {
+		used = 0;
+		deleted = 0;
+		digest = BigInteger.ZERO;
+		byte[] ownerHash = new byte[32];
+		for(long slot = 0; slot < capacity; slot++) {
+			ByteBuffer region = region(slot);
+			byte state = region.get(offset(slot));
+			if(state == USED) {
+				used++;
+				region.position(offset(slot) + 1 + 32 + 8);
+				region.get(ownerHash);
+				index(slot, ownerHash);
+				digest = digest.add(hashSlot(slot));
+			} else if(state == DELETED) {
+				deleted++;
+			}
+		}
+		digest = digest.mod(DIGEST_MODULUS);
+	}
+
+	private void index(long slot, byte[] ownerHash) {
+		ByteBuffer owner = ByteBuffer.wrap(ownerHash.clone());
+		SlotList slots = slotsOfOwner.get(owner);
+		if(slots == null) {
+			slots = new SlotList();
+			slotsOfOwner.put(owner, slots);
+		}
+		slots.add(slot);
+	}
+
+	private void unindex(long slot) {
+		ByteBuffer region = region(slot);
+		byte[] ownerHash = new byte[32];
+		region.position(offset(slot) + 1 + 32 + 8);
+		region.get(ownerHash);
+
+		ByteBuffer owner = ByteBuffer.wrap(ownerHash);
+		SlotList slots = slotsOfOwner.get(owner);
+		if(slots != null && slots.remove(slot) && slots.size == 0) {
+			slotsOfOwner.remove(owner);
+		}
+	}
+
+	private ByteBuffer region(long slot) {
+		return regions[(int) (slot >>> REGION_BITS)];
+	}
+
+	private static int offset(long slot) {
+		return (int) (slot & ((1 << REGION_BITS) - 1)) * SLOT_SIZE;
+	}
+
+	/** Writes the pending batch to the write-ahead log, followed by the tip it leaves the UTXOs after and a commit marker, and forces it to disk.
+	 * */
+	private void writeLog(byte[] tipHash) throws IOException {
+		ByteBuffer log = ByteBuffer.allocate(4 + pending.size() * ENTRY_SIZE + 32 + 4);
+		log.putInt(pending.size());
+		putEntries(log, pending);
+		log.put((tipHash == null) ? new byte[32] : tipHash); //all 0s for no known block
+		log.putInt(pending.size()); //commit marker; a log without it was never fully written
+		log.flip();
+
+		try(FileChannel wal = FileChannel.open(walPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			while(log.hasRemaining()) {
+				wal.write(log);
+			}
+			wal.force(false);
+		}
+	}
+
+	/** Replays a fully written write-ahead log. Applying a batch twice has the same effect as applying it once.
+	 * <br>A log written before the tip was recorded has no tip, so the UTXOs are after no known block once it is replayed.
+	 * */
+	private void recoverLog() throws IOException {
+		if(!Files.exists(walPath) || Files.size(walPath) < 8) {
+			return;
+		}
+		ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(walPath));
+		int count = log.getInt();
+		boolean hasTip = log.capacity() == 4 + count * ENTRY_SIZE + 32 + 4;
+		if(!hasTip && log.capacity() != 4 + count * ENTRY_SIZE + 4 || log.getInt(log.capacity() - 4) != count) {
+			Files.delete(walPath); //the crash happened before the commit, so the batch is discarded
+			return;
+		}
+
+		HashMap<ByteBuffer, TransactionOutput> batch = getEntries(log, count);
+		byte[] tipHash = null;
+		if(hasTip) {
+			tipHash = new byte[32];
+			log.get(tipHash);
+			if(Arrays.equals(tipHash, new byte[32])) {
+				tipHash = null;
+			}
+		}
+		applyBatch(batch);
+		table.force(false);
+		writeTip(tipHash);
+		tip = tipHash;
+		Files.delete(walPath);
+	}
+
+	/** Replaces the tip file, or deletes it if the tip isn't known.
+	 * */
+	private void writeTip(byte[] tipHash) throws IOException {
+		if(tipHash == null) {
+			Files.deleteIfExists(tipPath);
+			return;
+		}
+		Path written = directory.resolve("utxo.tip.new");
+		try(FileChannel file = FileChannel.open(written, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			file.write(ByteBuffer.wrap(tipHash));
+			file.force(false);
+		}
+		Files.move(written, tipPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** Appends what the pending batch replaces to the undo journal and forces it to disk. Once the journal holds twice {@link #UNDO_DEPTH} commits, it is rewritten with the last {@link #UNDO_DEPTH}.
+	 * */
+	private void appendUndo(byte[] tipHash) throws IOException {
+		HashMap<ByteBuffer, TransactionOutput> replaced = new HashMap<ByteBuffer, TransactionOutput>();
+		for(ByteBuffer key : pending.keySet()) {
+			replaced.put(key, read(key));
+		}
+		ByteBuffer record = ByteBuffer.allocate(32 + 32 + 4 + replaced.size() * ENTRY_SIZE);
+		record.put((tip == null) ? new byte[32] : tip);
+		record.put(tipHash);
+		record.putInt(replaced.size());
+		putEntries(record, replaced);
+		record.flip();
+
+		try(FileChannel undo = FileChannel.open(undoPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			while(record.hasRemaining()) {
+				undo.write(record);
+			}
+			undo.force(false);
+		}
+		if(++undoRecords >= 2 * UNDO_DEPTH) {
+			ArrayList<UndoRecord> records = readUndo();
+			writeUndo(records.subList(records.size() - UNDO_DEPTH, records.size()));
+		}
+	}
+
+	/** Counts the commits in the undo journal, and drops those after the current tip, whose batches were never committed.
+	 * */
+	private void loadUndo() throws IOException {
+		ArrayList<UndoRecord> records = readUndo();
+		int last = records.size() - 1;
+		while(last >= 0 && !(Arrays.equals(records.get(last).tip, tip))) {
+			last--;
+		}
+		if(last < records.size() - 1) {
+			writeUndo(records.subList(0, last + 1));
+		}
+		undoRecords = last + 1;
+	}
+
+	/** @return Every complete commit in the undo journal; a record which was only partly written by a crash ends it.
+	 * */
+	private ArrayList<UndoRecord> readUndo() throws IOException {
+		ArrayList<UndoRecord> records = new ArrayList<UndoRecord>();
+		if(!Files.exists(undoPath)) {
+			return records;
+		}
+		ByteBuffer journal = ByteBuffer.wrap(Files.readAllBytes(undoPath));
+		while(journal.remaining() >= 32 + 32 + 4) {
+			byte[] previousTip = new byte[32];
+			byte[] tipHash = new byte[32];
+			journal.get(previousTip);
+			journal.get(tipHash);
+			int count = journal.getInt();
+			if(count < 0 || journal.remaining() < (long) count * ENTRY_SIZE) {
+				break;
+			}
+			HashMap<String, TransactionOutput> replaced = new HashMap<String, TransactionOutput>();
+			for(Map.Entry<ByteBuffer, TransactionOutput> entry : getEntries(journal, count).entrySet()) {
+				replaced.put(StringUtil.toHexString(entry.getKey().array()), entry.getValue());
+			}
+			records.add(new UndoRecord(Arrays.equals(previousTip, new byte[32]) ? null : previousTip, tipHash, replaced));
+		}
+		return records;
+	}
+
+	/** Replaces the undo journal with some of its commits.
+	 * */
+	private void writeUndo(List<UndoRecord> records) throws IOException {
+		Path written = directory.resolve("utxo.undo.new");
+		try(FileChannel undo = FileChannel.open(written, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			for(UndoRecord undoRecord : records) {
+				HashMap<ByteBuffer, TransactionOutput> replaced = new HashMap<ByteBuffer, TransactionOutput>();
+				for(Map.Entry<String, TransactionOutput> entry : undoRecord.replaced.entrySet()) {
+					replaced.put(ByteBuffer.wrap(StringUtil.hashFromHex(entry.getKey())), entry.getValue());
+				}
+				ByteBuffer record = ByteBuffer.allocate(32 + 32 + 4 + replaced.size() * ENTRY_SIZE);
+				record.put((undoRecord.previousTip == null) ? new byte[32] : undoRecord.previousTip);
+				record.put(undoRecord.tip);
+				record.putInt(replaced.size());
+				putEntries(record, replaced);
+				record.flip();
+				while(record.hasRemaining()) {
+					undo.write(record);
+				}
+			}
+			undo.force(false);
+		}
+		Files.move(written, undoPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		undoRecords = records.size();
+	}
+
+	private static void putEntries(ByteBuffer buffer, Map<ByteBuffer, TransactionOutput> entries) {
+		for(Map.Entry<ByteBuffer, TransactionOutput> change : entries.entrySet()) {
+			TransactionOutput output = change.getValue();
+			buffer.put(output == null ? DELETED : USED);
+			buffer.put(change.getKey().array());
+			buffer.putLong(output == null ? 0 : output.value);
+			buffer.put(output == null ? new byte[32] : output.ownerHash);
+		}
+	}
+
+	private static HashMap<ByteBuffer, TransactionOutput> getEntries(ByteBuffer buffer, int count) {
+		HashMap<ByteBuffer, TransactionOutput> entries = new HashMap<ByteBuffer, TransactionOutput>();
+		for(int i = 0; i < count; i++) {
+			byte state = buffer.get();
+			byte[] id = new byte[32];
+			buffer.get(id);
+			long value = buffer.getLong();
+			byte[] ownerHash = new byte[32];
+			buffer.get(ownerHash);
+			entries.put(ByteBuffer.wrap(id), state == USED ? new TransactionOutput(StringUtil.toHexString(id), value, ownerHash) : null);
+		}
+		return entries;
+	}
+
+	/** The slots of one owner's outputs, as a growable array of primitives so each output costs 8 bytes of heap.
+	 * */
+	private static class SlotList {
+		long[] slots = new long[2];
+		int size;
+
+		void add(long slot) {
+			if(size == slots.length) {
+				slots = Arrays.copyOf(slots, size * 2);
+			}
+			slots[size++] = slot;
+		}
+
+		boolean remove(long slot) {
+			for(int i = 0; i < size; i++) {
+				if(slots[i] == slot) {
+					slots[i] = slots[--size]; //order doesn't matter, so the last slot fills the gap
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
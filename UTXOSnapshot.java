@@ -0,0 +1,281 @@
+package indicium_blockChain;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class UTXOSnapshot {
+	// A file holding every unspent output after one block, so a new node can start from it instead of replaying the whole chain.
+	// The outputs are split into chunks by the first bits of their ids, and each chunk is sorted, so the same UTXOs always give the same file. Every chunk has its own SHA-256 hash, and the commitment hashes the whole header, which holds the block's hash and the hashes of all chunks.
+	// Chunks are written and verified in parallel, each through its own memory-mapped region of the file.
+
+	public static final byte VERSION = 1;
+	private static final int RECORD_SIZE = 72; //id (32), value (8), owner hash (32), as in the UTXODatabase's slots
+	private static final int CHUNK_RECORDS = 1 << 16; //the average number of outputs in a chunk
+	private static final int FIXED_HEADER_SIZE = 1 + 4 + 32 + 8 + 4; //version, height, block hash, output count, chunk count
+	private static final int CHUNK_ENTRY_SIZE = 4 + 32; //record count, hash
+
+	private static ThreadPoolExecutor workers;
+
+	public final int height; //height of the block the snapshot was taken after
+	public final byte[] blockHash; //hash of that block
+	public final long size; //number of unspent outputs
+	private final int[] chunkSizes;
+	private final byte[][] chunkHashes;
+	private final byte[] commitment;
+	private final Path file;
+
+	private UTXOSnapshot(Path file, int height, byte[] blockHash, long size, int[] chunkSizes, byte[][] chunkHashes) {
+		this.file = file;
+		this.height = height;
+		this.blockHash = blockHash;
+		this.size = size;
+		this.chunkSizes = chunkSizes;
+		this.chunkHashes = chunkHashes;
+		this.commitment = StringUtil.applySHA256Raw(encodeHeader().array());
+	}
+
+	private static synchronized ThreadPoolExecutor getWorkers() {
+		if(workers == null) {
+			int threads = Runtime.getRuntime().availableProcessors();
+			workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					runnable -> {
+						Thread worker = new Thread(runnable, "indicium-snapshot");
+						worker.setDaemon(true);
+						return worker;
+					});
+		}
+		return workers;
+	}
+
+	/** Writes the UTXOs to a snapshot file. The UTXOs must not change while they are written, i.e. they have to be those after the given block.
+	 * @param UTXOs - The unspent outputs after the block, without a pending batch.
+	 * @param height - The height of the block.
+	 * @param blockHash - The hash of the block.
+	 * @param file - The file, which is replaced if it exists.
+	 * @return The snapshot which has been written.
+	 * */
+	public static UTXOSnapshot write(UTXODatabase UTXOs, int height, byte[] blockHash, Path file) throws IOException {
+		//a power of 2 chunks, so a chunk is picked by the first bits of an id, which are uniform as ids are hashes
+		int bits = 0;
+		while(bits < 16 && ((long) CHUNK_RECORDS << bits) < UTXOs.size()) {
+			bits++;
+		}
+		final int shift = 32 - bits;
+		ArrayList<ArrayList<byte[]>> buckets = new ArrayList<ArrayList<byte[]>>();
+		for(int c = 0; c < (1 << bits); c++) {
+			buckets.add(new ArrayList<byte[]>());
+		}
+
+		long[] count = new long[1];
+		UTXOs.forEach(output -> {
+			ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+			record.put(StringUtil.hashFromHex(output.id));
+			record.putLong(output.value);
+			record.put(output.ownerHash);
+			int chunk = (shift == 32) ? 0 : (record.getInt(0) >>> shift);
+			buckets.get(chunk).add(record.array());
+			count[0]++;
+		});
+
+		int chunks = buckets.size();
+		int[] chunkSizes = new int[chunks];
+		byte[][] chunkHashes = new byte[chunks][];
+		for(int c = 0; c < chunks; c++) {
+			chunkSizes[c] = buckets.get(c).size();
+		}
+
+		long dataOffset = FIXED_HEADER_SIZE + (long) chunks * CHUNK_ENTRY_SIZE;
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			List<Future<?>> writes = new ArrayList<Future<?>>();
+			long offset = dataOffset;
+			for(int c = 0; c < chunks; c++) {
+				final int chunk = c;
+				final long chunkOffset = offset;
+				offset += (long) chunkSizes[c] * RECORD_SIZE;
+				writes.add(getWorkers().submit(() -> {
+					ArrayList<byte[]> records = buckets.get(chunk);
+					records.sort((a, b) -> Arrays.compareUnsigned(a, 0, 32, b, 0, 32));
+					MessageDigest digest = newDigest();
+					MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, chunkOffset, (long) records.size() * RECORD_SIZE);
+					for(byte[] record : records) {
+						region.put(record);
+						digest.update(record);
+					}
+					region.force();
+					chunkHashes[chunk] = digest.digest();
+					return null;
+				}));
+			}
+			await(writes);
+
+			UTXOSnapshot snapshot = new UTXOSnapshot(file, height, blockHash, count[0], chunkSizes, chunkHashes);
+			ByteBuffer header = snapshot.encodeHeader();
+			while(header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+			channel.force(true);
+			return snapshot;
+		}
+	}
+
+	/** Reads the header of a snapshot file. The chunks are only read, and verified, by {@link #load(UTXODatabase)}.
+	 * @param file - The snapshot file.
+	 * @return The snapshot.
+	 * */
+	public static UTXOSnapshot open(Path file) throws IOException {
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer fixed = readFully(channel, 0, FIXED_HEADER_SIZE);
+			byte version = fixed.get();
+			if(version != VERSION) {
+				throw new IOException("Unsupported UTXO snapshot version " + version);
+			}
+			int height = fixed.getInt();
+			byte[] blockHash = new byte[32];
+			fixed.get(blockHash);
+			long size = fixed.getLong();
+			int chunks = fixed.getInt();
+			if(chunks <= 0 || chunks > (1 << 16)) {
+				throw new IOException("Invalid UTXO snapshot chunk count " + chunks);
+			}
+
+			ByteBuffer entries = readFully(channel, FIXED_HEADER_SIZE, chunks * CHUNK_ENTRY_SIZE);
+			int[] chunkSizes = new int[chunks];
+			byte[][] chunkHashes = new byte[chunks][32];
+			long records = 0;
+			for(int c = 0; c < chunks; c++) {
+				chunkSizes[c] = entries.getInt();
+				entries.get(chunkHashes[c]);
+				records += chunkSizes[c];
+			}
+			if(records != size || channel.size() != FIXED_HEADER_SIZE + (long) chunks * CHUNK_ENTRY_SIZE + size * RECORD_SIZE) {
+				throw new IOException("UTXO snapshot " + file + " is truncated or corrupt");
+			}
+			return new UTXOSnapshot(file, height, blockHash, size, chunkSizes, chunkHashes);
+		}
+	}
+
+	/** Verifies every chunk against its hash, then adds the outputs to the UTXOs and commits them as one batch.
+	 * <br>The chunks are mapped and verified in parallel; nothing is added if any of them has been tampered with.
+	 * @param UTXOs - The UTXOs, which should be empty.
+	 * @return The digest of the UTXOs once the outputs are committed, see {@link UTXODatabase#getDigest()}, so replaying the chain up to the snapshot's block can be checked against it.
+	 * */
+	public byte[] load(UTXODatabase UTXOs) throws IOException {
+		int chunks = chunkSizes.length;
+		long dataOffset = FIXED_HEADER_SIZE + (long) chunks * CHUNK_ENTRY_SIZE;
+		MappedByteBuffer[] regions = new MappedByteBuffer[chunks];
+
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			List<Future<Boolean>> checks = new ArrayList<Future<Boolean>>();
+			long offset = dataOffset;
+			for(int c = 0; c < chunks; c++) {
+				final int chunk = c;
+				final long chunkOffset = offset;
+				offset += (long) chunkSizes[c] * RECORD_SIZE;
+				checks.add(getWorkers().submit(() -> {
+					MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, chunkOffset, (long) chunkSizes[chunk] * RECORD_SIZE);
+					regions[chunk] = region;
+					MessageDigest digest = newDigest();
+					digest.update(region.duplicate());
+					return Arrays.equals(digest.digest(), chunkHashes[chunk]);
+				}));
+			}
+			for(int c = 0; c < chunks; c++) {
+				if(!(await(checks.get(c)))) {
+					throw new IOException("Chunk " + c + " of UTXO snapshot " + file + " doesn't match its hash");
+				}
+			}
+		}
+
+		byte[] id = new byte[32];
+		for(MappedByteBuffer region : regions) {
+			ByteBuffer records = region.duplicate();
+			while(records.hasRemaining()) {
+				records.get(id);
+				long value = records.getLong();
+				byte[] ownerHash = new byte[32];
+				records.get(ownerHash);
+				String outputID = StringUtil.toHexString(id);
+				UTXOs.put(outputID, new TransactionOutput(outputID, value, ownerHash));
+			}
+		}
+		UTXOs.commit();
+		return UTXOs.getDigest();
+	}
+
+	/** The commitment binds the outputs to the block they were taken after: it is the SHA-256 hash of the header, which holds the block's height and hash and the hash of every chunk.
+	 * <br>Two nodes with the same UTXOs after the same block get the same commitment, so a node can check a snapshot from an untrusted peer against a commitment from a trusted one.
+	 * @return The snapshot's commitment.
+	 * */
+	public byte[] getCommitment() {
+		return commitment.clone();
+	}
+
+	/** @return How many chunks the outputs are split into.
+	 * */
+	public int getChunkCount() {
+		return chunkSizes.length;
+	}
+
+	private ByteBuffer encodeHeader() {
+		ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_SIZE + chunkSizes.length * CHUNK_ENTRY_SIZE);
+		header.put(VERSION);
+		header.putInt(height);
+		header.put(blockHash);
+		header.putLong(size);
+		header.putInt(chunkSizes.length);
+		for(int c = 0; c < chunkSizes.length; c++) {
+			header.putInt(chunkSizes[c]);
+			header.put(chunkHashes[c]);
+		}
+		header.flip();
+		return header;
+	}
+
+	private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of UTXO snapshot");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch(Exception ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
+		}
+	}
+
+	private static <T> T await(Future<T> task) throws IOException {
+		try {
+			return task.get();
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ex);
+		} catch(ExecutionException ex) {
+			if(ex.getCause() instanceof IOException) {
+				throw (IOException) ex.getCause();
+			}
+			ex.printStackTrace();
+			throw new RuntimeException(ex.getCause());
+		}
+	}
+
+	private static void await(List<Future<?>> tasks) throws IOException {
+		for(Future<?> task : tasks) {
+			await(task);
+		}
+	}
+}
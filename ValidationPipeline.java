@@ -0,0 +1,109 @@
+package indicium_blockChain;
+
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ValidationPipeline {
+	// Validates batches of transactions (a block, or a slice of the Mempool) in two stages.
+	// Signatures are independent of each other, so they are verified in parallel; the UTXO checks depend on the order of the transactions, so they are applied serially afterwards.
+
+	private static final int QUEUE_CAPACITY = 1024; //pending verification tasks before submitters have to help out
+
+	private static ValidationPipeline defaultPipeline;
+
+	private final int threads;
+	private final ThreadPoolExecutor workers;
+
+	public ValidationPipeline(int threadCount) {
+		threads = Math.max(1, threadCount);
+		workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY),
+				runnable -> {
+					Thread worker = new Thread(runnable, "indicium-validator");
+					worker.setDaemon(true);
+					return worker;
+				},
+				new ThreadPoolExecutor.CallerRunsPolicy()); //when the queue is full the submitting thread verifies the batch itself
+	}
+
+	public ValidationPipeline() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/** Gets the pipeline shared by the node, which uses one worker per available core.
+	 * @return The default ValidationPipeline.
+	 * */
+	public static synchronized ValidationPipeline getDefault() {
+		if(defaultPipeline == null) {
+			defaultPipeline = new ValidationPipeline();
+		}
+		return defaultPipeline;
+	}
+
+	/** Verifies the signatures of a batch of transactions in parallel.
+	 * <br>The batch is split into contiguous slices, roughly 4 per worker, so that slow signatures don't leave workers idle.
+	 * @param batch - The transactions whose signatures are verified.
+	 * @return For every transaction in the batch, True if its signature is valid.
+	 * */
+	public boolean[] verifySignatures(List<Transactions> batch) {
+		boolean[] valid = new boolean[batch.size()];
+		if(batch.isEmpty()) {
+			return valid;
+		}
+
+		int sliceSize = Math.max(1, (batch.size() + threads * 4 - 1) / (threads * 4));
+		List<Future<?>> slices = new ArrayList<Future<?>>();
+
+		for(int start = 0; start < batch.size(); start += sliceSize) {
+			final int from = start;
+			final int to = Math.min(batch.size(), start + sliceSize);
+			slices.add(workers.submit(() -> {
+				Signature verifier = CryptoContext.getVerifier(); //Signature objects are not thread-safe, so each worker reuses its own
+				for(int i = from; i < to; i++) {
+					Transactions transaction = batch.get(i);
+					valid[i] = transaction != null && transaction.verifySignature(verifier);
+				}
+			}));
+		}
+
+		try {
+			for(Future<?> slice : slices) {
+				slice.get();
+			}
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ex);
+		} catch(ExecutionException ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex.getCause());
+		}
+		return valid;
+	}
+
+	/** Validates a batch of transactions: all signatures are verified in parallel, then the transactions with valid signatures are applied to the UTXOs in order.
+	 * @param batch - The transactions which are being validated, in the order they should be applied.
+	 * @return The transactions which were accepted, in their original order.
+	 * */
+	public ArrayList<Transactions> validate(List<Transactions> batch) {
+		boolean[] valid = verifySignatures(batch);
+		ArrayList<Transactions> accepted = new ArrayList<Transactions>(batch.size());
+
+		for(int i = 0; i < batch.size(); i++) {
+			if(!valid[i]) {
+				Log.warn("#Transaction (" + i + ") signature failed to verify. ");
+				continue;
+			}
+			if(batch.get(i).applyTransaction()) {
+				accepted.add(batch.get(i));
+			}
+		}
+		return accepted;
+	}
+
+	/** Stops all worker threads. The pipeline cannot be used afterwards.
+	 * */
+	public void shutdown() {
+		workers.shutdownNow();
+	}
+}
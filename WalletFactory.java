@@ -0,0 +1,130 @@
+package indicium_blockChain;
+
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.security.spec.ECGenParameterSpec;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class WalletFactory {
+	// Generates wallets in parallel batches, e.g. for load tests or a custodial service which opens thousands of accounts at once.
+	// Every worker keeps its own KeyPairGenerator for the wallets' curve instead of looking one up from the provider per wallet. A batch is split into fixed-size chunks, and a seeded batch gives every chunk its own random source, so the same seed gives the same wallets however many threads generate them.
+
+	private static final int CHUNK_SIZE = 64;
+
+	private static WalletFactory defaultFactory;
+
+	private final int threads;
+	private final ThreadPoolExecutor workers;
+
+	//KeyPairGenerators are not thread-safe, so each worker reuses its own
+	private final ThreadLocal<KeyPairGenerator> generators = ThreadLocal.withInitial(() -> {
+		try {
+			return KeyPairGenerator.getInstance("ECDSA", "BC");
+		} catch(Exception ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
+		}
+	});
+	private final ThreadLocal<SecureRandom> randoms = ThreadLocal.withInitial(SecureRandom::new);
+
+	public WalletFactory(int threadCount) {
+		if(Security.getProvider("BC") == null) {
+			Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+		}
+		threads = Math.max(1, threadCount);
+		workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				runnable -> {
+					Thread worker = new Thread(runnable, "indicium-keygen");
+					worker.setDaemon(true);
+					return worker;
+				});
+	}
+
+	public WalletFactory() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/** Gets the factory shared by the node, which uses one worker per available core.
+	 * @return The default WalletFactory.
+	 * */
+	public static synchronized WalletFactory getDefault() {
+		if(defaultFactory == null) {
+			defaultFactory = new WalletFactory();
+		}
+		return defaultFactory;
+	}
+
+	/** Generates a batch of wallets with fresh keys from each worker's SecureRandom.
+	 * @param count - How many wallets are generated.
+	 * @return The wallets.
+	 * */
+	public Wallet_beta[] generate(int count) {
+		return generate(count, null);
+	}
+
+	/** Generates a reproducible batch of wallets, e.g. for a synthetic workload. Only use it for test keys: anyone who knows the seed knows the private keys.
+	 * @param count - How many wallets are generated.
+	 * @param seed - The seed the keys are derived from.
+	 * @return The wallets, always the same for the same seed and count.
+	 * */
+	public Wallet_beta[] generate(int count, long seed) {
+		return generate(count, Long.valueOf(seed));
+	}
+
+	private Wallet_beta[] generate(int count, Long seed) {
+		Wallet_beta[] wallets = new Wallet_beta[count];
+		List<Future<?>> chunks = new ArrayList<Future<?>>();
+
+		for(int start = 0; start < count; start += CHUNK_SIZE) {
+			final int from = start;
+			final int to = Math.min(count, start + CHUNK_SIZE);
+			chunks.add(workers.submit(() -> {
+				KeyPairGenerator generator = generators.get();
+				SecureRandom random = (seed == null) ? randoms.get() : chunkRandom(seed, from / CHUNK_SIZE);
+				try {
+					generator.initialize(new ECGenParameterSpec(Wallet_beta.CURVE), random);
+				} catch(InvalidAlgorithmParameterException ex) {
+					ex.printStackTrace();
+					throw new RuntimeException(ex);
+				}
+				for(int i = from; i < to; i++) {
+					wallets[i] = new Wallet_beta(generator.generateKeyPair());
+				}
+			}));
+		}
+
+		try {
+			for(Future<?> chunk : chunks) {
+				chunk.get();
+			}
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ex);
+		} catch(ExecutionException ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex.getCause());
+		}
+		return wallets;
+	}
+
+	/** SHA1PRNG is deterministic once it is seeded before its first use, so every chunk derives its own from the batch's seed.
+	 * */
+	private static SecureRandom chunkRandom(long seed, int chunk) {
+		try {
+			SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+			random.setSeed(ByteBuffer.allocate(12).putLong(seed).putInt(chunk).array());
+			return random;
+		} catch(NoSuchAlgorithmException ex) {
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/** Stops all worker threads. The factory cannot be used afterwards.
+	 * */
+	public void shutdown() {
+		workers.shutdownNow();
+	}
+}
@@ -6,17 +6,31 @@ import java.security.spec.ECGenParameterSpec;
 import java.util.*;
 
 public class Wallet_beta {
+	public static final String CURVE = "prime192v1"; //the curve every wallet's keys are on
+
 	public PrivateKey privKey;
 	public PublicKey pubKey;
-
-
-	public HashMap<String,TransactionOutput> UTXOs = new HashMap<String,TransactionOutput>(); //only UTXOs owned by this wallet
+	public byte[] ownerHash; //SHA-256 of the encoded public key, which the UTXOs are indexed by
 
 
 
 	public Wallet_beta() {
 		generateKeyPair();
 	}
+
+	/** Creates a wallet whose keys come from the given source of randomness, e.g. a seeded one so a synthetic workload is reproducible.
+	 * @param random - The source of randomness for the key pair.
+	 * */
+	public Wallet_beta(SecureRandom random) {
+		generateKeyPair(random);
+	}
+
+	/** Creates a wallet from a key pair which has already been generated, e.g. by a {@link WalletFactory}.
+	 * @param keyPair - A key pair on {@link #CURVE}.
+	 * */
+	public Wallet_beta(KeyPair keyPair) {
+		setKeyPair(keyPair);
+	}
 	/** Generates a Public-Private key pair from the Elliptic Curve Digital Signature Algorithm. 
 	 * <br>It uses the SHA-1 as the foundation of the pseudo-random number generator.
 	 * <br>The paramaters are based off of prime192v1 generation. 
@@ -24,62 +38,87 @@ public class Wallet_beta {
 	 * */
 	public void generateKeyPair() {
 		try {
-			KeyPairGenerator keyGen = KeyPairGenerator.getInstance("ECDSA", "BC"); //generates pair of public and private keys using the digital signature and elliptic curve (EC) algorithms.
 			SecureRandom random = SecureRandom.getInstance("SHA1PRNG"); //a cryptographically strong random number generator - uses pseudorandom number generator (PRNG) generation and hashed with SHA-1
-			ECGenParameterSpec ecSpec = new ECGenParameterSpec("prime192v1"); //specifies the method of parameter generation for the EC
-
-			keyGen.initialize(ecSpec, random); //initializes the key-pair generator with the given parameter set and the source of randomness
-			KeyPair keyPair = keyGen.generateKeyPair(); //generates the actual key pair
-
-			privKey = keyPair.getPrivate(); //private key in key pair
-			pubKey = keyPair.getPublic(); //public key in key pair
-
+			generateKeyPair(random);
 		} catch(Exception ex){
 			ex.printStackTrace();
 			throw new RuntimeException(ex);
 		}
 	}
-	/** Gets the current balance of the wallet by iterating through all the unspent outputs (i.e. UTXOs) on the blockchain.
-	 * If the value belongs to the user, that output is then added to an arbitrary counter <code>total</code>.
-	 * @return The current Wallet balance i.e. all the unspent outputs of that wallet.
+
+	/** Generates the wallet's key pair on prime192v1 from the given source of randomness.
+	 * @param random - The source of randomness for the key pair.
 	 * */
-	public float getWalletBalance() {
-		float total = 0;
+	public void generateKeyPair(SecureRandom random) {
+		try {
+			KeyPairGenerator keyGen = KeyPairGenerator.getInstance("ECDSA", "BC"); //generates pair of public and private keys using the digital signature and elliptic curve (EC) algorithms.
+			ECGenParameterSpec ecSpec = new ECGenParameterSpec(CURVE); //specifies the method of parameter generation for the EC
 
-		//for all the entries in the Blockchain's hashmap containing all UTXOs.
-		for(Map.Entry<String, TransactionOutput> item : Indicium.UTXOs.entrySet()) {
-			TransactionOutput UTXO = item.getValue();
+			keyGen.initialize(ecSpec, random); //initializes the key-pair generator with the given parameter set and the source of randomness
+			setKeyPair(keyGen.generateKeyPair()); //generates the actual key pair
 
-			//if the output (the coins) in TransactionOutput belong to the sender
-			if(UTXO.isMine(pubKey)) {
-				UTXOs.put(UTXO.id, UTXO); //add it to list of unspent outputs
-				total += UTXO.value;
-			}
+		} catch(Exception ex){
+			ex.printStackTrace();
+			throw new RuntimeException(ex);
 		}
-		return total;	
+	}
+
+	private void setKeyPair(KeyPair keyPair) {
+		privKey = keyPair.getPrivate(); //private key in key pair
+		pubKey = keyPair.getPublic(); //public key in key pair
+		ownerHash = CryptoContext.getKeyHash(pubKey);
+	}
+	/** Gets the current balance of the wallet by adding up the wallet's own unspent outputs (i.e. UTXOs) on the blockchain.
+	 * They are looked up in the owner index of the last committed {@link ChainState}, so this costs time proportional to the wallet's outputs rather than to all UTXOs, and can be called from any thread while blocks are added.
+	 * @return The current Wallet balance in base units i.e. all the unspent outputs of that wallet.
+	 * */
+	public long getWalletBalance() {
+		return Indicium_beta.state.getBalance(ownerHash);
 	}
 
 	/**Sends funds to the desired address from an individual's wallet.
 	 * Gathers all the necessary outputs and 'transfers' them to a new owner.
 	 * All transactions are signed by the Sender.
+	 * The outputs are read from the last committed {@link ChainState}, leaving out those which a transaction in the Mempool already spends, so it can be called from any thread, e.g. to submit the transaction to the Mempool.
+	 * @param _recipient - The PublicKey (i.e. address) of the recipient of the coins.
+	 * @param value - The amount being transferred, in base units.
+	 * @return A new signed transaction.  
+	 * */
+	public Transactions sendFunds(PublicKey _recipient, long value) {
+		ArrayList<TransactionOutput> UTXOs = Indicium_beta.state.getByOwner(ownerHash);
+		UTXOs.removeIf(UTXO -> Indicium_beta.mempool.isSpent(UTXO.id));
+		return buildTransaction(_recipient, value, UTXOs);
+	}
+
+	/**Sends funds to the desired address from the outputs the next block is built on, so outputs already spent by the block being built are left out and the change it has created can be spent again.
+	 * Only the thread which builds the block (i.e. the writer of the UTXOs' pending batch) calls it.
 	 * @param _recipient - The PublicKey (i.e. address) of the recipient of the coins.
-	 * @param value - The amount being transferred.
+	 * @param value - The amount being transferred, in base units.
+	 * @param UTXOs - The UTXOs, with the pending batch of the block being built.
 	 * @return A new signed transaction.  
 	 * */
-	public Transactions sendFunds(PublicKey _recipient, float value) {
+	public Transactions sendFunds(PublicKey _recipient, long value, UTXODatabase UTXOs) {
+		return buildTransaction(_recipient, value, UTXOs.getByOwner(ownerHash));
+	}
+
+	private Transactions buildTransaction(PublicKey _recipient, long value, ArrayList<TransactionOutput> UTXOs) {
+		long balance = 0;
+		for(TransactionOutput UTXO : UTXOs) {
+			balance += UTXO.value;
+		}
+
 		//if wallet's balance is less than value being transferred
-		if(getWalletBalance() < value) {
-			System.out.println("#Not enough funds to complete transactions. Transaction discarded. ");
+		if(balance < value) {
+			Log.warn("#Not enough funds to complete transactions. Transaction discarded. ");
 			return null;
 		}
 
 		ArrayList<TransactionInput>inputs = new ArrayList<TransactionInput>(); //create an ArrayList of inputs 
 
-		float total = 0;
+		long total = 0;
 		
 		//iterates through every unspent output of the wallet.
-		for(Map.Entry<String, TransactionOutput> item : UTXOs.entrySet()) {
-			TransactionOutput UTXO = item.getValue();
+		for(TransactionOutput UTXO : UTXOs) {
 			total += UTXO.value;
 			inputs.add(new TransactionInput(UTXO.id));
 
@@ -90,11 +129,6 @@ public class Wallet_beta {
 
 		Transactions newTransaction = new Transactions(pubKey, _recipient, value, inputs); //constructs a transaction from the wallet's input
 		newTransaction.generateSignature(privKey); //generates a signature for the transaction
-
-		//remove the inputs from UTXOs
-		for(TransactionInput input : inputs) {
-			UTXOs.remove(input.transactionOutID);
-		}
 		
 		return newTransaction;
 	}
@@ -0,0 +1,121 @@
+package indicium_blockChain;
+
+import java.io.IOException;
+import java.security.*;
+import java.util.*;
+
+public class WorkloadGenerator {
+	// Synthetic, seeded workloads for benchmarks and load tests.
+	// The same seed always gives the same wallets, the same sequence of transfers and the same chain shape, so runs can be compared offline.
+	// Amounts are whole coins, which keeps the transfers easy to read back.
+	// A synthetic chain is mined far faster than the target block time, so it is created with its own ChainParams, which don't retarget; the rules of any other chain are left as they are.
+
+	private final Random random;
+	private final SecureRandom keyRandom; //SHA1PRNG is deterministic once it is seeded before its first use; only the genesis block's coinbase wallet is drawn from it
+	private final Wallet_beta[] wallets;
+	private final long[] balances; //tracked here so senders can be picked without querying every wallet
+	public static final ChainParams PARAMS = ChainParams.DEFAULT.withRetargetInterval(0); //the rules of a synthetic chain: every block keeps the genesis block's difficulty
+
+	/** Creates the wallets of a workload. The chain state in {@link Indicium_beta} isn't touched until {@link #generateChain(int, int, int)} is called.
+	 * @param seed - The seed of every random choice, including the wallets' keys.
+	 * @param walletCount - How many wallets take part in the workload.
+	 * */
+	public WorkloadGenerator(long seed, int walletCount) {
+		if(Security.getProvider("BC") == null) {
+			Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+		}
+		random = new Random(seed);
+		try {
+			keyRandom = SecureRandom.getInstance("SHA1PRNG");
+		} catch(NoSuchAlgorithmException ex) {
+			throw new RuntimeException(ex);
+		}
+		keyRandom.setSeed(seed);
+
+		wallets = WalletFactory.getDefault().generate(Math.max(2, walletCount), seed); //generated in parallel, yet the same for the same seed
+		balances = new long[wallets.length];
+	}
+
+	public Wallet_beta[] getWallets() {
+		return wallets;
+	}
+
+	/** Resets the chain state in {@link Indicium_beta} and mines a genesis block which gives every coin to the first wallet.
+	 * <br>Synthetic chains are mined far faster than the target block time, so the chain is created with {@link #PARAMS}, under which every block keeps the genesis block's difficulty, and the node's validator and miner follow them for as long as it has this chain.
+	 * @param coins - How many whole coins are minted.
+	 * @param difficulty - The difficulty the genesis block is mined with, in leading hexadecimal 0s.
+	 * @return The genesis block.
+	 * */
+	public Block startChain(long coins, int difficulty) {
+		try {
+			Indicium_beta.UTXOs.close();
+		} catch(IOException ex) {
+			ex.printStackTrace();
+		}
+		Indicium_beta.blockchain = new ArrayList<Block>();
+		Indicium_beta.state = ChainState.EMPTY;
+		Indicium_beta.blockTree = new BlockTree();
+		Indicium_beta.chainIndex = new ChainIndex();
+		Indicium_beta.UTXOs = UTXODatabase.openTemporary();
+		Indicium_beta.mempool = new Mempool(Integer.MAX_VALUE);
+		Indicium_beta.setParams(PARAMS);
+		Indicium_beta.prunedHeight = 0;
+		Arrays.fill(balances, 0);
+
+		Block genesis = Indicium_beta.createGenesis(new Wallet_beta(keyRandom), wallets[0], Amount.ofCoins(coins), difficulty);
+		balances[0] = Amount.ofCoins(coins);
+		return genesis;
+	}
+
+	/** Creates a signed transfer of a random whole amount between two random wallets. The sender is always a wallet which can afford it.
+	 * <br>It spends the outputs the block being built leaves (see {@link Wallet_beta#sendFunds(PublicKey, long, UTXODatabase)}), so only the thread building the block calls it.
+	 * @return A new signed transaction, or null if no wallet has any coins.
+	 * */
+	public Transactions randomTransfer() {
+		for(int attempt = 0; attempt < wallets.length; attempt++) {
+			int sender = random.nextInt(wallets.length);
+			for(int tries = 0; balances[sender] < 2 * Amount.COIN && tries < wallets.length; tries++) {
+				sender = (sender + 1) % wallets.length;
+			}
+			if(balances[sender] < 2 * Amount.COIN) {
+				return null;
+			}
+
+			int recipient = random.nextInt(wallets.length - 1);
+			if(recipient >= sender) {
+				recipient++; //never sends to itself
+			}
+			long amount = Amount.ofCoins(1 + random.nextInt((int) Math.min(balances[sender] / Amount.COIN / 2, 1000)));
+
+			Transactions transaction = wallets[sender].sendFunds(wallets[recipient].pubKey, amount, Indicium_beta.UTXOs);
+			if(transaction != null) {
+				balances[sender] -= amount;
+				balances[recipient] += amount;
+				return transaction;
+			}
+			//an earlier transfer was never processed, so the tracked balance is resynchronised with the UTXOs
+			balances[sender] = wallets[sender].getWalletBalance();
+		}
+		return null;
+	}
+
+	/** Generates a synthetic chain: a genesis block followed by blocks full of random transfers, each one mined and added to {@link Indicium_beta#blockchain}.
+	 * @param blocks - How many blocks follow the genesis block.
+	 * @param transactionsPerBlock - How many transfers each block holds.
+	 * @param difficulty - The difficulty every block is mined with, in leading hexadecimal 0s; keep it low so generation is fast.
+	 * @return The chain, starting with the genesis block.
+	 * */
+	public ArrayList<Block> generateChain(int blocks, int transactionsPerBlock, int difficulty) {
+		startChain(1000000, difficulty);
+
+		for(int b = 0; b < blocks; b++) {
+			Block block = new Block(Indicium_beta.blockchain.get(Indicium_beta.blockchain.size() - 1).hash);
+			for(int t = 0; t < transactionsPerBlock; t++) {
+				block.addTransaction(randomTransfer());
+			}
+			block.mineBlock(Difficulty.nextBits(Indicium_beta.params, Indicium_beta.blockchain));
+			Indicium_beta.appendBlock(block);
+		}
+		return Indicium_beta.blockchain;
+	}
+}
@@ -0,0 +1,49 @@
+package indicium_blockChain.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import indicium_blockChain.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChainValidationBenchmark {
+	// Indicium_beta.isChainValid on a synthetic chain, replayed from genesis and from a checkpoint at the tip.
+
+	@Param({"10", "100"})
+	public int chainLength;
+
+	@Param({"10"})
+	public int transactionsPerBlock;
+
+	private static final int DIFFICULTY = 1;
+
+	private WorkloadGenerator generator;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		generator = new WorkloadGenerator(1729, 100);
+		generator.generateChain(chainLength, transactionsPerBlock, DIFFICULTY);
+	}
+
+	/** A full validation, as done by a node which has no checkpoint yet.
+	 * */
+	@Benchmark
+	public boolean fromGenesis() {
+		Indicium_beta.validator.close();
+		Indicium_beta.validator = new ChainValidator(Indicium_beta.params);
+		return Indicium_beta.isChainValid();
+	}
+
+	/** Revalidation once the tip is checkpointed, which only costs the blocks added since.
+	 * */
+	@Benchmark
+	public boolean fromCheckpoint() {
+		return Indicium_beta.isChainValid();
+	}
+}
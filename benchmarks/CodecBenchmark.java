@@ -0,0 +1,41 @@
+package indicium_blockChain.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import indicium_blockChain.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+	// Binary encoding and decoding of a block full of transfers, as done by the BlockStore and on sync.
+
+	@Param({"1", "100"})
+	public int transactionsPerBlock;
+
+	private Block block;
+	private byte[] encoded;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		block = new WorkloadGenerator(1729, 100).generateChain(1, transactionsPerBlock, 1).get(1);
+		encoded = BlockCodec.encode(block);
+		System.out.println("\n" + transactionsPerBlock + " transactions encode to " + encoded.length + " bytes");
+	}
+
+	@Benchmark
+	public int encode() {
+		return BlockCodec.encodePooled(block).remaining();
+	}
+
+	@Benchmark
+	public Block decode() {
+		return BlockCodec.decode(ByteBuffer.wrap(encoded));
+	}
+}
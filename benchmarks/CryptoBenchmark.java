@@ -0,0 +1,66 @@
+package indicium_blockChain.benchmarks;
+
+import java.security.*;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import indicium_blockChain.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoBenchmark {
+	// Hashing and ECDSA signing/verification through StringUtil, and transaction verification with and without the CryptoContext's verified-signature cache.
+
+	@Param({"64", "1024"})
+	public int inputLength;
+
+	private String input;
+	private Wallet_beta wallet;
+	private byte[] signature;
+	private Transactions transaction;
+
+	@Setup
+	public void setup() {
+		Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+		input = new String(new char[inputLength]).replace('\0', 'a');
+		Wallet_beta[] wallets = new WorkloadGenerator(1729, 2).getWallets();
+		wallet = wallets[0];
+		signature = StringUtil.applyESDSA(wallet.privKey, input);
+		transaction = new Transactions(wallet.pubKey, wallets[1].pubKey, Amount.COIN, new ArrayList<TransactionInput>());
+		transaction.generateSignature(wallet.privKey);
+	}
+
+	@Benchmark
+	public String applySHA256() {
+		return StringUtil.applySHA256(input);
+	}
+
+	@Benchmark
+	public byte[] applyESDSA() {
+		return StringUtil.applyESDSA(wallet.privKey, input);
+	}
+
+	@Benchmark
+	public boolean verifyECDSASig() {
+		return StringUtil.verifyECDSASig(wallet.pubKey, input, signature);
+	}
+
+	/** A transaction which has already been verified, e.g. on admission to the Mempool, as it is checked again when its block is accepted.
+	 * */
+	@Benchmark
+	public boolean verifyTransactionCached() {
+		return transaction.verifySignature();
+	}
+
+	@Benchmark
+	public boolean verifyTransactionUncached() {
+		CryptoContext.clearVerifiedSignatures();
+		return transaction.verifySignature();
+	}
+}
@@ -0,0 +1,34 @@
+package indicium_blockChain.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import indicium_blockChain.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderHashBenchmark {
+	// Hashes per second on one core: the midstate hasher used by the miner against a full hash of the header.
+
+	private final byte[] header = new byte[Block.HEADER_SIZE];
+	private final HeaderHasher hasher = new HeaderHasher(header);
+	private final byte[] out = new byte[32];
+	private int nonce;
+
+	@Benchmark
+	public byte[] midstate() {
+		hasher.hash(nonce++, out);
+		return out;
+	}
+
+	@Benchmark
+	public byte[] fullHeader() {
+		header[Block.NONCE_OFFSET + 3] = (byte) nonce++;
+		return StringUtil.applySHA256Raw(header);
+	}
+}
@@ -0,0 +1,55 @@
+package indicium_blockChain.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import indicium_blockChain.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MerkleBenchmark {
+	// Merkle root of a block with 1, 100 and 10k transactions, from scratch and incrementally.
+
+	@Param({"1", "100", "10000"})
+	public int transactionCount;
+
+	private ArrayList<Transactions> transactions;
+	private MerkleTree tree;
+	private byte[] leaf;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1729);
+		transactions = new ArrayList<Transactions>();
+		tree = new MerkleTree();
+		for(int t = 0; t < transactionCount; t++) {
+			byte[] id = new byte[32];
+			random.nextBytes(id);
+			Transactions transaction = new Transactions(null, null, 0, null); //only the id is part of the tree
+			transaction.transactionID = StringUtil.toHexString(id);
+			transactions.add(transaction);
+			tree.append(id);
+		}
+		leaf = new byte[32];
+		random.nextBytes(leaf);
+	}
+
+	@Benchmark
+	public String getMerkleRoot() {
+		return StringUtil.getMerkleRoot(transactions);
+	}
+
+	/** Replacing one leaf of the cached tree, which only rehashes its path to the root.
+	 * */
+	@Benchmark
+	public byte[] updateOneLeaf() {
+		tree.set(transactionCount / 2, leaf);
+		return tree.getRoot();
+	}
+}
@@ -0,0 +1,36 @@
+package indicium_blockChain.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import indicium_blockChain.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MiningBenchmark {
+	// Block.mineBlock at low difficulties (in leading hexadecimal 0s); each invocation mines a fresh block.
+
+	@Param({"1", "2", "3", "4"})
+	public int difficulty;
+
+	private final Random random = new Random(1729);
+	private Block block;
+
+	@Setup(Level.Invocation)
+	public void newBlock() {
+		byte[] prevHash = new byte[32];
+		random.nextBytes(prevHash);
+		block = new Block(prevHash);
+	}
+
+	@Benchmark
+	public boolean mineBlock() {
+		return block.mineBlock(Difficulty.ofLeadingZeros(difficulty));
+	}
+}
@@ -0,0 +1,46 @@
+package indicium_blockChain.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import indicium_blockChain.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionBenchmark {
+	// Transactions.processTransaction on random transfers between synthetic wallets.
+
+	@Param({"100"})
+	public int walletCount;
+
+	private WorkloadGenerator generator;
+	private Transactions transaction;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		generator = new WorkloadGenerator(1729, walletCount);
+		generator.startChain(1000000, 1);
+	}
+
+	@Setup(Level.Invocation)
+	public void newTransfer() {
+		transaction = generator.randomTransfer();
+	}
+
+	@Benchmark
+	public boolean processTransaction() {
+		return transaction.processTransaction();
+	}
+
+	/** The UTXO changes are committed once per iteration, as they would be once per block.
+	 * */
+	@TearDown(Level.Iteration)
+	public void commit() {
+		Indicium_beta.UTXOs.commit();
+	}
+}
@@ -0,0 +1,40 @@
+package indicium_blockChain.benchmarks;
+
+import java.security.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import indicium_blockChain.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WalletBenchmark {
+	// Key generation for a batch of wallets, one at a time and through the WalletFactory.
+
+	@Param({"100"})
+	public int batchSize;
+
+	@Setup
+	public void setup() {
+		Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+	}
+
+	@Benchmark
+	public Wallet_beta[] oneByOne() {
+		Wallet_beta[] wallets = new Wallet_beta[batchSize];
+		for(int i = 0; i < batchSize; i++) {
+			wallets[i] = new Wallet_beta();
+		}
+		return wallets;
+	}
+
+	@Benchmark
+	public Wallet_beta[] factory() {
+		return WalletFactory.getDefault().generate(batchSize);
+	}
+}
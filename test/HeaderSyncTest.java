@@ -0,0 +1,127 @@
+package indicium_blockChain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class HeaderSyncTest {
+	// Header-first sync between two PeerNetworks on the loopback interface, each with a chain of its own.
+
+	/** A chain which only links blocks onto its tip, so the blocks have to arrive in order.
+	 * */
+	private static class ListChain implements PeerNetwork.Chain {
+		final ArrayList<Block> blocks = new ArrayList<Block>();
+		final HashMap<ByteBuffer, Block> byHash = new HashMap<ByteBuffer, Block>();
+		int headersServed;
+		int blocksAccepted;
+
+		ListChain(List<Block> chain) {
+			for(Block block : chain) {
+				add(block);
+			}
+		}
+
+		private void add(Block block) {
+			blocks.add(block);
+			byHash.put(ByteBuffer.wrap(block.hash), block);
+		}
+
+		public synchronized int size() {
+			return blocks.size();
+		}
+
+		public synchronized byte[] getHeader(int height) {
+			headersServed++;
+			return (height < blocks.size()) ? blocks.get(height).getHeaderBytes() : null;
+		}
+
+		public synchronized Block getBlock(byte[] hash) {
+			return byHash.get(ByteBuffer.wrap(hash));
+		}
+
+		public synchronized boolean acceptBlock(Block block) {
+			if(blocks.isEmpty() ? !(block.isGenesis()) : !(Arrays.equals(block.prevHash, blocks.get(blocks.size() - 1).hash))) {
+				return false;
+			}
+			add(block);
+			blocksAccepted++;
+			return true;
+		}
+
+		public boolean acceptTransaction(Transactions transaction) {
+			return false;
+		}
+
+		public Transactions getPooledTransaction(byte[] transactionID) {
+			return null;
+		}
+	}
+
+	private List<Block> chain;
+	private PeerNetwork source, node;
+
+	@BeforeEach
+	public void generateChain() {
+		Log.level = Log.Level.ERROR;
+		Indicium_beta.blockStore = null;
+		Indicium_beta.network = null;
+		chain = new ArrayList<Block>(new WorkloadGenerator(7, 10).generateChain(30, 10, 1)); //heights 0 to 30
+	}
+
+	@AfterEach
+	public void close() throws Exception {
+		if(source != null) {
+			source.close();
+		}
+		if(node != null) {
+			node.close();
+		}
+	}
+
+	/** Connects a node with a chain to a peer serving the generated chain, and waits until the node has every block or the sync stalls.
+	 * @return The peer's chain.
+	 * */
+	private ListChain sync(ListChain nodeChain) throws Exception {
+		ListChain sourceChain = new ListChain(chain);
+		source = new PeerNetwork(sourceChain);
+		int port = source.listen(0);
+		node = new PeerNetwork(nodeChain);
+		node.connect(new InetSocketAddress("localhost", port));
+		for(int wait = 0; wait < 200 && nodeChain.size() < chain.size(); wait++) {
+			Thread.sleep(50);
+		}
+		return sourceChain;
+	}
+
+	private void assertSameChain(ListChain nodeChain) {
+		assertEquals(chain.size(), nodeChain.size());
+		for(int height = 0; height < chain.size(); height++) {
+			assertArrayEquals(BlockCodec.encode(chain.get(height)), BlockCodec.encode(nodeChain.blocks.get(height)), "block at height " + height);
+		}
+	}
+
+	@Test
+	public void newNodeSyncsWholeChain() throws Exception {
+		ListChain nodeChain = new ListChain(Collections.emptyList());
+		ListChain sourceChain = sync(nodeChain);
+
+		assertSameChain(nodeChain);
+		assertEquals(chain.size(), nodeChain.blocksAccepted);
+		assertTrue(sourceChain.headersServed >= chain.size(), "the headers are fetched before the blocks");
+	}
+
+	@Test
+	public void nodeOnlyFetchesMissingBlocks() throws Exception {
+		ListChain nodeChain = new ListChain(chain.subList(0, 11));
+		sync(nodeChain);
+
+		assertSameChain(nodeChain);
+		assertEquals(chain.size() - 11, nodeChain.blocksAccepted);
+	}
+}
@@ -0,0 +1,114 @@
+package indicium_blockChain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class MempoolTest {
+	// Admission of transactions to the node's Mempool, and their removal once they are mined.
+
+	private Wallet_beta A, B;
+	private String genesisOutput;
+
+	@BeforeEach
+	public void startChain() {
+		Log.level = Log.Level.ERROR;
+		Indicium_beta.blockStore = null;
+		Indicium_beta.network = null;
+		WorkloadGenerator generator = new WorkloadGenerator(3, 2);
+		generator.startChain(100, 1);
+		A = generator.getWallets()[0];
+		B = generator.getWallets()[1];
+		genesisOutput = Indicium_beta.genesisTransaction.outputs.get(0).id;
+	}
+
+	/** @return A transaction from a sender, signed with its key, spending the given outputs.
+	 * */
+	private static Transactions spend(Wallet_beta sender, Wallet_beta recipient, long value, String... outputs) {
+		ArrayList<TransactionInput> inputs = new ArrayList<TransactionInput>();
+		for(String output : outputs) {
+			inputs.add(new TransactionInput(output));
+		}
+		Transactions transaction = new Transactions(sender.pubKey, recipient.pubKey, value, inputs);
+		transaction.generateSignature(sender.privKey);
+		return transaction;
+	}
+
+	@Test
+	public void admitsValidTransaction() {
+		Transactions transaction = A.sendFunds(B.pubKey, Amount.ofCoins(10));
+		assertTrue(Indicium_beta.mempool.add(transaction));
+		assertTrue(Indicium_beta.mempool.contains(transaction));
+		assertSame(transaction, Indicium_beta.mempool.get(transaction.transactionID));
+		assertTrue(Indicium_beta.mempool.isSpent(genesisOutput));
+		assertEquals(1, Indicium_beta.mempool.size());
+		assertFalse(Indicium_beta.mempool.add(transaction), "the same transaction is only admitted once");
+		assertEquals(1, Indicium_beta.mempool.size());
+	}
+
+	@Test
+	public void rejectsDoubleSpendOfPooledOutput() {
+		assertTrue(Indicium_beta.mempool.add(spend(A, B, Amount.ofCoins(10), genesisOutput)));
+		assertFalse(Indicium_beta.mempool.add(spend(A, B, Amount.ofCoins(20), genesisOutput)));
+		assertEquals(1, Indicium_beta.mempool.size());
+	}
+
+	@Test
+	public void rejectsOutputSpentTwice() {
+		assertFalse(Indicium_beta.mempool.add(spend(A, B, Amount.ofCoins(150), genesisOutput, genesisOutput)));
+		assertFalse(Indicium_beta.mempool.isSpent(genesisOutput));
+	}
+
+	@Test
+	public void rejectsOutputOfAnotherOwner() {
+		assertFalse(Indicium_beta.mempool.add(spend(B, B, Amount.ofCoins(10), genesisOutput)));
+		assertEquals(0, Indicium_beta.mempool.size());
+	}
+
+	@Test
+	public void rejectsInvalidTransactions() {
+		Transactions tampered = spend(A, B, Amount.ofCoins(10), genesisOutput);
+		tampered.value++;
+		assertFalse(Indicium_beta.mempool.add(tampered), "the signature no longer matches");
+		assertFalse(Indicium_beta.mempool.add(spend(A, B, Amount.ofCoins(10), StringUtil.applySHA256("missing"))));
+		assertFalse(Indicium_beta.mempool.add(spend(A, B, Amount.ofCoins(101), genesisOutput)), "the inputs can't pay for it");
+		assertEquals(0, Indicium_beta.mempool.size());
+		assertFalse(Indicium_beta.mempool.isSpent(genesisOutput));
+	}
+
+	@Test
+	public void removesMinedTransactions() {
+		Transactions transaction = A.sendFunds(B.pubKey, Amount.ofCoins(10));
+		assertTrue(Indicium_beta.mempool.add(transaction));
+
+		Block block = Indicium_beta.mineNextBlock();
+		assertNotNull(block);
+		assertEquals(1, block.transactions.size());
+		assertEquals(transaction.transactionID, block.transactions.get(0).transactionID);
+		assertEquals(0, Indicium_beta.mempool.size());
+		assertNull(Indicium_beta.mempool.get(transaction.transactionID));
+		assertFalse(Indicium_beta.mempool.isSpent(genesisOutput));
+		assertEquals(Amount.ofCoins(10), B.getWalletBalance());
+		assertTrue(Indicium_beta.isChainValid());
+	}
+
+	/** A pooled transaction whose output is spent by another transaction in a block can never be mined.
+	 * */
+	@Test
+	public void evictsTransactionsConflictingWithBlock() {
+		Transactions pooled = spend(A, B, Amount.ofCoins(10), genesisOutput);
+		assertTrue(Indicium_beta.mempool.add(pooled));
+
+		Block block = new Block(Indicium_beta.blockchain.get(0).hash);
+		assertTrue(block.addTransaction(spend(A, A, Amount.ofCoins(20), genesisOutput)));
+		block.mineBlock(Difficulty.nextBits(Indicium_beta.params, Indicium_beta.blockchain));
+		Indicium_beta.appendBlock(block);
+
+		assertFalse(Indicium_beta.mempool.contains(pooled));
+		assertEquals(0, Indicium_beta.mempool.size());
+		assertTrue(Indicium_beta.mineNextBlock().transactions.isEmpty(), "the evicted transaction isn't mined");
+	}
+}
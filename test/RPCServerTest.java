@@ -0,0 +1,72 @@
+package indicium_blockChain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.URI;
+import java.net.http.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.*;
+
+public class RPCServerTest {
+	// Requests to the JSON-RPC server: malformed params, notifications and batches.
+
+	private final HttpClient client = HttpClient.newHttpClient();
+	private RPCServer server;
+
+	@BeforeEach
+	public void start() throws Exception {
+		Log.level = Log.Level.ERROR;
+		Indicium_beta.blockStore = null;
+		Indicium_beta.network = null;
+		new WorkloadGenerator(5, 5).generateChain(2, 2, 1);
+		server = new RPCServer(0, 2);
+		server.start();
+	}
+
+	@AfterEach
+	public void stop() {
+		server.stop();
+	}
+
+	private HttpResponse<String> post(String body) throws Exception {
+		HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.getPort() + "/")).POST(HttpRequest.BodyPublishers.ofString(body)).build();
+		return client.send(request, HttpResponse.BodyHandlers.ofString());
+	}
+
+	private int errorCode(String body) throws Exception {
+		return JsonParser.parseString(post(body).body()).getAsJsonObject().getAsJsonObject("error").get("code").getAsInt();
+	}
+
+	@Test
+	public void answersMalformedParamsAsInvalidParams() throws Exception {
+		assertEquals(RPCServer.INVALID_PARAMS, errorCode("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"getTransaction\",\"params\":{\"id\":\"xyz\"}}"));
+		assertEquals(RPCServer.INVALID_PARAMS, errorCode("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"getTransaction\",\"params\":{\"id\":\"" + "g".repeat(64) + "\"}}"));
+		assertEquals(RPCServer.INVALID_PARAMS, errorCode("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"getBlock\",\"params\":{\"height\":-1}}"));
+		assertEquals(RPCServer.INVALID_PARAMS, errorCode("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"getBlock\",\"params\":[1]}"));
+		assertEquals(RPCServer.INVALID_REQUEST, errorCode("{\"jsonrpc\":\"2.0\",\"id\":{},\"method\":\"getTip\"}"));
+	}
+
+	@Test
+	public void findsMinedTransaction() throws Exception {
+		String id = Indicium_beta.blockchain.get(2).transactions.get(0).transactionID;
+		JsonObject result = JsonParser.parseString(post("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"getTransaction\",\"params\":{\"id\":\"" + id + "\"}}").body()).getAsJsonObject().getAsJsonObject("result");
+		assertEquals(2, result.get("blockHeight").getAsInt());
+		assertEquals(id, result.getAsJsonObject("transaction").get("id").getAsString());
+	}
+
+	@Test
+	public void doesNotAnswerNotifications() throws Exception {
+		HttpResponse<String> response = post("{\"jsonrpc\":\"2.0\",\"method\":\"getTip\"}");
+		assertEquals(204, response.statusCode());
+		assertEquals("", response.body());
+		assertEquals(204, post("[{\"jsonrpc\":\"2.0\",\"method\":\"getTip\"},{\"jsonrpc\":\"2.0\",\"method\":\"nope\"}]").statusCode(), "failed notifications aren't answered either");
+
+		JsonArray answers = JsonParser.parseString(post("[{\"jsonrpc\":\"2.0\",\"method\":\"getTip\"},{\"jsonrpc\":\"2.0\",\"id\":7,\"method\":\"getTip\"}]").body()).getAsJsonArray();
+		assertEquals(1, answers.size());
+		assertEquals(7, answers.get(0).getAsJsonObject().get("id").getAsInt());
+	}
+}
@@ -0,0 +1,172 @@
+package indicium_blockChain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class ReorganizationTest {
+	// Switching the node's blockchain onto a branch with more work using the blocks' undo records, and the limits on how deep it can go.
+
+	private WorkloadGenerator generator;
+
+	@BeforeEach
+	public void startChain() {
+		Log.level = Log.Level.ERROR;
+		Indicium_beta.blockStore = null;
+		Indicium_beta.network = null;
+		Indicium_beta.maxReorgDepth = 100;
+		generator = new WorkloadGenerator(5, 10);
+		generator.generateChain(5, 5, 1); //heights 0 to 5
+	}
+
+	@AfterEach
+	public void restoreDepth() {
+		Indicium_beta.maxReorgDepth = 100;
+	}
+
+	private static Block tip() {
+		return Indicium_beta.blockchain.get(Indicium_beta.blockchain.size() - 1);
+	}
+
+	/** Appends blocks of random transfers to the tip, like the node's miner.
+	 * */
+	private void appendTransfers(int blocks) {
+		for(int b = 0; b < blocks; b++) {
+			Block block = new Block(tip().hash);
+			for(int t = 0; t < 5; t++) {
+				block.addTransaction(generator.randomTransfer());
+			}
+			block.mineBlock(Difficulty.nextBits(Indicium_beta.params, Indicium_beta.blockchain));
+			Indicium_beta.appendBlock(block);
+		}
+	}
+
+	/** Mines empty blocks on a block, like a peer on another branch, and hands them to the node.
+	 * @return The last of them.
+	 * */
+	private static Block acceptEmpty(Block parent, int blocks) {
+		for(int b = 0; b < blocks; b++) {
+			Block block = new Block(parent.hash);
+			block.mineBlock(Difficulty.ofLeadingZeros(1));
+			assertTrue(Indicium_beta.acceptBlock(block));
+			parent = block;
+		}
+		return parent;
+	}
+
+	@Test
+	public void reorganizesOntoBranchWithMoreWork() {
+		Block fork = tip();
+		byte[] digestAtFork = Indicium_beta.UTXOs.getDigest();
+		appendTransfers(5);
+		String abandoned = Indicium_beta.blockchain.get(8).transactions.get(0).transactionID;
+
+		Block branchTip = acceptEmpty(fork, 6);
+		assertSame(branchTip, tip());
+		assertEquals(12, Indicium_beta.blockchain.size());
+		assertEquals(11, Indicium_beta.state.height);
+		assertArrayEquals(digestAtFork, Indicium_beta.UTXOs.getDigest(), "the empty branch leaves the UTXOs as they were at the fork");
+		assertNull(Indicium_beta.getTransaction(abandoned));
+		assertTrue(Indicium_beta.mempool.size() > 0, "the abandoned blocks' transactions go back to the Mempool");
+		assertTrue(Indicium_beta.isChainValid());
+
+		try(ChainValidator fresh = new ChainValidator(Indicium_beta.params)) {
+			assertTrue(fresh.validate(Indicium_beta.blockchain, Indicium_beta.genesisTransaction.outputs.get(0)));
+			assertArrayEquals(fresh.getLastCheckpoint(Indicium_beta.blockchain).utxoDigest, Indicium_beta.UTXOs.getDigest());
+		}
+	}
+
+	@Test
+	public void reorganizesBackOntoFormerBranch() {
+		Block fork = tip();
+		appendTransfers(3);
+		Block formerTip = tip();
+		byte[] digestAtFormerTip = Indicium_beta.UTXOs.getDigest();
+		String transaction = formerTip.transactions.get(0).transactionID;
+
+		acceptEmpty(fork, 4);
+		assertNull(Indicium_beta.getTransaction(transaction));
+		Block empty = acceptEmpty(formerTip, 2);
+
+		assertSame(empty, tip());
+		assertNotNull(Indicium_beta.getTransaction(transaction));
+		assertArrayEquals(digestAtFormerTip, Indicium_beta.UTXOs.getDigest());
+		assertEquals(0, Indicium_beta.mempool.size(), "the branch mines every transaction again");
+		assertTrue(Indicium_beta.isChainValid());
+	}
+
+	@Test
+	public void keepsBranchWithLessWorkOnTheSide() {
+		Block oldTip = tip();
+		Block side = acceptEmpty(Indicium_beta.blockchain.get(3), 2);
+
+		assertSame(oldTip, tip());
+		assertNotNull(Indicium_beta.blockTree.getNode(side.hash));
+		assertEquals(-1, Indicium_beta.chainIndex.getHeight(side.hash));
+		assertEquals(Indicium_beta.blockchain.size() + 2, Indicium_beta.blockTree.size());
+	}
+
+	@Test
+	public void invalidBlockInvalidatesItsDescendants() {
+		Block parent = Indicium_beta.blockchain.get(4);
+		Block invalid = new Block(parent.hash);
+		invalid.addTransaction(generator.randomTransfer()); //built on the tip's UTXOs, but the transaction is tampered with anyway
+		Indicium_beta.UTXOs.rollback();
+		invalid.transactions.get(0).value++;
+		invalid.mineBlock(Difficulty.ofLeadingZeros(1));
+		Block oldTip = tip();
+		byte[] digest = Indicium_beta.UTXOs.getDigest();
+
+		assertTrue(Indicium_beta.acceptBlock(invalid), "its transactions are only checked once its branch has more work");
+		Block child = new Block(invalid.hash);
+		child.mineBlock(Difficulty.ofLeadingZeros(1));
+		assertFalse(Indicium_beta.acceptBlock(child));
+		assertTrue(Indicium_beta.blockTree.getNode(invalid.hash).invalid);
+		assertTrue(Indicium_beta.blockTree.getNode(child.hash).invalid);
+
+		Block grandchild = new Block(child.hash);
+		grandchild.mineBlock(Difficulty.ofLeadingZeros(1));
+		assertFalse(Indicium_beta.acceptBlock(grandchild));
+		assertTrue(Indicium_beta.blockTree.getNode(grandchild.hash).invalid);
+		assertSame(oldTip, tip());
+		assertArrayEquals(digest, Indicium_beta.UTXOs.getDigest());
+	}
+
+	@Test
+	public void rejectsForkDeeperThanMaxReorgDepth() {
+		Indicium_beta.maxReorgDepth = 3;
+		appendTransfers(2); //heights 6 and 7
+
+		assertFalse(Indicium_beta.acceptBlock(minedOn(Indicium_beta.blockchain.get(3))), "disconnecting 4 blocks is too deep");
+		Block side = minedOn(Indicium_beta.blockchain.get(4));
+		assertTrue(Indicium_beta.acceptBlock(side), "disconnecting 3 blocks is allowed");
+		assertEquals(Indicium_beta.blockchain.size() + 1, Indicium_beta.blockTree.size());
+	}
+
+	@Test
+	public void dropsUndoRecordsAndSideBranchesBelowMaxReorgDepth() {
+		Indicium_beta.maxReorgDepth = 3;
+		Block side = acceptEmpty(Indicium_beta.blockchain.get(4), 1);
+		assertNotNull(Indicium_beta.blockTree.getNode(side.hash));
+
+		appendTransfers(2); //a reorganization onto the side branch would disconnect 3 blocks
+		assertNotNull(Indicium_beta.blockTree.getNode(side.hash));
+		appendTransfers(1);
+		assertNull(Indicium_beta.blockTree.getNode(side.hash), "a reorganization onto it would disconnect 4 blocks");
+		assertEquals(Indicium_beta.blockchain.size(), Indicium_beta.blockTree.size());
+
+		int tipHeight = Indicium_beta.blockchain.size() - 1;
+		for(int height = tipHeight - 4; height <= tipHeight; height++) {
+			BlockTree.Node node = Indicium_beta.blockTree.getNode(Indicium_beta.blockchain.get(height).hash);
+			assertEquals(height > tipHeight - 3, node.undo != null, "undo record at height " + height);
+		}
+	}
+
+	private static Block minedOn(Block parent) {
+		Block block = new Block(parent.hash);
+		block.mineBlock(Difficulty.ofLeadingZeros(1));
+		return block;
+	}
+}
@@ -0,0 +1,147 @@
+package indicium_blockChain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class UTXODatabaseTest {
+	// Commits, reopening and undoing commits of a database in its own directory, and the digest of its outputs.
+
+	@TempDir
+	Path directory;
+
+	private static TransactionOutput output(int owner, long value) {
+		byte[] ownerHash = new byte[32];
+		Arrays.fill(ownerHash, (byte) owner);
+		return new TransactionOutput(ownerHash, value, StringUtil.applySHA256("transaction " + owner + " " + value));
+	}
+
+	private static byte[] blockHash(int b) {
+		byte[] hash = new byte[32];
+		Arrays.fill(hash, (byte) b);
+		return hash;
+	}
+
+	@Test
+	public void committedBatchSurvivesReopening() throws Exception {
+		TransactionOutput a = output(1, 10), b = output(2, 20);
+		byte[] digest;
+		try(UTXODatabase UTXOs = new UTXODatabase(directory)) {
+			UTXOs.put(a.id, a);
+			UTXOs.put(b.id, b);
+			UTXOs.commit(blockHash(1));
+			digest = UTXOs.getDigest();
+		}
+
+		try(UTXODatabase UTXOs = new UTXODatabase(directory)) {
+			assertEquals(2, UTXOs.size());
+			assertEquals(10, UTXOs.get(a.id).value);
+			assertArrayEquals(b.ownerHash, UTXOs.get(b.id).ownerHash);
+			assertArrayEquals(blockHash(1), UTXOs.getTip());
+			assertArrayEquals(digest, UTXOs.getDigest());
+			assertEquals(1, UTXOs.getCommittedByOwner(a.ownerHash).size());
+		}
+	}
+
+	/** A node which crashes never closes its database, so only the commit itself may make the batch durable.
+	 * */
+	@Test
+	public void committedBatchIsRecoveredWithoutClosing() throws Exception {
+		TransactionOutput a = output(1, 10);
+		UTXODatabase crashed = new UTXODatabase(directory);
+		crashed.put(a.id, a);
+		crashed.commit(blockHash(1));
+		crashed.put(output(2, 20).id, output(2, 20)); //never committed
+
+		try(UTXODatabase UTXOs = new UTXODatabase(directory)) {
+			assertEquals(1, UTXOs.size());
+			assertNotNull(UTXOs.get(a.id));
+			assertArrayEquals(blockHash(1), UTXOs.getTip());
+		}
+		crashed.close();
+	}
+
+	@Test
+	public void rollbackDiscardsPendingBatch() throws Exception {
+		TransactionOutput a = output(1, 10), b = output(2, 20);
+		try(UTXODatabase UTXOs = new UTXODatabase(directory)) {
+			UTXOs.put(a.id, a);
+			UTXOs.commit(blockHash(1));
+			UTXOs.remove(a.id);
+			UTXOs.put(b.id, b);
+			UTXOs.rollback();
+
+			assertNotNull(UTXOs.get(a.id));
+			assertNull(UTXOs.get(b.id));
+			assertTrue(UTXOs.getPendingChanges().isEmpty());
+		}
+	}
+
+	@Test
+	public void committedReadsIgnorePendingBatch() throws Exception {
+		TransactionOutput a = output(1, 10), b = output(2, 20);
+		try(UTXODatabase UTXOs = new UTXODatabase(directory)) {
+			UTXOs.put(a.id, a);
+			UTXOs.commit(blockHash(1));
+			UTXOs.remove(a.id);
+			UTXOs.put(b.id, b);
+
+			assertNull(UTXOs.get(a.id));
+			assertNotNull(UTXOs.get(b.id));
+			assertNotNull(UTXOs.getCommitted(a.id));
+			assertNull(UTXOs.getCommitted(b.id));
+			assertTrue(UTXOs.getCommittedByOwner(b.ownerHash).isEmpty());
+		}
+	}
+
+	@Test
+	public void undoLastRevertsCommitAfterReopening() throws Exception {
+		TransactionOutput a = output(1, 10), b = output(2, 20);
+		byte[] digest;
+		try(UTXODatabase UTXOs = new UTXODatabase(directory)) {
+			UTXOs.put(a.id, a);
+			UTXOs.commit(blockHash(1));
+			digest = UTXOs.getDigest();
+			UTXOs.remove(a.id);
+			UTXOs.put(b.id, b);
+			UTXOs.commit(blockHash(2));
+			assertEquals(2, UTXOs.getUndoJournal().size());
+		}
+
+		try(UTXODatabase UTXOs = new UTXODatabase(directory)) {
+			assertTrue(UTXOs.undoLast());
+			assertArrayEquals(blockHash(1), UTXOs.getTip());
+			assertNotNull(UTXOs.get(a.id));
+			assertNull(UTXOs.get(b.id));
+			assertArrayEquals(digest, UTXOs.getDigest());
+			assertEquals(1, UTXOs.getUndoJournal().size());
+		}
+	}
+
+	@Test
+	public void digestDependsOnlyOnOutputs() throws Exception {
+		TransactionOutput a = output(1, 10), b = output(2, 20), c = output(3, 30);
+		try(UTXODatabase first = new UTXODatabase(directory.resolve("first")); UTXODatabase second = new UTXODatabase(directory.resolve("second"))) {
+			first.put(a.id, a);
+			first.put(b.id, b);
+			first.commit();
+
+			second.put(c.id, c);
+			second.put(b.id, b);
+			second.commit();
+			second.put(a.id, a);
+			second.remove(c.id);
+			second.commit();
+
+			assertArrayEquals(first.getDigest(), second.getDigest());
+			first.remove(a.id);
+			first.remove(b.id);
+			first.commit();
+			assertArrayEquals(new byte[32], first.getDigest());
+		}
+	}
+}